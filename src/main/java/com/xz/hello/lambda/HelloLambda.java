@@ -1,5 +1,12 @@
 package com.xz.hello.lambda;
 
+import com.xz.hello.lambda.function.IntBinaryOp;
+import com.xz.hello.lambda.function.IntPred;
+import com.xz.hello.lambda.function.IntToObj;
+import com.xz.hello.lambda.function.IntUnaryOp;
+import com.xz.hello.lambda.function.ObjIntToInt;
+import com.xz.hello.lambda.function.ObjToInt;
+
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Comparator;
@@ -278,6 +285,33 @@ public class HelloLambda {
     }
 
 
+    /**
+     * 基本類型的函數接口組合
+     * <p>
+     * Function<Integer, String>、UnaryOperator<Integer>、BiFunction<Dog, Integer, Integer> 每次調用都要裝箱拆箱,
+     * <p>
+     * com.xz.hello.lambda.function 下的接口組合之後仍然是基本類型,熱點路徑可以全程不裝箱
+     */
+    public static void primitive() {
+        IntPred positive = i -> i > 0;
+        IntPred even = i -> i % 2 == 0;
+        System.out.println(positive.and(even.negate()).test(9));
+
+        IntBinaryOp add = PrimitiveAdapters.fromMath(createIMath());
+        IntUnaryOp addTenThenDouble = add.bindLeft(10).andThen(i -> i * 2);
+        System.out.println(addTenThenDouble.applyAsInt(5));
+
+        IntToObj<String> money = PrimitiveAdapters.fromMoneyFormat(i -> new DecimalFormat("#,###").format(i));
+        System.out.println(money.compose(addTenThenDouble).andThen(s -> "rmb" + s).apply(99999));
+
+        ObjToInt<String> length = String::length;
+        System.out.println(length.andThen(i -> i * 2).thenTest(even).test("hello"));
+
+        Dog dog = new Dog();
+        ObjIntToInt<Dog> eat = Dog::eat;
+        System.out.println("還剩下:" + eat.bind(dog).applyAsInt(1) + "斤");
+    }
+
     public static void main(String[] args) {
         //character();
 
@@ -312,6 +346,8 @@ public class HelloLambda {
 
         cascade();
 
+        primitive();
+
     }
 
 }
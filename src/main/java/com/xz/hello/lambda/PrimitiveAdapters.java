@@ -0,0 +1,44 @@
+package com.xz.hello.lambda;
+
+import com.xz.hello.lambda.function.IntBinaryOp;
+import com.xz.hello.lambda.function.IntToObj;
+import com.xz.hello.lambda.function.IntUnaryOp;
+
+/**
+ * 把HelloLambda裏自定義的函數接口轉成可以組合的基本類型函數接口
+ * <p>
+ * 每個接口用不同的方法名: 這些接口的方法簽名有的相同(IMath和IMath1),有的參數個數相同,
+ * 如果都叫from,傳lambda時會和testType一樣有二義性,只能強轉
+ */
+final class PrimitiveAdapters {
+
+    private PrimitiveAdapters() {
+    }
+
+    static IntUnaryOp fromNum(HelloLambda.NumInterface numInterface) {
+        return numInterface::doubleNum;
+    }
+
+    static IntUnaryOp fromSome(HelloLambda.SomeInterface someInterface) {
+        return someInterface::doubleNum;
+    }
+
+    /**
+     * SomeInterface的default方法add
+     */
+    static IntBinaryOp add(HelloLambda.SomeInterface someInterface) {
+        return someInterface::add;
+    }
+
+    static IntBinaryOp fromMath(HelloLambda.IMath iMath) {
+        return iMath::add;
+    }
+
+    static IntBinaryOp fromMath1(HelloLambda.IMath1 iMath) {
+        return iMath::add;
+    }
+
+    static IntToObj<String> fromMoneyFormat(HelloLambda.IMoneyFormat moneyFormat) {
+        return moneyFormat::format;
+    }
+}
@@ -0,0 +1,469 @@
+package com.xz.hello.lambda.filter;
+
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.function.IntPredicate;
+
+/**
+ * 批量過濾int數組的謂詞
+ * <p>
+ * HelloLambda.pre 裏的 Predicate<Integer>/IntPredicate 和 ReactorTest.test3 的 filter(i -> i % 2 == 1) 都是一個一個判斷,
+ * 數組有幾億個元素的時候,每個元素一次虛調用再加一次分支預測失敗,開銷很大
+ * <p>
+ * 這裏常用的條件(比較、區間、取模)以及它們的 and/or/not 組合都按列式的方式批量計算:
+ * <p>
+ * 1--每64個元素算出一個long的選擇位圖(第j位為1表示第j個元素滿足條件),循環體裏沒有分支,JIT可以自動向量化
+ * <p>
+ * 2--and/or/not 直接對位圖做位運算
+ * <p>
+ * 3--按塊(BLOCK個元素)處理,中間位圖一直留在緩存裏
+ * <p>
+ * 4--任意的IntPredicate用of()包裝,作為兜底
+ * <p>
+ * 數據可以是int[],也可以是堆外的IntBuffer(比如ByteBuffer.allocateDirect(...).asIntBuffer())
+ */
+public abstract class IntFilter {
+
+    /**
+     * 每塊處理的元素個數,必須是64的倍數
+     */
+    static final int BLOCK = 4096;
+
+    static final int BLOCK_WORDS = BLOCK / 64;
+
+    private static final IntFilter ALL = range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+    private static final IntFilter NONE = ALL.not();
+
+    IntFilter() {
+    }
+
+    public static IntFilter range(int from, int to) {
+        return from <= to ? new Range(from, to) : NONE;
+    }
+
+    public static IntFilter lt(int value) {
+        return value == Integer.MIN_VALUE ? NONE : range(Integer.MIN_VALUE, value - 1);
+    }
+
+    public static IntFilter le(int value) {
+        return range(Integer.MIN_VALUE, value);
+    }
+
+    public static IntFilter gt(int value) {
+        return value == Integer.MAX_VALUE ? NONE : range(value + 1, Integer.MAX_VALUE);
+    }
+
+    public static IntFilter ge(int value) {
+        return range(value, Integer.MAX_VALUE);
+    }
+
+    public static IntFilter eq(int value) {
+        return range(value, value);
+    }
+
+    public static IntFilter ne(int value) {
+        return eq(value).not();
+    }
+
+    /**
+     * value % divisor == remainder,和java的%語義一致,負數的餘數是負的
+     */
+    public static IntFilter mod(int divisor, int remainder) {
+        if (divisor == 0) {
+            throw new IllegalArgumentException("divisor must not be zero");
+        }
+        return new Mod(divisor, remainder);
+    }
+
+    /**
+     * 兜底: 任意lambda,逐個調用,但結果仍然寫成位圖,可以和其他條件組合
+     */
+    public static IntFilter of(IntPredicate predicate) {
+        return new Lambda(Objects.requireNonNull(predicate));
+    }
+
+    public IntFilter and(IntFilter other) {
+        return new Combine(this, Objects.requireNonNull(other), Combine.AND);
+    }
+
+    public IntFilter or(IntFilter other) {
+        return new Combine(this, Objects.requireNonNull(other), Combine.OR);
+    }
+
+    public IntFilter not() {
+        return new Not(this);
+    }
+
+    /**
+     * 計算選擇位圖,長度為 (data.length + 63) / 64
+     */
+    public long[] select(int[] data) {
+        return select(data, null, data.length);
+    }
+
+    public long[] select(IntBuffer data) {
+        return select(null, data, data.remaining());
+    }
+
+    /**
+     * 滿足條件的元素個數
+     */
+    public int count(int[] data) {
+        return count(select(data));
+    }
+
+    /**
+     * 滿足條件的元素,順序不變
+     */
+    public int[] filter(int[] data) {
+        long[] bitmap = select(data);
+        int[] result = new int[count(bitmap)];
+        int n = 0;
+        for (int w = 0; w < bitmap.length; w++) {
+            long word = bitmap[w];
+            int base = w << 6;
+            while (word != 0) {
+                result[n++] = data[base + Long.numberOfTrailingZeros(word)];
+                word &= word - 1;
+            }
+        }
+        return result;
+    }
+
+    public static int count(long[] bitmap) {
+        int n = 0;
+        for (long word : bitmap) {
+            n += Long.bitCount(word);
+        }
+        return n;
+    }
+
+    /**
+     * 把位圖轉成下標數組
+     */
+    public static int[] indexes(long[] bitmap) {
+        int[] result = new int[count(bitmap)];
+        int n = 0;
+        for (int w = 0; w < bitmap.length; w++) {
+            long word = bitmap[w];
+            int base = w << 6;
+            while (word != 0) {
+                result[n++] = base + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return result;
+    }
+
+    private long[] select(int[] array, IntBuffer buffer, int length) {
+        long[] bitmap = new long[(length + 63) >>> 6];
+        long[] block = new long[BLOCK_WORDS];
+        Scratch scratch = new Scratch();
+        int offset = buffer == null ? 0 : buffer.position();
+        for (int from = 0; from < length; from += BLOCK) {
+            int count = Math.min(BLOCK, length - from);
+            if (array != null) {
+                evalArray(array, from, count, block, scratch);
+            } else {
+                evalBuffer(buffer, offset + from, count, block, scratch);
+            }
+            System.arraycopy(block, 0, bitmap, from >>> 6, (count + 63) >>> 6);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 計算 data[from, from + count) 的位圖寫進 out 的前 (count + 63) / 64 個long,最後一個long多出來的位必須是0
+     */
+    abstract void evalArray(int[] data, int from, int count, long[] out, Scratch scratch);
+
+    abstract void evalBuffer(IntBuffer data, int from, int count, long[] out, Scratch scratch);
+
+    /**
+     * 組合條件計算子條件時用的臨時位圖,整個select過程中複用
+     */
+    static final class Scratch {
+
+        private final ArrayDeque<long[]> free = new ArrayDeque<>();
+
+        long[] borrow() {
+            long[] words = free.poll();
+            return words != null ? words : new long[BLOCK_WORDS];
+        }
+
+        void release(long[] words) {
+            free.push(words);
+        }
+    }
+
+    /**
+     * from <= x <= to
+     * <p>
+     * 轉成無符號比較 (x - from) <= (to - from),兩邊都在[0, 2^32)之內,用long相減後取符號位得到0或1,沒有分支
+     */
+    static final class Range extends IntFilter {
+
+        final int from;
+
+        final long span;
+
+        Range(int from, int to) {
+            this.from = from;
+            this.span = (to - from) & 0xFFFFFFFFL;
+        }
+
+        @Override
+        void evalArray(int[] data, int start, int count, long[] out, Scratch scratch) {
+            int lo = from;
+            long limit = span + 1;
+            int words = count >>> 6;
+            for (int w = 0; w < words; w++) {
+                int base = start + (w << 6);
+                long word = 0;
+                for (int j = 0; j < 64; j++) {
+                    long u = (data[base + j] - lo) & 0xFFFFFFFFL;
+                    word |= ((u - limit) >>> 63) << j;
+                }
+                out[w] = word;
+            }
+            int rest = count & 63;
+            if (rest != 0) {
+                int base = start + (words << 6);
+                long word = 0;
+                for (int j = 0; j < rest; j++) {
+                    long u = (data[base + j] - lo) & 0xFFFFFFFFL;
+                    word |= ((u - limit) >>> 63) << j;
+                }
+                out[words] = word;
+            }
+        }
+
+        @Override
+        void evalBuffer(IntBuffer data, int start, int count, long[] out, Scratch scratch) {
+            int lo = from;
+            long limit = span + 1;
+            int wordCount = (count + 63) >>> 6;
+            for (int w = 0; w < wordCount; w++) {
+                int base = start + (w << 6);
+                int n = Math.min(64, count - (w << 6));
+                long word = 0;
+                for (int j = 0; j < n; j++) {
+                    long u = (data.get(base + j) - lo) & 0xFFFFFFFFL;
+                    word |= ((u - limit) >>> 63) << j;
+                }
+                out[w] = word;
+            }
+        }
+    }
+
+    /**
+     * x % divisor == remainder,先求餘數再用異或判斷相等
+     * <p>
+     * divisor是2的冪時不用除法: x % 2^k == x - ((x + 偏移) & -2^k),負數加上 2^k - 1 的偏移,和java的%結果一致
+     */
+    static final class Mod extends IntFilter {
+
+        final int divisor;
+
+        final int remainder;
+
+        /**
+         * divisor是大於1的2的冪時為log2(divisor),否則為0
+         */
+        final int shift;
+
+        Mod(int divisor, int remainder) {
+            this.divisor = divisor;
+            this.remainder = remainder;
+            this.shift = divisor > 1 && Integer.bitCount(divisor) == 1 ? Integer.numberOfTrailingZeros(divisor) : 0;
+        }
+
+        @Override
+        void evalArray(int[] data, int start, int count, long[] out, Scratch scratch) {
+            int d = divisor;
+            int r = remainder;
+            int k = shift;
+            int wordCount = (count + 63) >>> 6;
+            for (int w = 0; w < wordCount; w++) {
+                int base = start + (w << 6);
+                int n = Math.min(64, count - (w << 6));
+                long word = 0;
+                if (k != 0) {
+                    int negMask = -d;
+                    int bias = 32 - k;
+                    for (int j = 0; j < n; j++) {
+                        int x = data[base + j];
+                        int rem = x - ((x + ((x >> 31) >>> bias)) & negMask);
+                        long diff = (rem ^ r) & 0xFFFFFFFFL;
+                        word |= ((diff - 1) >>> 63) << j;
+                    }
+                } else {
+                    for (int j = 0; j < n; j++) {
+                        long diff = ((data[base + j] % d) ^ r) & 0xFFFFFFFFL;
+                        word |= ((diff - 1) >>> 63) << j;
+                    }
+                }
+                out[w] = word;
+            }
+        }
+
+        @Override
+        void evalBuffer(IntBuffer data, int start, int count, long[] out, Scratch scratch) {
+            int d = divisor;
+            int r = remainder;
+            int k = shift;
+            int wordCount = (count + 63) >>> 6;
+            for (int w = 0; w < wordCount; w++) {
+                int base = start + (w << 6);
+                int n = Math.min(64, count - (w << 6));
+                long word = 0;
+                if (k != 0) {
+                    int negMask = -d;
+                    int bias = 32 - k;
+                    for (int j = 0; j < n; j++) {
+                        int x = data.get(base + j);
+                        int rem = x - ((x + ((x >> 31) >>> bias)) & negMask);
+                        long diff = (rem ^ r) & 0xFFFFFFFFL;
+                        word |= ((diff - 1) >>> 63) << j;
+                    }
+                } else {
+                    for (int j = 0; j < n; j++) {
+                        long diff = ((data.get(base + j) % d) ^ r) & 0xFFFFFFFFL;
+                        word |= ((diff - 1) >>> 63) << j;
+                    }
+                }
+                out[w] = word;
+            }
+        }
+    }
+
+    static final class Lambda extends IntFilter {
+
+        final IntPredicate predicate;
+
+        Lambda(IntPredicate predicate) {
+            this.predicate = predicate;
+        }
+
+        @Override
+        void evalArray(int[] data, int start, int count, long[] out, Scratch scratch) {
+            int wordCount = (count + 63) >>> 6;
+            for (int w = 0; w < wordCount; w++) {
+                int base = start + (w << 6);
+                int n = Math.min(64, count - (w << 6));
+                long word = 0;
+                for (int j = 0; j < n; j++) {
+                    if (predicate.test(data[base + j])) {
+                        word |= 1L << j;
+                    }
+                }
+                out[w] = word;
+            }
+        }
+
+        @Override
+        void evalBuffer(IntBuffer data, int start, int count, long[] out, Scratch scratch) {
+            int wordCount = (count + 63) >>> 6;
+            for (int w = 0; w < wordCount; w++) {
+                int base = start + (w << 6);
+                int n = Math.min(64, count - (w << 6));
+                long word = 0;
+                for (int j = 0; j < n; j++) {
+                    if (predicate.test(data.get(base + j))) {
+                        word |= 1L << j;
+                    }
+                }
+                out[w] = word;
+            }
+        }
+    }
+
+    static final class Combine extends IntFilter {
+
+        static final int AND = 0;
+
+        static final int OR = 1;
+
+        final IntFilter left;
+
+        final IntFilter right;
+
+        final int op;
+
+        Combine(IntFilter left, IntFilter right, int op) {
+            this.left = left;
+            this.right = right;
+            this.op = op;
+        }
+
+        @Override
+        void evalArray(int[] data, int start, int count, long[] out, Scratch scratch) {
+            left.evalArray(data, start, count, out, scratch);
+            long[] tmp = scratch.borrow();
+            right.evalArray(data, start, count, tmp, scratch);
+            merge(out, tmp, (count + 63) >>> 6);
+            scratch.release(tmp);
+        }
+
+        @Override
+        void evalBuffer(IntBuffer data, int start, int count, long[] out, Scratch scratch) {
+            left.evalBuffer(data, start, count, out, scratch);
+            long[] tmp = scratch.borrow();
+            right.evalBuffer(data, start, count, tmp, scratch);
+            merge(out, tmp, (count + 63) >>> 6);
+            scratch.release(tmp);
+        }
+
+        private void merge(long[] out, long[] other, int words) {
+            if (op == AND) {
+                for (int w = 0; w < words; w++) {
+                    out[w] &= other[w];
+                }
+            } else {
+                for (int w = 0; w < words; w++) {
+                    out[w] |= other[w];
+                }
+            }
+        }
+    }
+
+    static final class Not extends IntFilter {
+
+        final IntFilter inner;
+
+        Not(IntFilter inner) {
+            this.inner = inner;
+        }
+
+        @Override
+        public IntFilter not() {
+            return inner;
+        }
+
+        @Override
+        void evalArray(int[] data, int start, int count, long[] out, Scratch scratch) {
+            inner.evalArray(data, start, count, out, scratch);
+            invert(out, count);
+        }
+
+        @Override
+        void evalBuffer(IntBuffer data, int start, int count, long[] out, Scratch scratch) {
+            inner.evalBuffer(data, start, count, out, scratch);
+            invert(out, count);
+        }
+
+        private static void invert(long[] out, int count) {
+            int words = (count + 63) >>> 6;
+            for (int w = 0; w < words; w++) {
+                out[w] = ~out[w];
+            }
+            int rest = count & 63;
+            if (rest != 0) {
+                //最後一個long裏超出count的位清零
+                out[words - 1] &= (1L << rest) - 1;
+            }
+        }
+    }
+}
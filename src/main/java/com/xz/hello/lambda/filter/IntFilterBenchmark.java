@@ -0,0 +1,56 @@
+package com.xz.hello.lambda.filter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.function.IntSupplier;
+import java.util.stream.IntStream;
+
+/**
+ * IntStream.filter 和 IntFilter 的對比
+ * <p>
+ * 條件: i % 2 == 1 && 0 <= i < 1_000_000 (隨機數據,大約一半的元素是奇數,所以普通的分支很難預測)
+ * <p>
+ * 每種方式先預熱,再取5次的最好成績
+ */
+public class IntFilterBenchmark {
+
+    private static final int SIZE = 20_000_000;
+
+    private static volatile int sink;
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        int[] data = new int[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            data[i] = random.nextInt(2_000_000) - 500_000;
+        }
+        IntBuffer offHeap = ByteBuffer.allocateDirect(SIZE * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        offHeap.put(data).flip();
+
+        IntFilter kernel = IntFilter.mod(2, 1).and(IntFilter.range(0, 999_999));
+        IntFilter fallback = IntFilter.of(i -> i % 2 == 1 && i >= 0 && i < 1_000_000);
+
+        measure("IntStream.filter().count()", () -> (int) IntStream.of(data).filter(i -> i % 2 == 1 && i >= 0 && i < 1_000_000).count());
+        measure("IntFilter count", () -> kernel.count(data));
+        measure("IntFilter lambda count", () -> fallback.count(data));
+        measure("IntFilter off-heap count", () -> IntFilter.count(kernel.select(offHeap)));
+        measure("IntStream.filter().toArray()", () -> IntStream.of(data).filter(i -> i % 2 == 1 && i >= 0 && i < 1_000_000).toArray().length);
+        measure("IntFilter filter()", () -> kernel.filter(data).length);
+    }
+
+    private static void measure(String name, IntSupplier run) {
+        for (int i = 0; i < 3; i++) {
+            sink = run.getAsInt();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            sink = run.getAsInt();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(String.format("%-30s %8.2f ms  (%.2f ns/element, result %d)",
+                name, best / 1e6, (double) best / SIZE, sink));
+    }
+}
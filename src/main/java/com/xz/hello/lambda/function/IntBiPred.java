@@ -0,0 +1,26 @@
+package com.xz.hello.lambda.function;
+
+import java.util.Objects;
+
+/**
+ * (int, int) -> boolean
+ */
+@FunctionalInterface
+public interface IntBiPred {
+
+    boolean test(int x, int y);
+
+    default IntBiPred and(IntBiPred other) {
+        Objects.requireNonNull(other);
+        return (x, y) -> test(x, y) && other.test(x, y);
+    }
+
+    default IntBiPred or(IntBiPred other) {
+        Objects.requireNonNull(other);
+        return (x, y) -> test(x, y) || other.test(x, y);
+    }
+
+    default IntBiPred negate() {
+        return (x, y) -> !test(x, y);
+    }
+}
@@ -0,0 +1,60 @@
+package com.xz.hello.lambda.function;
+
+import java.util.Objects;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * (int, int) -> int,和HelloLambda裏的IMath、IMath1一樣的形狀
+ * <p>
+ * jdk的IntBinaryOperator沒有任何組合方法,這裏補上
+ */
+@FunctionalInterface
+public interface IntBinaryOp extends IntBinaryOperator {
+
+    static IntBinaryOp of(IntBinaryOperator operator) {
+        Objects.requireNonNull(operator);
+        return operator instanceof IntBinaryOp ? (IntBinaryOp) operator : operator::applyAsInt;
+    }
+
+    default IntBinaryOp andThen(IntUnaryOperator after) {
+        Objects.requireNonNull(after);
+        return (x, y) -> after.applyAsInt(applyAsInt(x, y));
+    }
+
+    default IntBiPred thenTest(IntPredicate after) {
+        Objects.requireNonNull(after);
+        return (x, y) -> after.test(applyAsInt(x, y));
+    }
+
+    default <R> IntIntToObj<R> thenApply(IntFunction<? extends R> after) {
+        Objects.requireNonNull(after);
+        return (x, y) -> after.apply(applyAsInt(x, y));
+    }
+
+    /**
+     * 兩個參數先各自轉換: compose(f, g).applyAsInt(x, y) 等於 applyAsInt(f(x), g(y))
+     */
+    default IntBinaryOp compose(IntUnaryOperator left, IntUnaryOperator right) {
+        Objects.requireNonNull(left);
+        Objects.requireNonNull(right);
+        return (x, y) -> applyAsInt(left.applyAsInt(x), right.applyAsInt(y));
+    }
+
+    /**
+     * 固定第一個參數,和HelloLambda.cascade裏的柯里化一樣,但不需要Function<Integer, Function<Integer, Integer>>
+     */
+    default IntUnaryOp bindLeft(int x) {
+        return y -> applyAsInt(x, y);
+    }
+
+    default IntUnaryOp bindRight(int y) {
+        return x -> applyAsInt(x, y);
+    }
+
+    default IntBinaryOp flip() {
+        return (x, y) -> applyAsInt(y, x);
+    }
+}
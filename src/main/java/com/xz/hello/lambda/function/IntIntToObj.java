@@ -0,0 +1,18 @@
+package com.xz.hello.lambda.function;
+
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * (int, int) -> Object
+ */
+@FunctionalInterface
+public interface IntIntToObj<R> {
+
+    R apply(int x, int y);
+
+    default <V> IntIntToObj<V> andThen(Function<? super R, ? extends V> after) {
+        Objects.requireNonNull(after);
+        return (x, y) -> after.apply(apply(x, y));
+    }
+}
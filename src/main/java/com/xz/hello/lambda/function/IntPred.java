@@ -0,0 +1,53 @@
+package com.xz.hello.lambda.function;
+
+import java.util.Objects;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * int -> boolean
+ * <p>
+ * jdk的IntPredicate組合之後返回的還是IntPredicate,這裏返回IntPred,可以一直鏈下去,全程不裝箱
+ */
+@FunctionalInterface
+public interface IntPred extends IntPredicate {
+
+    static IntPred of(IntPredicate predicate) {
+        Objects.requireNonNull(predicate);
+        return predicate instanceof IntPred ? (IntPred) predicate : predicate::test;
+    }
+
+    static IntPred not(IntPredicate predicate) {
+        return of(predicate).negate();
+    }
+
+    @Override
+    default IntPred and(IntPredicate other) {
+        Objects.requireNonNull(other);
+        return i -> test(i) && other.test(i);
+    }
+
+    @Override
+    default IntPred or(IntPredicate other) {
+        Objects.requireNonNull(other);
+        return i -> test(i) || other.test(i);
+    }
+
+    @Override
+    default IntPred negate() {
+        return i -> !test(i);
+    }
+
+    default IntPred xor(IntPredicate other) {
+        Objects.requireNonNull(other);
+        return i -> test(i) ^ other.test(i);
+    }
+
+    /**
+     * 先對輸入做轉換再判斷: compose(i -> i % 2).test(x) 等於 test(x % 2)
+     */
+    default IntPred compose(IntUnaryOperator before) {
+        Objects.requireNonNull(before);
+        return i -> test(before.applyAsInt(i));
+    }
+}
@@ -0,0 +1,40 @@
+package com.xz.hello.lambda.function;
+
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+import java.util.function.ToIntFunction;
+
+/**
+ * int -> Object,比如HelloLambda裏的IMoneyFormat
+ * <p>
+ * 輸入一直是int,不會像Function<Integer, String>那樣先裝箱
+ */
+@FunctionalInterface
+public interface IntToObj<R> extends IntFunction<R> {
+
+    @SuppressWarnings("unchecked")
+    static <R> IntToObj<R> of(IntFunction<R> function) {
+        Objects.requireNonNull(function);
+        return function instanceof IntToObj ? (IntToObj<R>) function : function::apply;
+    }
+
+    default <V> IntToObj<V> andThen(Function<? super R, ? extends V> after) {
+        Objects.requireNonNull(after);
+        return i -> after.apply(apply(i));
+    }
+
+    /**
+     * 轉回int: 比如 int -> String -> 長度
+     */
+    default IntUnaryOp thenApplyAsInt(ToIntFunction<? super R> after) {
+        Objects.requireNonNull(after);
+        return i -> after.applyAsInt(apply(i));
+    }
+
+    default IntToObj<R> compose(IntUnaryOperator before) {
+        Objects.requireNonNull(before);
+        return i -> apply(before.applyAsInt(i));
+    }
+}
@@ -0,0 +1,48 @@
+package com.xz.hello.lambda.function;
+
+import java.util.Objects;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * int -> int
+ * <p>
+ * 和IntUnaryOperator一樣,多了接到IntPredicate(thenTest)、IntFunction(thenApply)上的組合
+ * <p>
+ * 不和andThen重載,否則 andThen(i -> i * 2) 這樣的lambda會有二義性
+ */
+@FunctionalInterface
+public interface IntUnaryOp extends IntUnaryOperator {
+
+    static IntUnaryOp of(IntUnaryOperator operator) {
+        Objects.requireNonNull(operator);
+        return operator instanceof IntUnaryOp ? (IntUnaryOp) operator : operator::applyAsInt;
+    }
+
+    static IntUnaryOp identity() {
+        return i -> i;
+    }
+
+    @Override
+    default IntUnaryOp andThen(IntUnaryOperator after) {
+        Objects.requireNonNull(after);
+        return i -> after.applyAsInt(applyAsInt(i));
+    }
+
+    @Override
+    default IntUnaryOp compose(IntUnaryOperator before) {
+        Objects.requireNonNull(before);
+        return i -> applyAsInt(before.applyAsInt(i));
+    }
+
+    default IntPred thenTest(IntPredicate after) {
+        Objects.requireNonNull(after);
+        return i -> after.test(applyAsInt(i));
+    }
+
+    default <R> IntToObj<R> thenApply(IntFunction<? extends R> after) {
+        Objects.requireNonNull(after);
+        return i -> after.apply(applyAsInt(i));
+    }
+}
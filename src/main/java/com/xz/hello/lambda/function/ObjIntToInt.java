@@ -0,0 +1,32 @@
+package com.xz.hello.lambda.function;
+
+import java.util.Objects;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * (Object, int) -> int,比如Dog::eat
+ * <p>
+ * 代替BiFunction<Dog, Integer, Integer>,int參數和返回值都不裝箱
+ */
+@FunctionalInterface
+public interface ObjIntToInt<T> {
+
+    int applyAsInt(T t, int value);
+
+    default ObjIntToInt<T> andThen(IntUnaryOperator after) {
+        Objects.requireNonNull(after);
+        return (t, i) -> after.applyAsInt(applyAsInt(t, i));
+    }
+
+    default ObjIntToInt<T> compose(IntUnaryOperator before) {
+        Objects.requireNonNull(before);
+        return (t, i) -> applyAsInt(t, before.applyAsInt(i));
+    }
+
+    /**
+     * 綁定對象,和dog::eat一樣得到一個IntUnaryOp
+     */
+    default IntUnaryOp bind(T t) {
+        return i -> applyAsInt(t, i);
+    }
+}
@@ -0,0 +1,44 @@
+package com.xz.hello.lambda.function;
+
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Object -> int,比如 String::length
+ * <p>
+ * 結果一直是int,後面接IntUnaryOperator、IntPredicate都不會裝箱
+ */
+@FunctionalInterface
+public interface ObjToInt<T> extends ToIntFunction<T> {
+
+    @SuppressWarnings("unchecked")
+    static <T> ObjToInt<T> of(ToIntFunction<T> function) {
+        Objects.requireNonNull(function);
+        return function instanceof ObjToInt ? (ObjToInt<T>) function : function::applyAsInt;
+    }
+
+    default ObjToInt<T> andThen(IntUnaryOperator after) {
+        Objects.requireNonNull(after);
+        return t -> after.applyAsInt(applyAsInt(t));
+    }
+
+    default <R> Function<T, R> thenApply(IntFunction<? extends R> after) {
+        Objects.requireNonNull(after);
+        return t -> after.apply(applyAsInt(t));
+    }
+
+    default Predicate<T> thenTest(IntPredicate after) {
+        Objects.requireNonNull(after);
+        return t -> after.test(applyAsInt(t));
+    }
+
+    default <V> ObjToInt<V> compose(Function<? super V, ? extends T> before) {
+        Objects.requireNonNull(before);
+        return v -> applyAsInt(before.apply(v));
+    }
+}
@@ -0,0 +1,386 @@
+package com.xz.hello.lambda.group;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * int鍵的開放尋址哈希表,每個鍵保存 count/sum/min/max 四個聚合值
+ * <p>
+ * 代替 boxed().collect(groupingBy(...)): 每個元素不會分配Integer、List或者Map.Entry,
+ * 所有數據放在幾個連續的數組裏(或者一塊堆外內存裏),線性探測,負載因子超過0.5時擴容
+ * <p>
+ * 通過 IntGrouping 創建,配合 IntStream.collect 使用,並行流的子流各自聚合,最後用 merge 合併
+ */
+public abstract class IntGroupMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * 表的大小,總是2的冪
+     */
+    int capacity;
+
+    int mask;
+
+    int size;
+
+    IntGroupMap(int expectedKeys) {
+        int cap = MIN_CAPACITY;
+        while (cap < expectedKeys * 2) {
+            cap <<= 1;
+        }
+        this.capacity = cap;
+        this.mask = cap - 1;
+    }
+
+    static IntGroupMap heap(int expectedKeys) {
+        return new Heap(expectedKeys);
+    }
+
+    static IntGroupMap offHeap(int expectedKeys) {
+        return new OffHeap(expectedKeys);
+    }
+
+    /**
+     * 把value累加到key的分組上
+     */
+    public void add(int key, int value) {
+        int slot = findOrInsert(key);
+        accumulate(slot, 1, value, value, value);
+    }
+
+    /**
+     * 合併另一個表,並行流的combiner
+     */
+    public void merge(IntGroupMap other) {
+        for (int slot = 0; slot < other.capacity; slot++) {
+            if (other.countAt(slot) != 0) {
+                int target = findOrInsert(other.keyAt(slot));
+                accumulate(target, other.countAt(slot), other.sumAt(slot), other.minAt(slot), other.maxAt(slot));
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int key) {
+        return find(key) >= 0;
+    }
+
+    public long count(int key) {
+        int slot = find(key);
+        return slot < 0 ? 0 : countAt(slot);
+    }
+
+    public long sum(int key) {
+        int slot = find(key);
+        return slot < 0 ? 0 : sumAt(slot);
+    }
+
+    public int min(int key) {
+        int slot = find(key);
+        if (slot < 0) {
+            throw new IllegalArgumentException("no such key: " + key);
+        }
+        return (int) minAt(slot);
+    }
+
+    public int max(int key) {
+        int slot = find(key);
+        if (slot < 0) {
+            throw new IllegalArgumentException("no such key: " + key);
+        }
+        return (int) maxAt(slot);
+    }
+
+    public double average(int key) {
+        long count = count(key);
+        return count == 0 ? 0 : (double) sum(key) / count;
+    }
+
+    public int[] keys() {
+        int[] keys = new int[size];
+        int n = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            if (countAt(slot) != 0) {
+                keys[n++] = keyAt(slot);
+            }
+        }
+        return keys;
+    }
+
+    public void forEach(GroupConsumer consumer) {
+        for (int slot = 0; slot < capacity; slot++) {
+            long count = countAt(slot);
+            if (count != 0) {
+                consumer.accept(keyAt(slot), count, sumAt(slot), (int) minAt(slot), (int) maxAt(slot));
+            }
+        }
+    }
+
+    /**
+     * 按鍵排序的 鍵 -> 個數,只用來打印和測試
+     */
+    public Map<Integer, Long> toCountMap() {
+        Map<Integer, Long> map = new TreeMap<>();
+        forEach((key, count, sum, min, max) -> map.put(key, count));
+        return map;
+    }
+
+    /**
+     * 表本身佔用的字節數
+     */
+    public abstract long bytes();
+
+    @FunctionalInterface
+    public interface GroupConsumer {
+        void accept(int key, long count, long sum, int min, int max);
+    }
+
+    private int find(int key) {
+        int slot = hash(key) & mask;
+        for (;;) {
+            if (countAt(slot) == 0) {
+                return -1;
+            }
+            if (keyAt(slot) == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int findOrInsert(int key) {
+        int slot = hash(key) & mask;
+        for (;;) {
+            if (countAt(slot) == 0) {
+                if ((size + 1) * 2 > capacity) {
+                    grow();
+                    return findOrInsert(key);
+                }
+                size++;
+                init(slot, key);
+                return slot;
+            }
+            if (keyAt(slot) == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * murmur3的混淆函數,避免連續的鍵擠在一起
+     */
+    private static int hash(int key) {
+        int h = key * 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    private void grow() {
+        IntGroupMap old = copyForGrow();
+        capacity <<= 1;
+        mask = capacity - 1;
+        size = 0;
+        allocate(capacity);
+        merge(old);
+    }
+
+    abstract IntGroupMap copyForGrow();
+
+    abstract void allocate(int capacity);
+
+    abstract int keyAt(int slot);
+
+    abstract long countAt(int slot);
+
+    abstract long sumAt(int slot);
+
+    abstract long minAt(int slot);
+
+    abstract long maxAt(int slot);
+
+    /**
+     * 新插入的槽位: count為0表示空槽,所以這裏只寫鍵,min/max初始化為極值
+     */
+    abstract void init(int slot, int key);
+
+    abstract void accumulate(int slot, long count, long sum, long min, long max);
+
+    /**
+     * 堆上的實現,每個字段一個數組
+     */
+    static final class Heap extends IntGroupMap {
+
+        int[] keys;
+        long[] counts;
+        long[] sums;
+        int[] mins;
+        int[] maxs;
+
+        Heap(int expectedKeys) {
+            super(expectedKeys);
+            allocate(capacity);
+        }
+
+        private Heap(Heap from) {
+            super(0);
+            this.capacity = from.capacity;
+            this.mask = from.mask;
+            this.size = from.size;
+            this.keys = from.keys;
+            this.counts = from.counts;
+            this.sums = from.sums;
+            this.mins = from.mins;
+            this.maxs = from.maxs;
+        }
+
+        @Override
+        IntGroupMap copyForGrow() {
+            return new Heap(this);
+        }
+
+        @Override
+        void allocate(int capacity) {
+            keys = new int[capacity];
+            counts = new long[capacity];
+            sums = new long[capacity];
+            mins = new int[capacity];
+            maxs = new int[capacity];
+        }
+
+        @Override
+        int keyAt(int slot) {
+            return keys[slot];
+        }
+
+        @Override
+        long countAt(int slot) {
+            return counts[slot];
+        }
+
+        @Override
+        long sumAt(int slot) {
+            return sums[slot];
+        }
+
+        @Override
+        long minAt(int slot) {
+            return mins[slot];
+        }
+
+        @Override
+        long maxAt(int slot) {
+            return maxs[slot];
+        }
+
+        @Override
+        void init(int slot, int key) {
+            keys[slot] = key;
+            mins[slot] = Integer.MAX_VALUE;
+            maxs[slot] = Integer.MIN_VALUE;
+        }
+
+        @Override
+        void accumulate(int slot, long count, long sum, long min, long max) {
+            counts[slot] += count;
+            sums[slot] += sum;
+            mins[slot] = Math.min(mins[slot], (int) min);
+            maxs[slot] = Math.max(maxs[slot], (int) max);
+        }
+
+        @Override
+        public long bytes() {
+            return (long) capacity * (4 + 8 + 8 + 4 + 4);
+        }
+    }
+
+    /**
+     * 堆外的實現,每個槽位32字節: key(4) min(4) max(4) 空(4) count(8) sum(8)
+     * <p>
+     * 數據不在Java堆上,不會增加GC需要掃描和複製的數據量
+     */
+    static final class OffHeap extends IntGroupMap {
+
+        private static final int SLOT = 32;
+
+        ByteBuffer buffer;
+
+        OffHeap(int expectedKeys) {
+            super(expectedKeys);
+            allocate(capacity);
+        }
+
+        private OffHeap(OffHeap from) {
+            super(0);
+            this.capacity = from.capacity;
+            this.mask = from.mask;
+            this.size = from.size;
+            this.buffer = from.buffer;
+        }
+
+        @Override
+        IntGroupMap copyForGrow() {
+            return new OffHeap(this);
+        }
+
+        @Override
+        void allocate(int capacity) {
+            //allocateDirect的內容保證是0,所以所有槽位一開始都是空的
+            buffer = ByteBuffer.allocateDirect(capacity * SLOT).order(ByteOrder.nativeOrder());
+        }
+
+        @Override
+        int keyAt(int slot) {
+            return buffer.getInt(slot * SLOT);
+        }
+
+        @Override
+        long countAt(int slot) {
+            return buffer.getLong(slot * SLOT + 16);
+        }
+
+        @Override
+        long sumAt(int slot) {
+            return buffer.getLong(slot * SLOT + 24);
+        }
+
+        @Override
+        long minAt(int slot) {
+            return buffer.getInt(slot * SLOT + 4);
+        }
+
+        @Override
+        long maxAt(int slot) {
+            return buffer.getInt(slot * SLOT + 8);
+        }
+
+        @Override
+        void init(int slot, int key) {
+            int base = slot * SLOT;
+            buffer.putInt(base, key);
+            buffer.putInt(base + 4, Integer.MAX_VALUE);
+            buffer.putInt(base + 8, Integer.MIN_VALUE);
+        }
+
+        @Override
+        void accumulate(int slot, long count, long sum, long min, long max) {
+            int base = slot * SLOT;
+            buffer.putLong(base + 16, buffer.getLong(base + 16) + count);
+            buffer.putLong(base + 24, buffer.getLong(base + 24) + sum);
+            buffer.putInt(base + 4, Math.min(buffer.getInt(base + 4), (int) min));
+            buffer.putInt(base + 8, Math.max(buffer.getInt(base + 8), (int) max));
+        }
+
+        @Override
+        public long bytes() {
+            return (long) capacity * SLOT;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.xz.hello.lambda.group;
+
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * IntStream的分組聚合,不裝箱
+ * <p>
+ * IntStream沒有collect(Collector),只有 collect(supplier, accumulator, combiner),這裏把三個函數準備好:
+ * <p>
+ * IntGroupMap byTens = IntGrouping.by(i -> i / 10).collect(IntStream.range(0, 100));
+ * <p>
+ * 等價於 boxed().collect(groupingBy(i -> i / 10, summarizingInt(i -> i))),並行流也可以直接用
+ */
+public class IntGrouping {
+
+    private final IntUnaryOperator keyMapper;
+
+    private final IntUnaryOperator valueMapper;
+
+    private final boolean offHeap;
+
+    private final int expectedKeys;
+
+    private IntGrouping(IntUnaryOperator keyMapper, IntUnaryOperator valueMapper, boolean offHeap, int expectedKeys) {
+        this.keyMapper = keyMapper;
+        this.valueMapper = valueMapper;
+        this.offHeap = offHeap;
+        this.expectedKeys = expectedKeys;
+    }
+
+    /**
+     * 按key分組,聚合元素本身
+     */
+    public static IntGrouping by(IntUnaryOperator keyMapper) {
+        return new IntGrouping(keyMapper, IntUnaryOperator.identity(), false, 16);
+    }
+
+    /**
+     * 直方圖: 按 floorDiv(元素, bucketWidth) 分桶計數
+     */
+    public static IntGrouping histogram(int bucketWidth) {
+        if (bucketWidth <= 0) {
+            throw new IllegalArgumentException("bucketWidth must be positive: " + bucketWidth);
+        }
+        return by(i -> Math.floorDiv(i, bucketWidth));
+    }
+
+    /**
+     * 聚合的值,默認是元素本身
+     */
+    public IntGrouping values(IntUnaryOperator valueMapper) {
+        return new IntGrouping(keyMapper, valueMapper, offHeap, expectedKeys);
+    }
+
+    /**
+     * 表放在堆外內存
+     */
+    public IntGrouping offHeap() {
+        return new IntGrouping(keyMapper, valueMapper, true, expectedKeys);
+    }
+
+    /**
+     * 預估的鍵個數,避免聚合過程中擴容
+     */
+    public IntGrouping expectedKeys(int expectedKeys) {
+        return new IntGrouping(keyMapper, valueMapper, offHeap, expectedKeys);
+    }
+
+    public IntGroupMap collect(IntStream stream) {
+        IntUnaryOperator key = keyMapper;
+        IntUnaryOperator value = valueMapper;
+        return stream.collect(this::newMap,
+                (map, i) -> map.add(key.applyAsInt(i), value.applyAsInt(i)),
+                IntGroupMap::merge);
+    }
+
+    private IntGroupMap newMap() {
+        return offHeap ? IntGroupMap.offHeap(expectedKeys) : IntGroupMap.heap(expectedKeys);
+    }
+}
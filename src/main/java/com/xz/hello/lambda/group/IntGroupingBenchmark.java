@@ -0,0 +1,94 @@
+package com.xz.hello.lambda.group;
+
+import java.lang.management.ManagementFactory;
+import java.util.IntSummaryStatistics;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Collectors.groupingBy 和 IntGrouping 的對比
+ * <p>
+ * 按 i % keys 分組求 count/sum/min/max,記錄耗時和當前線程分配的字節數(只統計順序流,並行流的分配在ForkJoin線程上)
+ * <p>
+ * 參數: [鍵的個數],默認1000
+ */
+public class IntGroupingBenchmark {
+
+    private static final int SIZE = 10_000_000;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        Random random = new Random(42);
+        int[] data = new int[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            data[i] = random.nextInt(1_000_000);
+        }
+
+        measure("groupingBy(summarizingInt)", () -> IntStream.of(data).boxed()
+                .collect(Collectors.groupingBy(i -> i % keys, Collectors.summarizingInt(i -> i))));
+        measure("groupingBy(toList)", () -> IntStream.of(data).boxed()
+                .collect(Collectors.groupingBy(i -> i % keys)));
+        measure("IntGrouping heap", () -> IntGrouping.by(i -> i % keys).collect(IntStream.of(data)));
+        measure("IntGrouping off-heap", () -> IntGrouping.by(i -> i % keys).offHeap().collect(IntStream.of(data)));
+        measure("parallel groupingBy", () -> IntStream.of(data).parallel().boxed()
+                .collect(Collectors.groupingByConcurrent(i -> i % keys, Collectors.summarizingInt(i -> i))));
+        measure("parallel IntGrouping heap", () -> IntGrouping.by(i -> i % keys).collect(IntStream.of(data).parallel()));
+        measure("parallel IntGrouping off-heap", () -> IntGrouping.by(i -> i % keys).offHeap().collect(IntStream.of(data).parallel()));
+
+        Map<Integer, IntSummaryStatistics> boxed = IntStream.of(data).boxed()
+                .collect(Collectors.groupingBy(i -> i % keys, Collectors.summarizingInt(i -> i)));
+        IntGroupMap primitive = IntGrouping.by(i -> i % keys).collect(IntStream.of(data));
+        System.out.println(String.format("result retained: groupingBy ~%d KB, IntGrouping %d KB",
+                retained(() -> IntStream.of(data).boxed()
+                        .collect(Collectors.groupingBy(i -> i % keys, Collectors.summarizingInt(i -> i)))) / 1024,
+                primitive.bytes() / 1024));
+        sink = boxed;
+    }
+
+    private static void measure(String name, Supplier<Object> run) {
+        for (int i = 0; i < 3; i++) {
+            sink = run.get();
+        }
+        long best = Long.MAX_VALUE;
+        long allocated = 0;
+        for (int i = 0; i < 5; i++) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            sink = run.get();
+            best = Math.min(best, System.nanoTime() - start);
+            allocated = allocatedBytes() - bytes;
+        }
+        System.out.println(String.format("%-30s %8.2f ms  (%.2f ns/element, %8.1f MB allocated by caller)",
+                name, best / 1e6, (double) best / SIZE, allocated / 1024.0 / 1024.0));
+    }
+
+    /**
+     * 結果保留在堆上的大小,GC前後的差值,只是估算
+     */
+    private static long retained(Supplier<Object> run) {
+        System.gc();
+        long before = usedHeap();
+        Object result = run.get();
+        System.gc();
+        long after = usedHeap();
+        sink = result;
+        return Math.max(0, after - before);
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
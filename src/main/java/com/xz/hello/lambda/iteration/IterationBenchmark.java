@@ -0,0 +1,64 @@
+package com.xz.hello.lambda.iteration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * 比較外部迭代(for循環)、串行流、並行流、ForkJoin分治四種方式
+ * <p>
+ * 維度: 數據量(10到1000萬)、元素類型(int[] 和 List<Integer>)、每個元素的計算量(IterationStrategy.Cost)
+ * <p>
+ * 輸出每個組合的耗時(微秒,5次取最好),最後打印 IterationStrategy.calibrate() 量出來的臨界點
+ */
+public class IterationBenchmark {
+
+    private static final int[] SIZES = {10, 1_000, 100_000, 10_000_000};
+
+    private static volatile long sink;
+
+    public static void main(String[] args) {
+        System.out.println("parallelism: " + ForkJoinPool.getCommonPoolParallelism());
+        System.out.println(String.format("%-8s %-14s %10s %12s %12s %12s %12s",
+                "cost", "type", "size", "for", "sequential", "parallel", "forkJoin"));
+        for (IterationStrategy.Cost cost : IterationStrategy.Cost.values()) {
+            int units = cost.units;
+            for (int size : SIZES) {
+                if ((long) size * (units + 1) > 2_000_000_000L) {
+                    continue;
+                }
+                int[] array = IntStream.range(0, size).toArray();
+                System.out.println(String.format("%-8s %-14s %10d %12d %12d %12d %12d", cost, "int[]", size,
+                        micros(() -> Workloads.forLoop(array, units)),
+                        micros(() -> Workloads.sequential(array, units)),
+                        micros(() -> Workloads.parallel(array, units)),
+                        micros(() -> Workloads.forkJoin(array, units))));
+                if (size <= 1_000_000 * 10 / (units + 1)) {
+                    List<Integer> list = IntStream.range(0, size).boxed().collect(Collectors.toCollection(ArrayList::new));
+                    System.out.println(String.format("%-8s %-14s %10d %12d %12d %12d %12s", cost, "List<Integer>", size,
+                            micros(() -> Workloads.forLoop(list, units)),
+                            micros(() -> Workloads.sequential(list, units)),
+                            micros(() -> Workloads.parallel(list, units)),
+                            "-"));
+                }
+            }
+        }
+        System.out.println("calibrated: " + IterationStrategy.calibrate());
+    }
+
+    private static long micros(LongSupplier run) {
+        for (int i = 0; i < 3; i++) {
+            sink = run.getAsLong();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            sink = run.getAsLong();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1000;
+    }
+}
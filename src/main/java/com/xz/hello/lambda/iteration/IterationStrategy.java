@@ -0,0 +1,125 @@
+package com.xz.hello.lambda.iteration;
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.LongSupplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * 根據數據量和每個元素的計算量選擇串行流還是並行流
+ * <p>
+ * 並行流要拆分任務、線程間傳遞和合併結果,數據少或者每個元素很便宜時反而更慢
+ * <p>
+ * 這裏對三檔計算量各記錄一個臨界點(crossover),數據量達到臨界點才用並行流:
+ * <p>
+ * 1--defaults() 使用 IterationBenchmark 在多核機器上量出來的數量級,只有一個核時永遠不並行
+ * <p>
+ * 2--calibrate() 在當前機器上現場測量臨界點,大約需要幾秒鐘,適合在啟動時做一次
+ */
+public class IterationStrategy {
+
+    /**
+     * 每個元素大概的計算量
+     */
+    public enum Cost {
+        /**
+         * 只是求和、比較這樣的操作,幾納秒
+         */
+        TRIVIAL(0),
+        /**
+         * 幾十到一百納秒,比如一次map加一次簡單的計算
+         */
+        LIGHT(20),
+        /**
+         * 微秒級別,比如解析字符串、複雜計算
+         */
+        HEAVY(1000);
+
+        final int units;
+
+        Cost(int units) {
+            this.units = units;
+        }
+    }
+
+    private static final int SEQUENTIAL_ONLY = Integer.MAX_VALUE;
+
+    private final int[] crossovers;
+
+    public IterationStrategy(int trivialCrossover, int lightCrossover, int heavyCrossover) {
+        this.crossovers = new int[]{trivialCrossover, lightCrossover, heavyCrossover};
+    }
+
+    public static IterationStrategy defaults() {
+        if (ForkJoinPool.getCommonPoolParallelism() <= 1) {
+            return new IterationStrategy(SEQUENTIAL_ONLY, SEQUENTIAL_ONLY, SEQUENTIAL_ONLY);
+        }
+        return new IterationStrategy(1 << 20, 1 << 13, 64);
+    }
+
+    /**
+     * 對每一檔計算量,數據量從64開始每次乘4,找到並行流穩定快過串行流10%以上的最小數據量
+     */
+    public static IterationStrategy calibrate() {
+        if (ForkJoinPool.getCommonPoolParallelism() <= 1) {
+            return defaults();
+        }
+        Cost[] costs = Cost.values();
+        int[] result = new int[costs.length];
+        for (int c = 0; c < costs.length; c++) {
+            int units = costs[c].units;
+            result[c] = SEQUENTIAL_ONLY;
+            long budget = 4_000_000_000L / Math.max(1, units);
+            for (int size = 64; (long) size * (units + 1) <= budget && size <= 1 << 24; size <<= 2) {
+                int[] data = IntStream.range(0, size).toArray();
+                long sequential = best(() -> Workloads.sequential(data, units));
+                long parallel = best(() -> Workloads.parallel(data, units));
+                if (parallel * 10 < sequential * 9) {
+                    result[c] = size;
+                    break;
+                }
+            }
+        }
+        return new IterationStrategy(result[0], result[1], result[2]);
+    }
+
+    private static long best(LongSupplier run) {
+        long best = Long.MAX_VALUE;
+        long blackhole = 0;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            blackhole += run.getAsLong();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        //結果參與返回值,防止JIT把計算消除掉
+        return best + (blackhole == 42 ? 1 : 0);
+    }
+
+    public boolean isParallel(long size, Cost cost) {
+        return size >= crossovers[cost.ordinal()];
+    }
+
+    public int crossover(Cost cost) {
+        return crossovers[cost.ordinal()];
+    }
+
+    public IntStream stream(int[] data, Cost cost) {
+        IntStream stream = IntStream.of(data);
+        return isParallel(data.length, cost) ? stream.parallel() : stream;
+    }
+
+    public <T> Stream<T> stream(Collection<T> data, Cost cost) {
+        return isParallel(data.size(), cost) ? data.parallelStream() : data.stream();
+    }
+
+    @Override
+    public String toString() {
+        return "crossover TRIVIAL=" + format(crossovers[0]) + ", LIGHT=" + format(crossovers[1])
+                + ", HEAVY=" + format(crossovers[2]);
+    }
+
+    private static String format(int crossover) {
+        return crossover == SEQUENTIAL_ONLY ? "never" : String.valueOf(crossover);
+    }
+}
@@ -0,0 +1,106 @@
+package com.xz.hello.lambda.iteration;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+
+/**
+ * IterationBenchmark和IterationStrategy.calibrate()共用的幾種迭代方式
+ * <p>
+ * 每個元素的計算量用cost表示: 0是只求和,每加1多做一輪整數混合運算
+ */
+final class Workloads {
+
+    private Workloads() {
+    }
+
+    static long work(int x, int cost) {
+        long h = x;
+        for (int i = 0; i < cost; i++) {
+            h = h * 0x9E3779B97F4A7C15L + i;
+            h ^= h >>> 29;
+        }
+        return h;
+    }
+
+    /**
+     * HelloStream.iteOutSide 的外部迭代
+     */
+    static long forLoop(int[] data, int cost) {
+        long sum = 0;
+        for (int x : data) {
+            sum += work(x, cost);
+        }
+        return sum;
+    }
+
+    static long forLoop(List<Integer> data, int cost) {
+        long sum = 0;
+        for (Integer x : data) {
+            sum += work(x, cost);
+        }
+        return sum;
+    }
+
+    /**
+     * HelloStream.iteInSide 的內部迭代
+     */
+    static long sequential(int[] data, int cost) {
+        return IntStream.of(data).mapToLong(x -> work(x, cost)).sum();
+    }
+
+    static long sequential(List<Integer> data, int cost) {
+        return data.stream().mapToLong(x -> work(x, cost)).sum();
+    }
+
+    static long parallel(int[] data, int cost) {
+        return IntStream.of(data).parallel().mapToLong(x -> work(x, cost)).sum();
+    }
+
+    static long parallel(List<Integer> data, int cost) {
+        return data.parallelStream().mapToLong(x -> work(x, cost)).sum();
+    }
+
+    static long forkJoin(int[] data, int cost) {
+        return ForkJoinPool.commonPool().invoke(new SumTask(data, 0, data.length, cost));
+    }
+
+    /**
+     * 手寫的分治求和,小於THRESHOLD就直接循環
+     */
+    static final class SumTask extends RecursiveTask<Long> {
+
+        private static final long serialVersionUID = 1L;
+
+        static final int THRESHOLD = 8192;
+
+        final int[] data;
+        final int from;
+        final int to;
+        final int cost;
+
+        SumTask(int[] data, int from, int to, int cost) {
+            this.data = data;
+            this.from = from;
+            this.to = to;
+            this.cost = cost;
+        }
+
+        @Override
+        protected Long compute() {
+            if ((long) (to - from) * (cost + 1) <= THRESHOLD) {
+                long sum = 0;
+                for (int i = from; i < to; i++) {
+                    sum += work(data[i], cost);
+                }
+                return sum;
+            }
+            int mid = (from + to) >>> 1;
+            SumTask left = new SumTask(data, from, mid, cost);
+            left.fork();
+            long right = new SumTask(data, mid, to, cost).compute();
+            return left.join() + right;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.xz.hello.lambda.pool;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * 獨立的ForkJoin線程池,用來跑並行流
+ * <p>
+ * HelloStream.createStream 裏的 list.parallelStream() 永遠在 ForkJoinPool.commonPool() 上執行,
+ * 一個很重的並行聚合會把公共池佔滿,其他並行流和 CompletableFuture 的默認任務都要排隊
+ * <p>
+ * 並行流的終止操作如果是在某個ForkJoinPool的線程裏調用的,拆分出來的子任務就都在這個池裏執行,所以:
+ * <p>
+ * pool.invoke(() -> list.parallelStream().mapToInt(...).sum())
+ * <p>
+ * 就把整個流水綫隔離在這個池裏了
+ * <p>
+ * 另外:
+ * <p>
+ * 1--統計池的竊取次數、排隊任務數、活躍線程數
+ * <p>
+ * 2--可選的阻塞檢測: 定時採樣池裏線程的狀態,線程處於 sleep/wait/鎖等待 或者停在阻塞IO的本地方法上,
+ * 而且不是ForkJoin自己的空閒等待和join等待,就記錄一次阻塞和當時的調用棧
+ */
+public class IsolatedPool implements AutoCloseable {
+
+    private final String name;
+
+    private final ForkJoinPool pool;
+
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder blockingDetected = new LongAdder();
+
+    private final List<Consumer<BlockingEvent>> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile ScheduledExecutorService sampler;
+
+    public IsolatedPool(String name, int parallelism) {
+        this.name = name;
+        AtomicInteger index = new AtomicInteger();
+        this.pool = new ForkJoinPool(parallelism, p -> {
+            ForkJoinWorkerThread thread = new ForkJoinWorkerThread(p) {
+                @Override
+                protected void onTermination(Throwable exception) {
+                    threads.remove(this);
+                    super.onTermination(exception);
+                }
+            };
+            thread.setName(name + "-" + index.incrementAndGet());
+            threads.add(thread);
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * 在池裏執行一個並行流水綫並等待結果,流水綫裏的異常原樣拋出
+     */
+    public <T> T invoke(Supplier<T> pipeline) {
+        try {
+            return pool.submit(pipeline::get).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(name + " interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    public void run(Runnable pipeline) {
+        invoke(() -> {
+            pipeline.run();
+            return null;
+        });
+    }
+
+    /**
+     * 打開阻塞檢測,每隔interval採樣一次
+     */
+    public synchronized IsolatedPool detectBlocking(long interval, TimeUnit unit) {
+        if (sampler == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, name + "-blocking-detector");
+                t.setDaemon(true);
+                return t;
+            });
+            executor.scheduleWithFixedDelay(this::sample, interval, interval, unit);
+            sampler = executor;
+        }
+        return this;
+    }
+
+    public IsolatedPool onBlocking(Consumer<BlockingEvent> listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    private void sample() {
+        long[] ids = threads.stream().mapToLong(Thread::getId).toArray();
+        //ThreadInfo裏的狀態和調用棧是同一時刻的快照,分開取Thread.getState()和getStackTrace()會對不上
+        for (ThreadInfo info : ManagementFactory.getThreadMXBean().getThreadInfo(ids, Integer.MAX_VALUE)) {
+            if (info == null) {
+                continue;
+            }
+            Thread.State state = info.getThreadState();
+            StackTraceElement[] stack = info.getStackTrace();
+            if (isBlocking(state, stack)) {
+                blockingDetected.increment();
+                BlockingEvent event = new BlockingEvent(info.getThreadName(), state, stack);
+                for (Consumer<BlockingEvent> listener : listeners) {
+                    listener.accept(event);
+                }
+            }
+        }
+    }
+
+    static boolean isBlocking(Thread.State state, StackTraceElement[] stack) {
+        if (stack.length == 0) {
+            return false;
+        }
+        if (state == Thread.State.RUNNABLE) {
+            StackTraceElement top = stack[0];
+            String cls = top.getClassName();
+            return top.isNativeMethod() && (cls.startsWith("java.io.") || cls.startsWith("java.net.")
+                    || cls.startsWith("sun.nio.ch.") || cls.startsWith("sun.nio.fs."));
+        }
+        if (state != Thread.State.WAITING && state != Thread.State.TIMED_WAITING && state != Thread.State.BLOCKED) {
+            return false;
+        }
+        for (StackTraceElement frame : stack) {
+            String cls = frame.getClassName();
+            String method = frame.getMethodName();
+            //空閒線程在awaitWork裏等任務,join時在awaitJoin/awaitDone裏等子任務,都不算阻塞
+            if (cls.equals("java.util.concurrent.ForkJoinPool")
+                    && (method.equals("awaitWork") || method.equals("awaitJoin") || method.equals("runWorker"))) {
+                return false;
+            }
+            if (cls.equals("java.util.concurrent.ForkJoinTask")
+                    && (method.equals("awaitDone") || method.equals("internalWait") || method.equals("externalAwaitDone"))) {
+                return false;
+            }
+            if (cls.startsWith("java.util.concurrent.") || cls.startsWith("java.lang.Object")
+                    || cls.startsWith("java.lang.Thread") || cls.startsWith("jdk.internal.misc.") || cls.startsWith("sun.misc.")) {
+                continue;
+            }
+            //第一個不屬於jdk並發包的調用者就是真正發起阻塞的代碼
+            return true;
+        }
+        return true;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public long getStealCount() {
+        return pool.getStealCount();
+    }
+
+    public long getQueuedTaskCount() {
+        return pool.getQueuedTaskCount();
+    }
+
+    public int getActiveThreadCount() {
+        return pool.getActiveThreadCount();
+    }
+
+    public int getPoolSize() {
+        return pool.getPoolSize();
+    }
+
+    public long getBlockingDetected() {
+        return blockingDetected.sum();
+    }
+
+    public List<String> getThreadNames() {
+        List<String> names = new ArrayList<>();
+        for (Thread thread : threads) {
+            names.add(thread.getName());
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": parallelism=" + getParallelism() + ", poolSize=" + getPoolSize()
+                + ", active=" + getActiveThreadCount() + ", queued=" + getQueuedTaskCount()
+                + ", steals=" + getStealCount() + ", blocking=" + getBlockingDetected();
+    }
+
+    @Override
+    public void close() {
+        ScheduledExecutorService s = sampler;
+        if (s != null) {
+            s.shutdownNow();
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * 一次阻塞檢測的結果
+     */
+    public static final class BlockingEvent {
+
+        private final String threadName;
+
+        private final Thread.State state;
+
+        private final StackTraceElement[] stack;
+
+        BlockingEvent(String threadName, Thread.State state, StackTraceElement[] stack) {
+            this.threadName = threadName;
+            this.state = state;
+            this.stack = stack;
+        }
+
+        public String getThreadName() {
+            return threadName;
+        }
+
+        public Thread.State getState() {
+            return state;
+        }
+
+        public StackTraceElement[] getStack() {
+            return stack.clone();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("blocking call on ").append(threadName).append(" (").append(state).append(")");
+            for (int i = 0; i < Math.min(stack.length, 8); i++) {
+                sb.append("\n\tat ").append(stack[i]);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.xz.hello.reactor;
+
+import org.reactivestreams.Publisher;
+import reactor.core.CoreSubscriber;
+import reactor.core.Scannable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Operators;
+
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * 用 Operators.lift 实现的操作符,包装的 Subscriber 不支持融合(fusion)时用这里组装
+ * <p>
+ * 源可以融合(比如 Flux.range)时,Operators.lift 返回的 FluxLiftFuseable 本身也是 Fuseable,下游在组装时就会选用
+ * 可融合的实现(比如 take 变成 FluxTakeFuseable),订阅时把收到的 Subscription 强转成 QueueSubscription,
+ * 而包装的 Subscriber 不是,会抛出 ClassCastException;FluxLiftFuseable 只用 SuppressFuseableSubscriber 处理了上游一侧
+ * <p>
+ * 所以先 hide(),lift 返回普通的 FluxLift,下游按不可融合的源组装,代价是多一层 HideSubscriber
+ */
+public final class NonFuseableLift {
+
+    private NonFuseableLift() {
+    }
+
+    public static <I, O> Function<Flux<I>, Flux<O>> operator(
+            BiFunction<Scannable, ? super CoreSubscriber<? super O>, ? extends CoreSubscriber<? super I>> lifter) {
+        Function<? super Publisher<I>, ? extends Publisher<O>> lift = Operators.lift(lifter);
+        return flux -> Flux.from(lift.apply(flux.hide()));
+    }
+}
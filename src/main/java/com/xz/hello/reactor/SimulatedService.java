@@ -0,0 +1,107 @@
+package com.xz.hello.reactor;
+
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地模拟的外部服务,用来代替 testError2 注释里的 callExternalService(k)
+ * <p>
+ * 延迟和失败率都可以在运行时修改,方便模拟服务变慢或者整体不可用的情况
+ * <p>
+ * 设置了处理能力(capacity)时,同时处理的请求超过它就要排队: 延迟变成 latency x ceil(并发数 / capacity),
+ * 超过 capacity x OVERLOAD_FACTOR 时服务端队列满,1毫秒后拒绝
+ */
+public class SimulatedService {
+
+    private static final int OVERLOAD_FACTOR = 4;
+
+    private volatile long latencyMillis;
+
+    private volatile double failureRate;
+
+    private volatile int capacity;
+
+    private final AtomicLong calls = new AtomicLong();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public SimulatedService(long latencyMillis, double failureRate) {
+        this.latencyMillis = latencyMillis;
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * 模拟一次调用,延迟之后返回 "key -> 调用序号",或者按失败率抛出异常
+     */
+    public Mono<String> call(String key) {
+        return Mono.defer(() -> {
+            long n = calls.incrementAndGet();
+            int concurrent = inFlight.incrementAndGet();
+            int cap = capacity;
+            if (cap > 0 && concurrent > cap * OVERLOAD_FACTOR) {
+                //拒绝也要一个来回,不会立即返回
+                return Mono.<String>error(new IllegalStateException("service overloaded: " + key))
+                        .delaySubscription(Duration.ofMillis(1))
+                        .doFinally(signal -> inFlight.decrementAndGet());
+            }
+            long latency = cap > 0 ? latencyMillis * ((concurrent + cap - 1) / cap) : latencyMillis;
+            Mono<String> result = ThreadLocalRandom.current().nextDouble() < failureRate
+                    ? Mono.error(new IllegalStateException("service unavailable: " + key))
+                    : Mono.just(key + " -> " + n);
+            return (latency > 0 ? result.delaySubscription(Duration.ofMillis(latency)) : result)
+                    .doFinally(signal -> inFlight.decrementAndGet());
+        });
+    }
+
+    /**
+     * 同步阻塞版本,和 testSyncToAsync 里的 getStringSync 一样会占住调用线程
+     */
+    public String callSync(String key) {
+        long n = calls.incrementAndGet();
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (ThreadLocalRandom.current().nextDouble() < failureRate) {
+            throw new IllegalStateException("service unavailable: " + key);
+        }
+        return key + " -> " + n;
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * 0表示处理能力不限,延迟和并发数无关
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * 正在处理的异步调用个数
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+}
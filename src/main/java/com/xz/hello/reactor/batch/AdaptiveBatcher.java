@@ -0,0 +1,306 @@
+package com.xz.hello.reactor.batch;
+
+import org.reactivestreams.Subscription;
+import reactor.core.Disposable;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 自适应的微批写入
+ * <p>
+ * 固定的 buffer(n) 或者 bufferTimeout(n, t) 总有一段时间是不合适的: 忙的时候批太小,写入开销大;闲的时候等太久,延迟高
+ * <p>
+ * 这里根据下游每一批的确认延迟自动调整批大小(batchSize)和最长等待时间(maxWait):
+ * <p>
+ * 1--一批是因为攒满才写出去的,并且确认延迟低于 targetLatency,说明下游还有余量,批大小翻倍,等待时间也放宽
+ * <p>
+ * 2--确认延迟超过 targetLatency,批大小减半
+ * <p>
+ * 3--一批是因为等待超时才写出去的,说明比较空闲,批大小收缩到实际大小附近,等待时间减半,让少量的元素尽快写出去
+ * <p>
+ * 同一时刻最多一批在写,另一批在攒,两个批容器循环复用,不会每批都新建List
+ * <p>
+ * 用法: new AdaptiveBatcher<>(sink, ...).write(Flux.range(1, 100000))
+ */
+public class AdaptiveBatcher<T> {
+
+    private final BatchSink<T> sink;
+
+    private final int minBatchSize;
+
+    private final int maxBatchSize;
+
+    private final long minWaitNanos;
+
+    private final long maxWaitNanos;
+
+    private final long targetLatencyNanos;
+
+    private final Scheduler timer;
+
+    private volatile int batchSize;
+
+    private volatile long waitNanos;
+
+    private volatile long batches;
+
+    private volatile long elements;
+
+    /**
+     * 确认延迟和吞吐量的指数移动平均
+     */
+    private volatile double latencyEwmaNanos;
+
+    private volatile double throughputEwma;
+
+    public AdaptiveBatcher(BatchSink<T> sink, int minBatchSize, int maxBatchSize,
+                           Duration minWait, Duration maxWait, Duration targetLatency) {
+        if (minBatchSize <= 0 || maxBatchSize < minBatchSize) {
+            throw new IllegalArgumentException("invalid batch size range: " + minBatchSize + ".." + maxBatchSize);
+        }
+        this.sink = sink;
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.minWaitNanos = minWait.toNanos();
+        this.maxWaitNanos = Math.max(minWaitNanos, maxWait.toNanos());
+        this.targetLatencyNanos = targetLatency.toNanos();
+        this.timer = Schedulers.parallel();
+        this.batchSize = minBatchSize;
+        this.waitNanos = minWaitNanos;
+    }
+
+    /**
+     * 订阅source并把所有元素分批写进sink,全部确认之后完成
+     * <p>
+     * 只按批大小request,像 Flux.interval 这样不支持背压的源要先 onBackpressureBuffer()
+     */
+    public Mono<Void> write(Flux<? extends T> source) {
+        return Mono.create(monoSink -> {
+            BatchSubscriber subscriber = new BatchSubscriber(monoSink);
+            monoSink.onDispose(subscriber);
+            source.subscribe(subscriber);
+        });
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public Duration getMaxWait() {
+        return Duration.ofNanos(waitNanos);
+    }
+
+    public long getBatches() {
+        return batches;
+    }
+
+    public long getElements() {
+        return elements;
+    }
+
+    public double getLatencyMillis() {
+        return latencyEwmaNanos / 1_000_000;
+    }
+
+    /**
+     * 每秒写入的元素个数
+     */
+    public double getThroughput() {
+        return throughputEwma;
+    }
+
+    private synchronized void adapt(int size, boolean full, long latencyNanos) {
+        batches++;
+        elements += size;
+        latencyEwmaNanos = latencyEwmaNanos == 0 ? latencyNanos : latencyEwmaNanos * 0.8 + latencyNanos * 0.2;
+        double throughput = size * 1e9 / Math.max(latencyNanos, 1);
+        throughputEwma = throughputEwma == 0 ? throughput : throughputEwma * 0.8 + throughput * 0.2;
+
+        int nextSize = batchSize;
+        long nextWait = waitNanos;
+        if (latencyNanos > targetLatencyNanos) {
+            nextSize = nextSize / 2;
+        } else if (full) {
+            nextSize = nextSize * 2;
+            nextWait = nextWait * 2;
+        } else {
+            nextSize = Math.min(nextSize, size * 2);
+            nextWait = nextWait / 2;
+        }
+        batchSize = Math.max(minBatchSize, Math.min(maxBatchSize, nextSize));
+        waitNanos = Math.max(minWaitNanos, Math.min(maxWaitNanos, nextWait));
+    }
+
+    /**
+     * 所有状态都在synchronized里修改,onNext、超时和写入完成可能在不同线程上
+     */
+    private final class BatchSubscriber extends BaseSubscriber<T> {
+
+        final MonoSink<Void> result;
+
+        final ArrayDeque<List<T>> pool = new ArrayDeque<>(2);
+
+        List<T> current = new ArrayList<>(minBatchSize);
+
+        /**
+         * 已经request但还没收到的元素个数
+         */
+        long outstanding;
+
+        boolean writing;
+
+        boolean timedOut;
+
+        /**
+         * 每写出一批加1,超时任务记下启动时的批次,用来识别已经过时的超时
+         */
+        long generation;
+
+        boolean done;
+
+        Disposable timeout;
+
+        BatchSubscriber(MonoSink<Void> result) {
+            this.result = result;
+            pool.offer(new ArrayList<>(minBatchSize));
+        }
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            synchronized (this) {
+                requestMore();
+            }
+        }
+
+        @Override
+        protected void hookOnNext(T value) {
+            synchronized (this) {
+                outstanding--;
+                current.add(value);
+                if (current.size() == 1) {
+                    long delay = waitNanos;
+                    long armedFor = generation;
+                    timeout = timer.schedule(() -> onTimeout(armedFor), delay, TimeUnit.NANOSECONDS);
+                }
+                if (current.size() >= batchSize) {
+                    flush(true);
+                }
+            }
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            synchronized (this) {
+                done = true;
+                if (!writing) {
+                    if (current.isEmpty()) {
+                        result.success();
+                    } else {
+                        flush(false);
+                    }
+                }
+            }
+        }
+
+        @Override
+        protected void hookOnError(Throwable throwable) {
+            synchronized (this) {
+                cancelTimeout();
+            }
+            result.error(throwable);
+        }
+
+        @Override
+        protected void hookOnCancel() {
+            synchronized (this) {
+                cancelTimeout();
+            }
+        }
+
+        void onTimeout(long armedFor) {
+            synchronized (this) {
+                //cancel(false)取消不了已经开始执行的超时,它可能等锁等到flush之后,这时超时的那一批已经写出去了
+                if (armedFor != generation) {
+                    return;
+                }
+                timedOut = true;
+                if (!writing && !current.isEmpty()) {
+                    flush(false);
+                }
+            }
+        }
+
+        /**
+         * 把当前批交给sink,调用方持有锁
+         */
+        void flush(boolean full) {
+            if (writing) {
+                return;
+            }
+            cancelTimeout();
+            List<T> batch = current;
+            List<T> next = pool.poll();
+            current = next != null ? next : new ArrayList<>(minBatchSize);
+            writing = true;
+            timedOut = false;
+            generation++;
+            long start = System.nanoTime();
+            requestMore();
+            sink.write(batch).subscribe(null, this::onWriteError, () -> onWritten(batch, full, start));
+        }
+
+        void onWritten(List<T> batch, boolean full, long start) {
+            synchronized (this) {
+                adapt(batch.size(), full, System.nanoTime() - start);
+                batch.clear();
+                pool.offer(batch);
+                writing = false;
+                if (current.size() >= batchSize) {
+                    flush(true);
+                } else if ((timedOut || done) && !current.isEmpty()) {
+                    flush(false);
+                } else if (done) {
+                    result.success();
+                } else {
+                    requestMore();
+                }
+            }
+        }
+
+        void onWriteError(Throwable e) {
+            dispose();
+            result.error(e);
+        }
+
+        /**
+         * 只请求把当前批攒满需要的个数,前一批没写完时当前批攒满就不再请求
+         */
+        void requestMore() {
+            if (done) {
+                return;
+            }
+            long missing = batchSize - current.size() - outstanding;
+            if (missing > 0) {
+                outstanding += missing;
+                request(missing);
+            }
+        }
+
+        void cancelTimeout() {
+            if (timeout != null) {
+                timeout.dispose();
+                timeout = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.xz.hello.reactor.batch;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.function.BiFunction;
+
+/**
+ * 固定大小的 buffer(n) 和 AdaptiveBatcher 写同一个模拟sink的对比
+ * <p>
+ * 1--高负载: Flux.range 一次性生产大量元素,看吞吐量
+ * <p>
+ * 2--低负载: Flux.interval 每毫秒一个元素,看每个元素从生产到写完的平均延迟
+ */
+public class AdaptiveBatcherBenchmark {
+
+    private static final long PER_BATCH_NANOS = 500_000;
+
+    private static final long PER_ELEMENT_NANOS = 2_000;
+
+    public static void main(String[] args) {
+        run("buffer(10)", (source, sink) -> source.buffer(10).concatMap(sink::write).then());
+        run("buffer(500)", (source, sink) -> source.buffer(500).concatMap(sink::write).then());
+        run("bufferTimeout(500,10ms)", (source, sink) ->
+                source.bufferTimeout(500, Duration.ofMillis(10)).concatMap(sink::write).then());
+        run("adaptive", (source, sink) -> new AdaptiveBatcher<Long>(sink, 1, 2000,
+                Duration.ofMillis(1), Duration.ofMillis(20), Duration.ofMillis(50)).write(source));
+    }
+
+    private static void run(String name, BiFunction<Flux<Long>, SimulatedBatchSink, Mono<Void>> strategy) {
+        SimulatedBatchSink busy = new SimulatedBatchSink(PER_BATCH_NANOS, PER_ELEMENT_NANOS);
+        long start = System.nanoTime();
+        strategy.apply(Flux.range(0, 200_000).map(i -> System.nanoTime()), busy).block();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        busy.dispose();
+
+        SimulatedBatchSink idle = new SimulatedBatchSink(PER_BATCH_NANOS, PER_ELEMENT_NANOS);
+        strategy.apply(Flux.interval(Duration.ofMillis(1)).take(1000).map(i -> System.nanoTime()).onBackpressureBuffer(), idle).block();
+        idle.dispose();
+
+        System.out.println(String.format("%-26s busy: %10.0f elements/s, %6d batches | idle: mean latency %8.2f ms, %5d batches",
+                name, busy.getWritten() / seconds, busy.getBatches(), idle.getMeanLatencyMillis(), idle.getBatches()));
+    }
+}
@@ -0,0 +1,15 @@
+package com.xz.hello.reactor.batch;
+
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * 批量写入的目的地,比如数据库或者远程服务
+ * <p>
+ * 返回的Mono完成之后batch会被清空复用,所以实现里不能在完成之后继续持有batch
+ */
+public interface BatchSink<T> {
+
+    Mono<Void> write(List<T> batch);
+}
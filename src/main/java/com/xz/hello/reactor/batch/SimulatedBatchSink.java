@@ -0,0 +1,64 @@
+package com.xz.hello.reactor.batch;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 本地模拟的慢速批量写入: 每批有固定开销,每个元素还有额外开销,所有写入在同一个线程上排队,和真实的磁盘或者数据库连接差不多
+ * <p>
+ * 元素是它被生产出来时的 System.nanoTime(),写完时统计每个元素从生产到确认的延迟
+ */
+public class SimulatedBatchSink implements BatchSink<Long> {
+
+    private final long perBatchNanos;
+
+    private final long perElementNanos;
+
+    private final Scheduler device = Schedulers.newSingle("simulated-sink");
+
+    private final LongAdder written = new LongAdder();
+
+    private final LongAdder batches = new LongAdder();
+
+    private final LongAdder latencyTotalNanos = new LongAdder();
+
+    public SimulatedBatchSink(long perBatchNanos, long perElementNanos) {
+        this.perBatchNanos = perBatchNanos;
+        this.perElementNanos = perElementNanos;
+    }
+
+    @Override
+    public Mono<Void> write(List<Long> batch) {
+        return Mono.<Void>fromRunnable(() -> {
+            LockSupport.parkNanos(perBatchNanos + perElementNanos * batch.size());
+            long now = System.nanoTime();
+            for (Long createdAt : batch) {
+                latencyTotalNanos.add(now - createdAt);
+            }
+            written.add(batch.size());
+            batches.increment();
+        }).subscribeOn(device);
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public double getMeanLatencyMillis() {
+        long n = written.sum();
+        return n == 0 ? 0 : latencyTotalNanos.sum() / 1e6 / n;
+    }
+
+    public void dispose() {
+        device.dispose();
+    }
+}
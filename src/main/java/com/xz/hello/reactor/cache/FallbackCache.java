@@ -0,0 +1,231 @@
+package com.xz.hello.reactor.cache;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * testError2 注释里提到的
+ * <p>
+ * Flux.just(endpoint1, endpoint2)
+ * .flatMap(k -> callExternalService(k))
+ * .onErrorResume(e -> getFromCache(k));
+ * <p>
+ * 的真正实现: 包装一个 Function<K, Mono<V>>,按 key 缓存结果
+ * <p>
+ * 1--容量有上限,超过上限时按 LRU 淘汰
+ * <p>
+ * 2--超过 ttl 的值视为过期,需要重新调用外部服务
+ * <p>
+ * 3--超过 refreshAfter 但还没过期的值直接返回,同时在 refreshScheduler 上后台刷新,加载函数是同步或者阻塞的也不会拖慢命中的调用方
+ * <p>
+ * 4--外部服务出错时,如果有过期不超过 maxStale 的旧值,就用旧值顶替
+ * <p>
+ * 同一个key同时未命中或者刷新时,只调用一次外部服务(SingleFlight),其他订阅者共享结果
+ */
+public class FallbackCache<K, V> {
+
+    /**
+     * 默认的后台刷新线程,线程个数有上限,允许加载函数阻塞
+     */
+    private static final Scheduler DEFAULT_REFRESH_SCHEDULER = Schedulers.fromExecutorService(
+            Executors.newFixedThreadPool(4, r -> {
+                Thread t = new Thread(r, "fallback-cache-refresh");
+                t.setDaemon(true);
+                return t;
+            }));
+
+    private final Function<? super K, ? extends Mono<V>> loader;
+
+    private final SingleFlight<K, V> loads;
+
+    private final Scheduler refreshScheduler;
+
+    private final long ttlNanos;
+
+    private final long refreshAfterNanos;
+
+    private final long maxStaleNanos;
+
+    private final Map<K, CacheEntry<V>> entries;
+
+    /**
+     * 正在后台刷新的key,避免同一个key同时发起多次刷新
+     */
+    private final Map<K, Boolean> refreshing = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public FallbackCache(Function<? super K, ? extends Mono<V>> loader, int maximumSize, Duration ttl) {
+        this(loader, maximumSize, ttl, ttl, ttl);
+    }
+
+    public FallbackCache(Function<? super K, ? extends Mono<V>> loader, int maximumSize,
+                         Duration ttl, Duration refreshAfter, Duration maxStale) {
+        this(loader, maximumSize, ttl, refreshAfter, maxStale, DEFAULT_REFRESH_SCHEDULER);
+    }
+
+    /**
+     * @param refreshScheduler 后台刷新在这个调度器上订阅加载函数
+     */
+    public FallbackCache(Function<? super K, ? extends Mono<V>> loader, int maximumSize,
+                         Duration ttl, Duration refreshAfter, Duration maxStale, Scheduler refreshScheduler) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+        }
+        this.loader = loader;
+        this.loads = new SingleFlight<>(this::load);
+        this.refreshScheduler = refreshScheduler;
+        this.ttlNanos = ttl.toNanos();
+        this.refreshAfterNanos = Math.min(refreshAfter.toNanos(), ttlNanos);
+        this.maxStaleNanos = maxStale.toNanos();
+        //accessOrder为true时LinkedHashMap按访问顺序排列,最老的就是最近最少使用的
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+                if (size() > maximumSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        });
+    }
+
+    /**
+     * 订阅时才会查缓存,所以可以直接放进 flatMap(k -> cache.get(k))
+     */
+    public Mono<V> get(K key) {
+        return Mono.defer(() -> {
+            CacheEntry<V> entry = entries.get(key);
+            if (entry != null) {
+                long age = System.nanoTime() - entry.loadedAt;
+                if (age < ttlNanos) {
+                    hits.increment();
+                    if (age >= refreshAfterNanos) {
+                        refreshInBackground(key);
+                    }
+                    return Mono.just(entry.value);
+                }
+            }
+            misses.increment();
+            return loads.get(key).onErrorResume(e -> fallback(key, e));
+        });
+    }
+
+    private Mono<V> load(K key) {
+        return Mono.defer(() -> loader.apply(key))
+                .doOnNext(v -> entries.put(key, new CacheEntry<>(v, System.nanoTime())))
+                .doOnError(e -> loadFailures.increment());
+    }
+
+    private Mono<V> fallback(K key, Throwable error) {
+        CacheEntry<V> stale = entries.get(key);
+        if (stale != null && System.nanoTime() - stale.loadedAt < ttlNanos + maxStaleNanos) {
+            staleHits.increment();
+            return Mono.just(stale.value);
+        }
+        return Mono.error(error);
+    }
+
+    private void refreshInBackground(K key) {
+        if (refreshing.putIfAbsent(key, Boolean.TRUE) != null) {
+            return;
+        }
+        refreshes.increment();
+        //刷新失败不影响调用方,旧值继续有效直到过期
+        loads.get(key)
+                .subscribeOn(refreshScheduler)
+                .doFinally(signal -> refreshing.remove(key))
+                .subscribe(v -> {
+                }, e -> {
+                });
+    }
+
+    public void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), staleHits.sum(), loadFailures.sum(), refreshes.sum(), evictions.sum());
+    }
+
+    private static final class CacheEntry<V> {
+        final V value;
+        final long loadedAt;
+
+        CacheEntry(V value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    /**
+     * 某一时刻的命中统计快照
+     */
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long staleHits;
+        private final long loadFailures;
+        private final long refreshes;
+        private final long evictions;
+
+        Stats(long hits, long misses, long staleHits, long loadFailures, long refreshes, long evictions) {
+            this.hits = hits;
+            this.misses = misses;
+            this.staleHits = staleHits;
+            this.loadFailures = loadFailures;
+            this.refreshes = refreshes;
+            this.evictions = evictions;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getStaleHits() {
+            return staleHits;
+        }
+
+        public long getLoadFailures() {
+            return loadFailures;
+        }
+
+        public long getRefreshes() {
+            return refreshes;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + ", misses=" + misses + ", stale=" + staleHits
+                    + ", loadFailures=" + loadFailures + ", refreshes=" + refreshes + ", evictions=" + evictions;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.xz.hello.reactor.cache;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 请求合并(single flight)
+ * <p>
+ * testSyncToAsync 里 Mono.fromCallable(() -> getStringSync()) 每个订阅者都会执行一次2秒的阻塞调用
+ * <p>
+ * 1000个订阅者同时请求同一个key,就会有1000次一样的阻塞调用
+ * <p>
+ * 这里同一个key同一时刻只执行一次,其他订阅者共享这一次的结果
+ * <p>
+ * 还可以把结果缓存一小段时间(cacheFor),并在过期前 refreshAhead 时提前在后台刷新
+ * <p>
+ * 出错的结果不会被缓存,下一个订阅者会重新执行
+ * <p>
+ * 缓存的结果过期后会在后台从 map 里删掉,key 很多的时候 map 也不会一直变大
+ */
+public class SingleFlight<K, V> {
+
+    private final Function<? super K, ? extends Mono<V>> loader;
+
+    private final long cacheNanos;
+
+    private final long refreshAheadNanos;
+
+    private final ConcurrentHashMap<K, Flight> flights = new ConcurrentHashMap<>();
+
+    private final LongAdder executions = new LongAdder();
+
+    private final LongAdder savedCalls = new LongAdder();
+
+    /**
+     * 只合并同时在执行的调用,不缓存结果
+     */
+    public SingleFlight(Function<? super K, ? extends Mono<V>> loader) {
+        this(loader, Duration.ZERO, Duration.ZERO);
+    }
+
+    public SingleFlight(Function<? super K, ? extends Mono<V>> loader, Duration cacheFor, Duration refreshAhead) {
+        this.loader = loader;
+        this.cacheNanos = cacheFor.toNanos();
+        this.refreshAheadNanos = Math.min(refreshAhead.toNanos(), cacheNanos);
+    }
+
+    public Mono<V> get(K key) {
+        return Mono.defer(() -> {
+            long now = System.nanoTime();
+            Flight current = flights.get(key);
+            if (current != null && !current.isExpired(now)) {
+                savedCalls.increment();
+                if (current.shouldRefresh(now)) {
+                    refresh(key, current);
+                }
+                return current.result;
+            }
+            Flight created = new Flight(key);
+            Flight winner = flights.compute(key, (k, old) -> old != null && !old.isExpired(now) ? old : created);
+            if (winner == created) {
+                executions.increment();
+            } else {
+                savedCalls.increment();
+            }
+            return winner.result;
+        });
+    }
+
+    private void refresh(K key, Flight old) {
+        if (!old.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        executions.increment();
+        Flight next = new Flight(key);
+        //刷新成功之后才替换旧值,失败时旧值继续用到过期
+        next.result.subscribe(v -> flights.replace(key, old, next), e -> {
+        });
+    }
+
+    /**
+     * 当前正在执行或者缓存着结果的key数量
+     */
+    public int size() {
+        return flights.size();
+    }
+
+    /**
+     * 实际执行的调用次数
+     */
+    public long getExecutions() {
+        return executions.sum();
+    }
+
+    /**
+     * 被合并掉的调用次数,也就是省下来的调用
+     */
+    public long getSavedCalls() {
+        return savedCalls.sum();
+    }
+
+    private final class Flight {
+
+        final Mono<V> result;
+
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        /**
+         * 0表示还在执行中
+         */
+        volatile long completedAt;
+
+        Flight(K key) {
+            //cache()让所有订阅者共享同一次执行
+            this.result = Mono.defer(() -> loader.apply(key))
+                    .doOnSuccess(v -> complete(key, false))
+                    .doOnError(e -> complete(key, true))
+                    .cache();
+        }
+
+        private void complete(K key, boolean failed) {
+            completedAt = Math.max(System.nanoTime(), 1L);
+            if (failed || cacheNanos == 0) {
+                flights.remove(key, this);
+            } else {
+                //过期之后没人再请求这个key的话,不删掉就会一直留在map里
+                Schedulers.parallel().schedule(() -> flights.remove(key, this), cacheNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        boolean isExpired(long now) {
+            long done = completedAt;
+            return done != 0 && now - done >= cacheNanos;
+        }
+
+        boolean shouldRefresh(long now) {
+            long done = completedAt;
+            return done != 0 && refreshAheadNanos > 0 && now - done >= cacheNanos - refreshAheadNanos;
+        }
+    }
+}
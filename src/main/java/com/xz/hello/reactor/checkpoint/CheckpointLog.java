@@ -0,0 +1,237 @@
+package com.xz.hello.reactor.checkpoint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+/**
+ * 只追加的检查点文件
+ * <p>
+ * 记录格式: 长度(4) 序号(8) 标志(1) 状态(长度个字节) CRC32(4),序号是这个状态之前已经发出的元素个数
+ * <p>
+ * 用两个文件 name.0 / name.1 轮流写,一个写到 maxFileBytes 就从另一个的开头覆盖写,所以占用的磁盘空间有上限;
+ * 恢复时读两个文件,取CRC正确且序号最大的记录,写了一半的记录和被覆盖后残留的旧记录都会被忽略
+ * <p>
+ * 同一时刻只有一个写在进行,写的过程中提交的新检查点只保留最新的一个(旧的已经没有意义),调用方从不等待磁盘
+ */
+final class CheckpointLog implements CompletionHandler<Integer, ByteBuffer> {
+
+    private static final int HEADER = 4 + 8 + 1;
+
+    private static final int COMPLETED = 1;
+
+    private final AsynchronousFileChannel[] channels = new AsynchronousFileChannel[2];
+
+    private final long maxFileBytes;
+
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+
+    private int file;
+
+    private long position;
+
+    private boolean writing;
+
+    private boolean closing;
+
+    private ByteBuffer pending;
+
+    private Throwable error;
+
+    volatile long written;
+
+    volatile long coalesced;
+
+    volatile long bytes;
+
+    /**
+     * @param startFile 从哪个文件开始写,应该是不包含最新检查点的那个
+     */
+    CheckpointLog(Path base, int startFile, long maxFileBytes) throws IOException {
+        this.maxFileBytes = maxFileBytes;
+        this.file = startFile;
+        for (int i = 0; i < 2; i++) {
+            channels[i] = AsynchronousFileChannel.open(path(base, i), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        }
+    }
+
+    static Path path(Path base, int file) {
+        return base.resolveSibling(base.getFileName() + "." + file);
+    }
+
+    /**
+     * 读出最新的有效检查点,没有时返回null;只在订阅时调用一次
+     */
+    static Checkpoint recover(Path base) throws IOException {
+        Checkpoint latest = null;
+        for (int i = 0; i < 2; i++) {
+            Path path = path(base, i);
+            if (!Files.exists(path)) {
+                continue;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            while (buffer.remaining() >= HEADER + 4) {
+                int start = buffer.position();
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining() - 8 - 1 - 4) {
+                    break;
+                }
+                long sequence = buffer.getLong();
+                byte flags = buffer.get();
+                byte[] state = new byte[length];
+                buffer.get(state);
+                int crc = buffer.getInt();
+                if (crc != crc(buffer, start, HEADER + length)) {
+                    break;
+                }
+                if (latest == null || sequence > latest.sequence) {
+                    latest = new Checkpoint(sequence, (flags & COMPLETED) != 0, state, i);
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * 提交一个检查点,不阻塞
+     */
+    synchronized void append(long sequence, boolean completed, byte[] state) {
+        if (closing || error != null) {
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(HEADER + state.length + 4);
+        record.putInt(state.length).putLong(sequence).put((byte) (completed ? COMPLETED : 0)).put(state);
+        record.putInt(crc(record, 0, HEADER + state.length));
+        record.flip();
+        if (writing) {
+            if (pending != null) {
+                coalesced++;
+            }
+            pending = record;
+        } else {
+            write(record);
+        }
+    }
+
+    /**
+     * 等已经提交的检查点写完之后关闭文件
+     */
+    CompletableFuture<Void> close() {
+        synchronized (this) {
+            closing = true;
+            if (writing) {
+                return closed;
+            }
+        }
+        doClose();
+        return closed;
+    }
+
+    /**
+     * 关闭之后完成,不会触发关闭
+     */
+    CompletableFuture<Void> closed() {
+        return closed;
+    }
+
+    @Override
+    public void completed(Integer count, ByteBuffer record) {
+        if (record.hasRemaining()) {
+            position += count;
+            channels[file].write(record, position, record, this);
+            return;
+        }
+        ByteBuffer next;
+        synchronized (this) {
+            position += count;
+            written++;
+            bytes += record.limit();
+            next = pending;
+            pending = null;
+            if (next != null) {
+                write(next);
+                return;
+            }
+            writing = false;
+            if (!closing) {
+                return;
+            }
+        }
+        doClose();
+    }
+
+    @Override
+    public void failed(Throwable e, ByteBuffer record) {
+        boolean close;
+        synchronized (this) {
+            error = e;
+            writing = false;
+            pending = null;
+            close = closing;
+        }
+        if (close) {
+            doClose();
+        }
+    }
+
+    private void write(ByteBuffer record) {
+        if (position > 0 && position + record.remaining() > maxFileBytes) {
+            //换到另一个文件的开头,那里的旧记录序号更小,恢复时不会被选中
+            file ^= 1;
+            position = 0;
+        }
+        writing = true;
+        channels[file].write(record, position, record, this);
+    }
+
+    private void doClose() {
+        Throwable failure;
+        synchronized (this) {
+            failure = error;
+        }
+        try {
+            for (AsynchronousFileChannel channel : channels) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            failure = failure == null ? e : failure;
+        }
+        if (failure != null) {
+            closed.completeExceptionally(failure);
+        } else {
+            closed.complete(null);
+        }
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(offset + length).position(offset);
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+
+    static final class Checkpoint {
+
+        final long sequence;
+
+        final boolean completed;
+
+        final byte[] state;
+
+        final int file;
+
+        Checkpoint(long sequence, boolean completed, byte[] state, int file) {
+            this.sequence = sequence;
+            this.completed = completed;
+            this.state = state;
+            this.file = file;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.xz.hello.reactor.checkpoint;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SynchronousSink;
+import reactor.util.context.Context;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiFunction;
+
+/**
+ * 可以从检查点恢复的 Flux.generate
+ * <p>
+ * testGenerate1 里状态放在内存的 AtomicLong 里,进程重启之后只能从0开始重新算一遍。这里每 everyElements 个元素
+ * 或者每 everyTime 把当前状态追加到本地文件(CheckpointLog),重新订阅时从最新的检查点继续:
+ * <p>
+ * 1--检查点记录的是"下一个要发出的元素"对应的状态,所以恢复后最多重复发出上一个检查点之后的元素,不会漏掉(at-least-once)
+ * <p>
+ * 2--写文件是异步的,发元素的线程只负责编码状态;磁盘跟不上时只保留最新的检查点
+ * <p>
+ * 3--正常结束时写一个"已完成"的检查点,之后再订阅直接完成;取消时写下当前状态,下次从取消的位置继续
+ * <p>
+ * 4--订阅时读一次检查点文件,这是唯一一次同步的磁盘访问;如果上一次订阅刚被取消或者出错,它的最后一个检查点是异步写的,
+ * 这里先等它写完(通常只有几十微秒),否则会从更早的检查点开始
+ * <p>
+ * 注意: 状态必须是不可变的(像 testGenerate 的 Integer,而不是 testGenerate1 的 AtomicLong),
+ * 因为编码发生在生成函数返回之后;"已处理"指的是onNext已经返回,下游如果是publishOn这样的异步边界,
+ * 还在队列里的元素会在崩溃后丢失,这时应该把检查点放在真正处理完的地方
+ * <p>
+ * 用法: new ResumableGenerator<>(path, StateCodec.longs(), () -> 0L, (state, sink) -> {...}, 1000, Duration.ofSeconds(1)).flux()
+ */
+public class ResumableGenerator<S, T> {
+
+    /**
+     * 只比较时间的元素间隔,避免每个元素都调用nanoTime
+     */
+    private static final int TIME_CHECK_MASK = 63;
+
+    private static final long MAX_FILE_BYTES = 1024 * 1024;
+
+    private final Path path;
+
+    private final StateCodec<S> codec;
+
+    private final Callable<S> initialState;
+
+    private final BiFunction<S, SynchronousSink<T>, S> generator;
+
+    private final int everyElements;
+
+    private final long everyNanos;
+
+    private volatile long resumedFrom;
+
+    private volatile long emitted;
+
+    private volatile CheckpointLog log;
+
+    private volatile CompletableFuture<Void> lastClosed = CompletableFuture.completedFuture(null);
+
+    /**
+     * @param path          检查点文件,实际会用 path.0 和 path.1 两个文件
+     * @param everyElements 每多少个元素写一次检查点
+     * @param everyTime     距离上一次检查点超过这个时间也写一次
+     */
+    public ResumableGenerator(Path path, StateCodec<S> codec, Callable<S> initialState,
+                              BiFunction<S, SynchronousSink<T>, S> generator, int everyElements, Duration everyTime) {
+        if (everyElements <= 0) {
+            throw new IllegalArgumentException("everyElements must be positive: " + everyElements);
+        }
+        this.path = path;
+        this.codec = codec;
+        this.initialState = initialState;
+        this.generator = generator;
+        this.everyElements = everyElements;
+        this.everyNanos = everyTime.toNanos();
+    }
+
+    /**
+     * 每次订阅都从最新的检查点开始;同一个文件同一时刻只能有一个订阅
+     */
+    public Flux<T> flux() {
+        return Flux.defer(() -> {
+            try {
+                lastClosed.join();
+            } catch (CompletionException ignore) {
+                //上一次的写入错误已经报告给了上一次的订阅者
+            }
+            CheckpointLog.Checkpoint checkpoint;
+            CheckpointLog current;
+            try {
+                checkpoint = CheckpointLog.recover(path);
+                current = new CheckpointLog(path, checkpoint == null ? 0 : checkpoint.file ^ 1, MAX_FILE_BYTES);
+            } catch (IOException e) {
+                return Flux.error(new UncheckedIOException("open checkpoint " + path + " failed", e));
+            }
+            log = current;
+            lastClosed = current.closed();
+            resumedFrom = checkpoint == null ? 0 : checkpoint.sequence;
+            emitted = 0;
+            if (checkpoint != null && checkpoint.completed) {
+                return Mono.fromFuture(current.close()).thenMany(Flux.<T>empty());
+            }
+            long sequence = resumedFrom;
+            return Flux.<T, Generation>generate(
+                    () -> new Generation(checkpoint == null ? initialState.call() : codec.decode(checkpoint.state), sequence, current),
+                    (generation, sink) -> generation.next(sink),
+                    Generation::cleanup)
+                    //正常完成时等最后一个检查点写完再发出完成信号
+                    .concatWith(Mono.defer(() -> Mono.fromFuture(current.close())).thenMany(Flux.<T>empty()));
+        });
+    }
+
+    /**
+     * 最近一次订阅从第几个元素开始,0表示从头开始
+     */
+    public long getResumedFrom() {
+        return resumedFrom;
+    }
+
+    /**
+     * 最近一次订阅发出的元素个数,每次写检查点和结束时更新,避免在热路径上写volatile字段
+     */
+    public long getEmitted() {
+        return emitted;
+    }
+
+    public long getCheckpoints() {
+        CheckpointLog current = log;
+        return current == null ? 0 : current.written;
+    }
+
+    /**
+     * 因为磁盘还在写上一个而被更新的检查点替换掉的个数
+     */
+    public long getCoalescedCheckpoints() {
+        CheckpointLog current = log;
+        return current == null ? 0 : current.coalesced;
+    }
+
+    public long getCheckpointBytes() {
+        CheckpointLog current = log;
+        return current == null ? 0 : current.bytes;
+    }
+
+    /**
+     * 一次订阅的生成状态,也是传给用户生成函数的 SynchronousSink,这样可以知道它是否调用了complete()
+     */
+    private final class Generation implements SynchronousSink<T> {
+
+        final CheckpointLog checkpoints;
+
+        SynchronousSink<T> actual;
+
+        S state;
+
+        long sequence;
+
+        long lastCheckpoint;
+
+        long lastCheckpointNanos;
+
+        boolean nexted;
+
+        boolean completed;
+
+        boolean failed;
+
+        Generation(S state, long sequence, CheckpointLog checkpoints) {
+            this.state = state;
+            this.sequence = sequence;
+            this.lastCheckpoint = sequence;
+            this.lastCheckpointNanos = System.nanoTime();
+            this.checkpoints = checkpoints;
+        }
+
+        Generation next(SynchronousSink<T> sink) {
+            actual = sink;
+            nexted = false;
+            S before = state;
+            state = generator.apply(state, this);
+            if (failed) {
+                //用sink.error()报告出错时生成函数照样会返回新状态,要记下的是出错那一步之前的状态,下次订阅重试这一步
+                state = before;
+                return this;
+            }
+            if (nexted) {
+                sequence++;
+                if (sequence - lastCheckpoint >= everyElements
+                        || ((sequence & TIME_CHECK_MASK) == 0 && System.nanoTime() - lastCheckpointNanos >= everyNanos)) {
+                    checkpoint(false);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * 取消或者出错: 记下最后一个成功发出的元素之后的状态,出错时下次订阅会重试出错的那一步
+         */
+        void cleanup() {
+            if (!completed) {
+                checkpoint(false);
+                checkpoints.close();
+            }
+        }
+
+        void checkpoint(boolean completed) {
+            emitted = sequence - resumedFrom;
+            lastCheckpoint = sequence;
+            lastCheckpointNanos = System.nanoTime();
+            checkpoints.append(sequence, completed, codec.encode(state));
+        }
+
+        @Override
+        public void next(T t) {
+            nexted = true;
+            actual.next(t);
+        }
+
+        @Override
+        public void complete() {
+            completed = true;
+            emitted = sequence + (nexted ? 1 : 0) - resumedFrom;
+            //生成函数还没返回,这里的state是发出最后一个元素之前的状态,完成的检查点不需要恢复状态
+            checkpoints.append(sequence + (nexted ? 1 : 0), true, codec.encode(state));
+            actual.complete();
+        }
+
+        @Override
+        public void error(Throwable e) {
+            failed = true;
+            actual.error(e);
+        }
+
+        @Override
+        public Context currentContext() {
+            return actual.currentContext();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.xz.hello.reactor.checkpoint;
+
+import reactor.core.publisher.Flux;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 检查点的两项指标:
+ * <p>
+ * 1--吞吐量: 普通 Flux.generate 和不同检查点间隔的 ResumableGenerator 各生成 ELEMENTS 个元素
+ * <p>
+ * 2--节省的重算量: 启动一个子进程跑生成器(每个元素模拟一点计算),运行一会儿之后强制杀掉(不会执行任何清理),
+ * 再在本进程里从检查点恢复,对比"从头重算"和"从检查点继续"分别要重复处理多少元素
+ */
+public class ResumableGeneratorBenchmark {
+
+    private static final long ELEMENTS = 50_000_000;
+
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && "child".equals(args[0])) {
+            child(Paths.get(args[1]));
+            return;
+        }
+        Path dir = Files.createTempDirectory("resumable-generate");
+        for (int round = 0; round < 3; round++) {
+            plain();
+            resumable(dir.resolve("throughput-" + round + "-10000"), 10_000, Duration.ofSeconds(1));
+            resumable(dir.resolve("throughput-" + round + "-100"), 100, Duration.ofSeconds(1));
+        }
+        crash(dir.resolve("crash"));
+    }
+
+    private static void plain() {
+        long start = System.nanoTime();
+        sink = Flux.<Long, Long>generate(() -> 0L, (state, s) -> {
+            s.next(state);
+            if (state == ELEMENTS - 1) {
+                s.complete();
+            }
+            return state + 1;
+        }).reduce(0L, Long::sum).block();
+        report("Flux.generate", System.nanoTime() - start, "");
+    }
+
+    private static void resumable(Path path, int every, Duration time) {
+        ResumableGenerator<Long, Long> generator = counter(path, ELEMENTS, every, time);
+        long start = System.nanoTime();
+        sink = generator.flux().reduce(0L, Long::sum).block();
+        report("checkpoint every " + every, System.nanoTime() - start,
+                String.format(" (%d written, %d coalesced, %d bytes)",
+                        generator.getCheckpoints(), generator.getCoalescedCheckpoints(), generator.getCheckpointBytes()));
+    }
+
+    private static void crash(Path path) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                ResumableGeneratorBenchmark.class.getName(), "child", path.toString())
+                .redirectErrorStream(true).start();
+        long processed = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while (System.nanoTime() < deadline && (line = reader.readLine()) != null) {
+                if (line.startsWith("processed ")) {
+                    processed = Long.parseLong(line.substring("processed ".length()));
+                }
+            }
+            child.destroyForcibly().waitFor();
+        }
+
+        ResumableGenerator<Long, Long> generator = counter(path, Long.MAX_VALUE, 1000, Duration.ofMillis(100));
+        generator.flux().take(1).blockLast();
+        long resumed = generator.getResumedFrom();
+        System.out.println(String.format("killed child after it processed at least %d elements, resumed from %d:"
+                        + " recompute %d elements from scratch vs about %d from the checkpoint",
+                processed, resumed, processed, Math.max(0, processed - resumed)));
+    }
+
+    /**
+     * 子进程: 每个元素做一点计算,每1000个元素报告一次进度,直到被杀掉
+     */
+    private static void child(Path path) {
+        counter(path, Long.MAX_VALUE, 1000, Duration.ofMillis(100)).flux()
+                .doOnNext(i -> {
+                    long x = i;
+                    for (int k = 0; k < 2000; k++) {
+                        x = x * 6364136223846793005L + 1442695040888963407L;
+                    }
+                    sink = x;
+                    if (i % 1000 == 0) {
+                        System.out.println("processed " + i);
+                    }
+                })
+                .blockLast();
+    }
+
+    private static ResumableGenerator<Long, Long> counter(Path path, long elements, int every, Duration time) {
+        return new ResumableGenerator<>(path, StateCodec.longs(), () -> 0L, (state, s) -> {
+            s.next(state);
+            if (state == elements - 1) {
+                s.complete();
+            }
+            return state + 1;
+        }, every, time);
+    }
+
+    private static void report(String name, long nanos, String extra) {
+        System.out.println(String.format("%-28s %8.2f ms  (%.2f ns/element)%s", name, nanos / 1e6, (double) nanos / ELEMENTS, extra));
+    }
+}
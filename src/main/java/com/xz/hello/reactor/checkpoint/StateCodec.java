@@ -0,0 +1,41 @@
+package com.xz.hello.reactor.checkpoint;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 生成器状态和字节之间的转换,用来写检查点
+ */
+public interface StateCodec<S> {
+
+    byte[] encode(S state);
+
+    S decode(byte[] bytes);
+
+    static StateCodec<Long> longs() {
+        return new StateCodec<Long>() {
+            @Override
+            public byte[] encode(Long state) {
+                return ByteBuffer.allocate(8).putLong(state).array();
+            }
+
+            @Override
+            public Long decode(byte[] bytes) {
+                return ByteBuffer.wrap(bytes).getLong();
+            }
+        };
+    }
+
+    static StateCodec<Integer> ints() {
+        return new StateCodec<Integer>() {
+            @Override
+            public byte[] encode(Integer state) {
+                return ByteBuffer.allocate(4).putInt(state).array();
+            }
+
+            @Override
+            public Integer decode(byte[] bytes) {
+                return ByteBuffer.wrap(bytes).getInt();
+            }
+        };
+    }
+}
@@ -0,0 +1,206 @@
+package com.xz.hello.reactor.create;
+
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Operators;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * 多生产者版本的 Flux.create
+ * <p>
+ * testCreate 里只有一个循环调用 sink.next;很多监听器线程同时调用同一个 Flux.create 的sink时,
+ * 外面的串行化包装(SerializedSink)在有线程正在发射时会进 synchronized 放队列,每个元素还要对请求计数做一次CAS,
+ * 线程一多就集中竞争在这几个地方。这里换成:
+ * <p>
+ * 1--元素放进无锁的多生产者单消费者队列(MpscQueue),生产者只做一次原子交换,不会失败重试(wait-free)
+ * <p>
+ * 2--生产者放完元素只读一次wip,看到已经有线程在发射就直接返回,不写共享的计数器;
+ * 没有线程在发射时用CAS抢发射权,抢到的线程负责发射
+ * <p>
+ * 3--同一时刻只有一个线程发射(单线程的drain),它读一次下游的请求数,发完这一批再扣减一次
+ * <p>
+ * 发射线程放开发射权之后会再看一次队列、请求数和结束标志,和生产者"先放元素再读wip"配合,保证不会有元素留在队列里没人发。
+ * 缓冲是无界的,相当于 Flux.create 默认的 BUFFER 策略
+ * <p>
+ * 用法: ConcurrentFlux.create(sink -> listeners.forEach(l -> l.register(sink::next)))
+ */
+public final class ConcurrentFlux {
+
+    private ConcurrentFlux() {
+    }
+
+    public static <T> Flux<T> create(Consumer<? super ConcurrentSink<T>> emitter) {
+        return Flux.from(subscriber -> {
+            CoreSubscriber<? super T> actual = Operators.toCoreSubscriber(subscriber);
+            MpscSink<T> sink = new MpscSink<>(actual);
+            actual.onSubscribe(sink);
+            try {
+                emitter.accept(sink);
+            } catch (Throwable e) {
+                sink.error(Operators.onOperatorError(e, actual.currentContext()));
+            }
+        });
+    }
+
+    static final class MpscSink<T> implements ConcurrentSink<T>, Subscription {
+
+        final CoreSubscriber<? super T> actual;
+
+        final MpscQueue<T> queue = new MpscQueue<>();
+
+        final AtomicInteger wip = new AtomicInteger();
+
+        final AtomicLong requested = new AtomicLong();
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        final AtomicReference<Disposable> onCancel = new AtomicReference<>();
+
+        volatile boolean done;
+
+        volatile boolean cancelled;
+
+        MpscSink(CoreSubscriber<? super T> actual) {
+            this.actual = actual;
+        }
+
+        @Override
+        public void next(T value) {
+            if (done || cancelled) {
+                Operators.onNextDropped(value, actual.currentContext());
+                return;
+            }
+            queue.offer(value);
+            tryDrain();
+        }
+
+        @Override
+        public void complete() {
+            done = true;
+            tryDrain();
+        }
+
+        @Override
+        public void error(Throwable e) {
+            if (done || !error.compareAndSet(null, e)) {
+                Operators.onErrorDropped(e, actual.currentContext());
+                return;
+            }
+            done = true;
+            tryDrain();
+        }
+
+        @Override
+        public long requestedFromDownstream() {
+            return requested.get();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public ConcurrentSink<T> onCancel(Disposable onCancel) {
+            if (!this.onCancel.compareAndSet(null, onCancel)) {
+                throw new IllegalStateException("onCancel already set");
+            }
+            if (cancelled) {
+                onCancel.dispose();
+            }
+            return this;
+        }
+
+        @Override
+        public void request(long n) {
+            if (Operators.validate(n)) {
+                requested.getAndUpdate(r -> Operators.addCap(r, n));
+                tryDrain();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                Disposable d = onCancel.get();
+                if (d != null) {
+                    d.dispose();
+                }
+                tryDrain();
+            }
+        }
+
+        /**
+         * 有线程在发射时只读一次wip,不写
+         */
+        void tryDrain() {
+            if (wip.get() == 0 && wip.compareAndSet(0, 1)) {
+                drain();
+            }
+        }
+
+        void drain() {
+            for (;;) {
+                long r = requested.get();
+                long e = 0;
+                for (;;) {
+                    if (cancelled) {
+                        //不放开wip,之后不会再有线程进来
+                        queue.clear();
+                        return;
+                    }
+                    boolean d = done;
+                    if (e == r) {
+                        if (d && queue.isEmpty()) {
+                            terminate();
+                            return;
+                        }
+                        break;
+                    }
+                    T v = queue.poll();
+                    if (v == null) {
+                        if (d) {
+                            terminate();
+                            return;
+                        }
+                        break;
+                    }
+                    actual.onNext(v);
+                    e++;
+                }
+                if (e != 0 && r != Long.MAX_VALUE) {
+                    requested.addAndGet(-e);
+                }
+                wip.set(0);
+                //放开之后再看一次,期间放进来的元素的生产者可能看到wip还是1而没有发射
+                if (!hasWork() || !wip.compareAndSet(0, 1)) {
+                    return;
+                }
+            }
+        }
+
+        boolean hasWork() {
+            if (cancelled) {
+                return true;
+            }
+            boolean empty = queue.isEmpty();
+            return empty ? done : requested.get() != 0;
+        }
+
+        void terminate() {
+            Throwable e = error.get();
+            if (e != null) {
+                actual.onError(e);
+            } else {
+                actual.onComplete();
+            }
+        }
+    }
+}
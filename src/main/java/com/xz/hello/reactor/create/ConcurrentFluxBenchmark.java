@@ -0,0 +1,90 @@
+package com.xz.hello.reactor.create;
+
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.SignalType;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 1到32个生产者线程同时调用sink.next,比较 Flux.create 和 ConcurrentFlux.create 的吞吐量
+ * <p>
+ * 消费者每次request BATCH 个,和真实的下游一样有背压;每种配置先跑一轮预热,报告第二轮
+ */
+public class ConcurrentFluxBenchmark {
+
+    private static final int ELEMENTS = 4_000_000;
+
+    private static final int BATCH = 256;
+
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(String.format("%-8s %18s %18s", "threads", "Flux.create", "ConcurrentFlux"));
+        for (int threads : THREADS) {
+            double plain = 0;
+            double concurrent = 0;
+            for (int round = 0; round < 2; round++) {
+                plain = run(Flux.create(sink -> emit(threads, sink::next, sink::complete)));
+                concurrent = run(ConcurrentFlux.create(sink -> emit(threads, sink::next, sink::complete)));
+            }
+            System.out.println(String.format("%-8d %12.1f M/s %12.1f M/s", threads, plain, concurrent));
+        }
+        System.out.println(Runtime.getRuntime().availableProcessors() + " CPUs available");
+    }
+
+    /**
+     * 每个线程发 ELEMENTS / threads 个元素,最后一个结束的线程调用complete
+     */
+    private static void emit(int threads, Consumer<Integer> next, Runnable complete) {
+        AtomicInteger running = new AtomicInteger(threads);
+        int each = ELEMENTS / threads;
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < each; i++) {
+                    next.accept(i);
+                }
+                if (running.decrementAndGet() == 0) {
+                    complete.run();
+                }
+            }, "producer-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * @return 每秒百万个元素
+     */
+    private static double run(Flux<Integer> flux) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        flux.subscribe(new BaseSubscriber<Integer>() {
+
+            int received;
+
+            @Override
+            protected void hookOnSubscribe(Subscription subscription) {
+                request(BATCH);
+            }
+
+            @Override
+            protected void hookOnNext(Integer value) {
+                if (++received == BATCH) {
+                    received = 0;
+                    request(BATCH);
+                }
+            }
+
+            @Override
+            protected void hookFinally(SignalType type) {
+                latch.countDown();
+            }
+        });
+        latch.await();
+        return ELEMENTS / ((System.nanoTime() - start) / 1e3);
+    }
+}
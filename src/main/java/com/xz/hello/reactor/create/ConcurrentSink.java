@@ -0,0 +1,30 @@
+package com.xz.hello.reactor.create;
+
+import reactor.core.Disposable;
+
+/**
+ * ConcurrentFlux.create 交给发射方的sink,所有方法都可以被多个线程同时调用
+ */
+public interface ConcurrentSink<T> {
+
+    /**
+     * 放进队列后立即返回,不等待下游;cancel或者结束之后的元素被丢掉
+     */
+    void next(T value);
+
+    void complete();
+
+    void error(Throwable e);
+
+    /**
+     * 下游还没满足的请求数,发射方可以用它自己限速;只是一个近似值,超过时元素会在队列里等
+     */
+    long requestedFromDownstream();
+
+    boolean isCancelled();
+
+    /**
+     * 下游取消时调用,只能设置一次,通常用来注销监听器
+     */
+    ConcurrentSink<T> onCancel(Disposable onCancel);
+}
@@ -0,0 +1,80 @@
+package com.xz.hello.reactor.create;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * 无界的多生产者单消费者链表队列(Vyukov的写法)
+ * <p>
+ * offer 只有一次 getAndSet 和一次延迟写,不循环、不加锁,任何线程都能在固定步数内完成(wait-free);
+ * poll/isEmpty 只能由一个消费者线程调用
+ * <p>
+ * 生产者交换了tail、还没有链上next的瞬间,消费者看到 head != tail 但 next 为空,这时短暂自旋等它链上
+ */
+final class MpscQueue<T> {
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<MpscQueue, Node> TAIL =
+            AtomicReferenceFieldUpdater.newUpdater(MpscQueue.class, Node.class, "tail");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+    private volatile Node<T> tail;
+
+    /**
+     * 已经取走的最后一个节点(开始时是一个空节点),只有消费者访问
+     */
+    private Node<T> head;
+
+    MpscQueue() {
+        Node<T> stub = new Node<>(null);
+        head = stub;
+        tail = stub;
+    }
+
+    @SuppressWarnings("unchecked")
+    void offer(T value) {
+        Node<T> node = new Node<>(value);
+        Node<T> previous = TAIL.getAndSet(this, node);
+        NEXT.lazySet(previous, node);
+    }
+
+    T poll() {
+        Node<T> current = head;
+        Node<T> next = current.next;
+        if (next == null) {
+            if (current == tail) {
+                return null;
+            }
+            while ((next = current.next) == null) {
+                Thread.yield();
+            }
+        }
+        T value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    boolean isEmpty() {
+        return head == tail;
+    }
+
+    void clear() {
+        while (poll() != null) {
+            //丢掉
+        }
+    }
+
+    static final class Node<T> {
+
+        T value;
+
+        volatile Node<T> next;
+
+        Node(T value) {
+            this.value = value;
+        }
+    }
+}
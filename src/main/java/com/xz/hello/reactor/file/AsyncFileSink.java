@@ -0,0 +1,594 @@
+package com.xz.hello.reactor.file;
+
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 非阻塞的文件输出,代替 subscribe(System.out::println) 或者在onNext里直接写 FileOutputStream
+ * <p>
+ * 1--元素用 RecordEncoder 编码进池化的直接内存缓冲区(bufferCount 块,每块 bufferSize 字节),写满一块就交给
+ * AsynchronousFileChannel 写出,调用线程不等待磁盘
+ * <p>
+ * 2--背压: 所有缓冲区都在写的时候不再向上游request,已经request到的元素(最多 PREFETCH 个)先排队,
+ * 所以内存占用固定为 bufferCount * bufferSize 加上一个有界队列
+ * <p>
+ * 3--组提交(groupCommit): 写完成之后调用 force() 落盘,force 进行期间完成的写合并到下一次 force,而不是每次写都 force 一次;
+ * force() 本身是阻塞的,放在 Schedulers.elastic() 上执行
+ * <p>
+ * 4--按大小滚动: 当前文件超过 rotateBytes 就换新文件 prefix-00000.log、prefix-00001.log ...,旧文件等它的写全部完成后关闭
+ * <p>
+ * write() 返回的Mono在全部写完(开启组提交时还包括落盘)并关闭文件之后完成;同一时刻只能有一个write()在进行
+ * <p>
+ * 用法: new AsyncFileSink<>(dir, "out", RecordEncoder.utf8Lines()).write(Flux.range(1, 100000))
+ */
+public class AsyncFileSink<T> {
+
+    /**
+     * 向上游一次最多request的元素个数
+     */
+    private static final int PREFETCH = 256;
+
+    private final Path directory;
+
+    private final String prefix;
+
+    private final RecordEncoder<? super T> encoder;
+
+    private final int bufferSize;
+
+    private final int bufferCount;
+
+    private final long rotateBytes;
+
+    private final boolean groupCommit;
+
+    private final Scheduler blocking = Schedulers.elastic();
+
+    /**
+     * 失败的write()留下的写完成时还会归还缓冲区,可能和下一次write()并发,所以用并发队列
+     */
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean active = new AtomicBoolean();
+
+    private final List<Path> files = new ArrayList<>();
+
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder forces = new LongAdder();
+
+    /**
+     * 最近一次write(),只用来计算它的吞吐量
+     */
+    private volatile WriteSubscriber last;
+
+    /**
+     * @param bufferSize  每块缓冲区的大小,单个元素编码后不能超过它
+     * @param bufferCount 缓冲区个数,也就是同时进行的写的上限
+     * @param rotateBytes 单个文件的大小上限
+     * @param groupCommit 是否在写完成之后批量force()
+     */
+    public AsyncFileSink(Path directory, String prefix, RecordEncoder<? super T> encoder,
+                         int bufferSize, int bufferCount, long rotateBytes, boolean groupCommit) {
+        if (bufferSize <= 0 || bufferCount <= 0) {
+            throw new IllegalArgumentException("bufferSize and bufferCount must be positive: " + bufferSize + ", " + bufferCount);
+        }
+        if (rotateBytes < bufferSize) {
+            throw new IllegalArgumentException("rotateBytes must not be smaller than bufferSize: " + rotateBytes);
+        }
+        this.directory = directory;
+        this.prefix = prefix;
+        this.encoder = encoder;
+        this.bufferSize = bufferSize;
+        this.bufferCount = bufferCount;
+        this.rotateBytes = rotateBytes;
+        this.groupCommit = groupCommit;
+        for (int i = 0; i < bufferCount; i++) {
+            pool.offer(ByteBuffer.allocateDirect(bufferSize));
+        }
+    }
+
+    /**
+     * 4块64KB的缓冲区,每个文件64MB,不force
+     */
+    public AsyncFileSink(Path directory, String prefix, RecordEncoder<? super T> encoder) {
+        this(directory, prefix, encoder, 64 * 1024, 4, 64L * 1024 * 1024, false);
+    }
+
+    public Mono<Void> write(Flux<? extends T> source) {
+        return Mono.create(monoSink -> {
+            if (!active.compareAndSet(false, true)) {
+                monoSink.error(new IllegalStateException("AsyncFileSink " + prefix + " is already writing"));
+                return;
+            }
+            WriteSubscriber subscriber = new WriteSubscriber(monoSink);
+            last = subscriber;
+            monoSink.onDispose(subscriber);
+            source.subscribe(subscriber);
+        });
+    }
+
+    /**
+     * 到目前为止创建过的文件
+     */
+    public synchronized List<Path> getFiles() {
+        return new ArrayList<>(files);
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    public long getForces() {
+        return forces.sum();
+    }
+
+    /**
+     * 最近一次(或者正在进行的)write()写出的字节数
+     */
+    public long getLastWriteBytes() {
+        WriteSubscriber w = last;
+        return w == null ? 0 : w.writtenBytes.sum();
+    }
+
+    /**
+     * 最近一次(或者正在进行的)write()的吞吐量
+     */
+    public double getMegabytesPerSecond() {
+        WriteSubscriber w = last;
+        if (w == null) {
+            return 0;
+        }
+        long end = w.endNanos == 0 ? System.nanoTime() : w.endNanos;
+        return w.writtenBytes.sum() / 1024.0 / 1024.0 / ((end - w.startNanos) / 1e9);
+    }
+
+    /**
+     * 缓冲区占用的直接内存,不随写入量变化
+     */
+    public long getBufferMemory() {
+        return (long) bufferSize * bufferCount;
+    }
+
+    private synchronized Segment openSegment() {
+        Path path = directory.resolve(String.format("%s-%05d.log", prefix, files.size()));
+        try {
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(path,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            files.add(path);
+            return new Segment(channel);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 一个文件;size 和 inFlight 只在 WriteSubscriber 的锁里修改,open 只在自己的锁里修改
+     */
+    private static final class Segment {
+
+        final AsynchronousFileChannel channel;
+
+        long size;
+
+        int inFlight;
+
+        boolean open = true;
+
+        Segment(AsynchronousFileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * 阻塞调用,force和close互斥,避免force到一半文件被关闭
+         */
+        void force() throws IOException {
+            synchronized (this) {
+                if (open) {
+                    channel.force(false);
+                }
+            }
+        }
+
+        void close(boolean force) throws IOException {
+            synchronized (this) {
+                if (open) {
+                    open = false;
+                    try {
+                        if (force) {
+                            channel.force(false);
+                        }
+                    } finally {
+                        channel.close();
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class WriteOp {
+
+        final ByteBuffer buffer;
+
+        final Segment segment;
+
+        long position;
+
+        WriteOp(ByteBuffer buffer, Segment segment, long position) {
+            this.buffer = buffer;
+            this.segment = segment;
+            this.position = position;
+        }
+    }
+
+    /**
+     * 所有状态都在synchronized里修改,onNext、写完成和force完成在不同的线程上
+     */
+    private final class WriteSubscriber extends BaseSubscriber<T> implements CompletionHandler<Integer, WriteOp> {
+
+        final MonoSink<Void> result;
+
+        /**
+         * 没有空闲缓冲区时已经到达的元素,最多PREFETCH个
+         */
+        final ArrayDeque<T> pending = new ArrayDeque<>();
+
+        /**
+         * 还没有关闭的文件,包括还有写在进行的旧文件,取消或者失败时全部关闭
+         */
+        final List<Segment> segments = new ArrayList<>();
+
+        final LongAdder writtenBytes = new LongAdder();
+
+        final long startNanos = System.nanoTime();
+
+        volatile long endNanos;
+
+        Segment segment;
+
+        ByteBuffer current;
+
+        int consumed;
+
+        int inFlight;
+
+        long unforced;
+
+        boolean forcing;
+
+        boolean done;
+
+        boolean finished;
+
+        WriteSubscriber(MonoSink<Void> result) {
+            this.result = result;
+        }
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            synchronized (this) {
+                try {
+                    segment = openSegment();
+                } catch (UncheckedIOException e) {
+                    fail(e.getCause());
+                    return;
+                }
+                segments.add(segment);
+            }
+            request(PREFETCH);
+        }
+
+        @Override
+        protected void hookOnNext(T value) {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                consumed++;
+                if (!pending.isEmpty() || !encode(value)) {
+                    pending.offer(value);
+                }
+                replenish();
+            }
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            synchronized (this) {
+                done = true;
+                tryFinish();
+            }
+        }
+
+        @Override
+        protected void hookOnError(Throwable throwable) {
+            fail(throwable);
+        }
+
+        @Override
+        protected void hookOnCancel() {
+            List<Segment> open;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                open = takeSegments();
+            }
+            closeQuietly(open);
+            finish();
+        }
+
+        @Override
+        public void completed(Integer written, WriteOp op) {
+            if (op.buffer.hasRemaining()) {
+                op.position += written;
+                op.segment.channel.write(op.buffer, op.position, op, this);
+                return;
+            }
+            bytesWritten.add(op.buffer.limit());
+            writtenBytes.add(op.buffer.limit());
+            writes.increment();
+            synchronized (this) {
+                release(op);
+                if (finished) {
+                    return;
+                }
+                if (op.segment != segment) {
+                    //已经滚动过的旧文件,最后一个写完成时关闭
+                    if (op.segment.inFlight == 0) {
+                        closeLater(op.segment);
+                    }
+                } else if (groupCommit) {
+                    unforced++;
+                }
+                drain();
+                startForce();
+                tryFinish();
+            }
+        }
+
+        @Override
+        public void failed(Throwable e, WriteOp op) {
+            synchronized (this) {
+                release(op);
+            }
+            fail(e);
+        }
+
+        /**
+         * 编码进当前缓冲区,没有可用的缓冲区时返回false
+         */
+        boolean encode(T value) {
+            for (;;) {
+                if (finished) {
+                    return true;
+                }
+                if (current == null) {
+                    current = pool.poll();
+                    if (current == null) {
+                        return false;
+                    }
+                }
+                int mark = current.position();
+                try {
+                    encoder.encode(value, current);
+                    return true;
+                } catch (BufferOverflowException e) {
+                    current.position(mark);
+                    if (mark == 0) {
+                        fail(new IllegalArgumentException("record larger than buffer size " + bufferSize + ": " + value));
+                        return true;
+                    }
+                    submit();
+                } catch (RuntimeException e) {
+                    current.position(mark);
+                    fail(e);
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 写出当前缓冲区,需要时先滚动文件
+         */
+        void submit() {
+            ByteBuffer buffer = current;
+            current = null;
+            buffer.flip();
+            if (segment.size > 0 && segment.size + buffer.remaining() > rotateBytes) {
+                Segment old = segment;
+                try {
+                    segment = openSegment();
+                } catch (UncheckedIOException e) {
+                    pool.offer((ByteBuffer) buffer.clear());
+                    fail(e.getCause());
+                    return;
+                }
+                segments.add(segment);
+                if (old.inFlight == 0) {
+                    closeLater(old);
+                }
+            }
+            WriteOp op = new WriteOp(buffer, segment, segment.size);
+            segment.size += buffer.remaining();
+            segment.inFlight++;
+            inFlight++;
+            segment.channel.write(buffer, op.position, op, this);
+        }
+
+        void closeLater(Segment old) {
+            segments.remove(old);
+            blocking.schedule(() -> {
+                try {
+                    old.close(groupCommit);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            });
+        }
+
+        void release(WriteOp op) {
+            op.buffer.clear();
+            pool.offer(op.buffer);
+            op.segment.inFlight--;
+            inFlight--;
+        }
+
+        /**
+         * 缓冲区空出来之后,把排队的元素编码进去
+         */
+        void drain() {
+            while (!pending.isEmpty() && !finished) {
+                if (!encode(pending.peek())) {
+                    return;
+                }
+                pending.poll();
+            }
+            replenish();
+        }
+
+        /**
+         * 类似 limitRate: 消费了一半再补充;有排队的元素说明缓冲区都在写,这时不补充
+         */
+        void replenish() {
+            if (!done && !finished && pending.isEmpty() && consumed >= PREFETCH / 2) {
+                int n = consumed;
+                consumed = 0;
+                request(n);
+            }
+        }
+
+        /**
+         * 组提交: 同一时刻只有一个force,它进行期间完成的写都记在unforced里,等它结束后一起force
+         */
+        void startForce() {
+            if (!groupCommit || forcing || unforced == 0 || finished) {
+                return;
+            }
+            forcing = true;
+            unforced = 0;
+            Segment target = segment;
+            blocking.schedule(() -> {
+                try {
+                    target.force();
+                    forces.increment();
+                } catch (IOException e) {
+                    fail(e);
+                    return;
+                }
+                synchronized (this) {
+                    forcing = false;
+                    startForce();
+                    tryFinish();
+                }
+            });
+        }
+
+        void tryFinish() {
+            if (!done || finished || !pending.isEmpty()) {
+                return;
+            }
+            if (current != null && current.position() > 0) {
+                submit();
+                return;
+            }
+            if (inFlight > 0 || forcing) {
+                return;
+            }
+            finished = true;
+            Segment last = segment;
+            blocking.schedule(() -> {
+                try {
+                    last.close(groupCommit);
+                    if (groupCommit) {
+                        forces.increment();
+                    }
+                } catch (IOException e) {
+                    finish();
+                    result.error(e);
+                    return;
+                }
+                finish();
+                result.success();
+            });
+        }
+
+        void fail(Throwable e) {
+            List<Segment> open;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                open = takeSegments();
+            }
+            cancel();
+            closeQuietly(open);
+            finish();
+            result.error(e);
+        }
+
+        List<Segment> takeSegments() {
+            List<Segment> open = new ArrayList<>(segments);
+            segments.clear();
+            return open;
+        }
+
+        /**
+         * 还在进行的写会以 AsynchronousCloseException 失败,这时已经结束,不会再报告
+         */
+        void closeQuietly(List<Segment> open) {
+            if (open.isEmpty()) {
+                return;
+            }
+            blocking.schedule(() -> {
+                for (Segment s : open) {
+                    try {
+                        s.close(false);
+                    } catch (IOException ignore) {
+                        //已经在报告别的错误了
+                    }
+                }
+            });
+        }
+
+        void finish() {
+            synchronized (this) {
+                if (current != null) {
+                    current.clear();
+                    pool.offer(current);
+                    current = null;
+                }
+                pending.clear();
+            }
+            endNanos = System.nanoTime();
+            active.set(false);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.xz.hello.reactor.file;
+
+import reactor.core.publisher.Flux;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 在onNext里用BufferedWriter阻塞写 和 AsyncFileSink 的对比
+ * <p>
+ * 每种方式写 LINES 行到临时目录,打印 MB/s;AsyncFileSink 分别测不force和组提交
+ */
+public class AsyncFileSinkBenchmark {
+
+    private static final int LINES = 5_000_000;
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("async-file-sink");
+        for (int round = 0; round < 3; round++) {
+            blocking(dir.resolve("blocking.log"));
+            async(dir, false);
+            async(dir, true);
+        }
+    }
+
+    private static void blocking(Path file) throws IOException {
+        long start = System.nanoTime();
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            Flux.range(0, LINES).subscribe(i -> {
+                try {
+                    writer.write(String.valueOf(i));
+                    writer.write('\n');
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        report("blocking BufferedWriter", Files.size(file), System.nanoTime() - start, "");
+    }
+
+    private static void async(Path dir, boolean groupCommit) {
+        AsyncFileSink<Integer> sink = new AsyncFileSink<>(dir, groupCommit ? "commit" : "async", RecordEncoder.utf8Lines(),
+                64 * 1024, 4, 16L * 1024 * 1024, groupCommit);
+        long start = System.nanoTime();
+        sink.write(Flux.range(0, LINES)).block();
+        report(groupCommit ? "AsyncFileSink group commit" : "AsyncFileSink", sink.getBytesWritten(), System.nanoTime() - start,
+                String.format(" (%.1f MB/s reported, %d writes, %d forces, %d files, %d KB buffers)",
+                        sink.getMegabytesPerSecond(), sink.getWrites(), sink.getForces(), sink.getFiles().size(), sink.getBufferMemory() / 1024));
+    }
+
+    private static void report(String name, long bytes, long nanos, String extra) {
+        System.out.println(String.format("%-28s %8.1f MB/s%s", name, bytes / 1024.0 / 1024.0 / (nanos / 1e9), extra));
+    }
+}
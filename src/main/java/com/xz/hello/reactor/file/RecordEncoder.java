@@ -0,0 +1,39 @@
+package com.xz.hello.reactor.file;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 把一个元素编码进缓冲区
+ * <p>
+ * 剩余空间不够时抛出 BufferOverflowException,已经写了一半的内容不用管,AsyncFileSink 会把position恢复回去,换一块缓冲区重试
+ */
+@FunctionalInterface
+public interface RecordEncoder<T> {
+
+    void encode(T value, ByteBuffer target);
+
+    /**
+     * 每个元素一行,toString() 按UTF-8编码,直接编码进缓冲区,不产生中间的byte[]
+     * <p>
+     * 内部的CharsetEncoder有状态,每个AsyncFileSink用自己的实例
+     */
+    static <T> RecordEncoder<T> utf8Lines() {
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        return (value, target) -> {
+            encoder.reset();
+            CoderResult result = encoder.encode(CharBuffer.wrap(String.valueOf(value)), target, true);
+            if (result.isOverflow() || !target.hasRemaining()) {
+                throw new BufferOverflowException();
+            }
+            if (result.isError()) {
+                throw new IllegalArgumentException("can not encode " + value + ": " + result);
+            }
+            target.put((byte) '\n');
+        };
+    }
+}
@@ -0,0 +1,271 @@
+package com.xz.hello.reactor.hedge;
+
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 对冲请求(hedged request)
+ * <p>
+ * 一次调用超过 delay 还没有结果,就再发一次同样的请求,谁先返回值用谁,另一个取消掉
+ * <p>
+ * 出错或者空完成不算返回值: 对冲已经发出时要等两个都结束才把错误(或空)传下去,原请求结束时还没有对冲就直接结束
+ * <p>
+ * delay 可以是固定值,也可以按最近的调用延迟取 p95 动态计算
+ * <p>
+ * 为了避免对冲请求把负载放大,所有对冲共用一个令牌桶预算: 每次调用存入 budgetRatio 个令牌,每次对冲消耗一个
+ * <p>
+ * 用法: flatMap(hedger.wrap(k -> callExternalService(k)))
+ */
+public class Hedger {
+
+    private static final long TOKEN = 1000;
+
+    private static final int WINDOW = 1024;
+
+    private final long fixedDelayNanos;
+
+    private final double percentile;
+
+    private final long depositPerCall;
+
+    private final long maxTokens;
+
+    private final Scheduler timer;
+
+    private final AtomicLong tokens;
+
+    /**
+     * 最近 WINDOW 次调用的延迟,环形写入
+     */
+    private final long[] latencies = new long[WINDOW];
+
+    private long recorded;
+
+    private volatile long percentileDelayNanos;
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder hedgesFired = new LongAdder();
+    private final LongAdder hedgesWon = new LongAdder();
+    private final LongAdder hedgesDenied = new LongAdder();
+
+    private Hedger(long fixedDelayNanos, double percentile, double budgetRatio, int burst, Scheduler timer) {
+        this.fixedDelayNanos = fixedDelayNanos;
+        this.percentile = percentile;
+        this.percentileDelayNanos = fixedDelayNanos;
+        this.depositPerCall = (long) (budgetRatio * TOKEN);
+        this.maxTokens = burst * TOKEN;
+        this.tokens = new AtomicLong(maxTokens);
+        this.timer = timer;
+    }
+
+    /**
+     * 固定延迟对冲
+     *
+     * @param budgetRatio 对冲请求最多占正常请求的比例,比如0.05
+     * @param burst       预算允许的突发对冲个数
+     */
+    public static Hedger fixed(Duration delay, double budgetRatio, int burst) {
+        return new Hedger(delay.toNanos(), 0, budgetRatio, burst, Schedulers.parallel());
+    }
+
+    /**
+     * 按最近调用延迟的百分位对冲,样本不足时使用 initialDelay
+     *
+     * @param percentile 比如0.95
+     */
+    public static Hedger percentile(double percentile, Duration initialDelay, double budgetRatio, int burst) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be in (0, 1): " + percentile);
+        }
+        return new Hedger(initialDelay.toNanos(), percentile, budgetRatio, burst, Schedulers.parallel());
+    }
+
+    public <K, V> Function<K, Mono<V>> wrap(Function<? super K, ? extends Mono<V>> call) {
+        return k -> hedge(() -> call.apply(k));
+    }
+
+    public <T> Mono<T> hedge(Supplier<? extends Mono<T>> call) {
+        return Mono.create(sink -> {
+            calls.increment();
+            deposit();
+            new Race<>(sink, call).start();
+        });
+    }
+
+    private void deposit() {
+        if (depositPerCall == 0) {
+            return;
+        }
+        long current;
+        do {
+            current = tokens.get();
+            if (current >= maxTokens) {
+                return;
+            }
+        } while (!tokens.compareAndSet(current, Math.min(maxTokens, current + depositPerCall)));
+    }
+
+    private boolean tryAcquire() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current < TOKEN) {
+                return false;
+            }
+        } while (!tokens.compareAndSet(current, current - TOKEN));
+        return true;
+    }
+
+    private long currentDelayNanos() {
+        return percentile == 0 ? fixedDelayNanos : percentileDelayNanos;
+    }
+
+    private void record(long nanos) {
+        if (percentile == 0) {
+            return;
+        }
+        long[] snapshot = null;
+        synchronized (latencies) {
+            latencies[(int) (recorded++ % WINDOW)] = nanos;
+            //每64个样本重新计算一次百分位,避免每次调用都排序
+            if (recorded >= 64 && recorded % 64 == 0) {
+                snapshot = Arrays.copyOf(latencies, (int) Math.min(recorded, WINDOW));
+            }
+        }
+        if (snapshot != null) {
+            Arrays.sort(snapshot);
+            percentileDelayNanos = snapshot[(int) (percentile * (snapshot.length - 1))];
+        }
+    }
+
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    public long getHedgesFired() {
+        return hedgesFired.sum();
+    }
+
+    public long getHedgesWon() {
+        return hedgesWon.sum();
+    }
+
+    public long getHedgesDenied() {
+        return hedgesDenied.sum();
+    }
+
+    public Duration getCurrentDelay() {
+        return Duration.ofNanos(currentDelayNanos());
+    }
+
+    /**
+     * 原请求和对冲请求比谁先返回值
+     * <p>
+     * 不能用 Mono.first: 它取第一个信号,原请求先出错或者空完成时会把本来能成功的对冲请求取消掉
+     * <p>
+     * 这里只有值才算赢,两个请求都没有值才结束;原请求结束时还没发出对冲,就直接用原请求的结果
+     */
+    private final class Race<T> {
+
+        final MonoSink<T> sink;
+
+        final Supplier<? extends Mono<T>> call;
+
+        final long start = System.nanoTime();
+
+        final Disposable.Composite attempts = Disposables.composite();
+
+        boolean done;
+
+        boolean primaryRunning = true;
+
+        boolean hedgeRunning;
+
+        /**
+         * 两个请求都出错时优先用原请求的错误
+         */
+        Throwable error;
+
+        Race(MonoSink<T> sink, Supplier<? extends Mono<T>> call) {
+            this.sink = sink;
+            this.call = call;
+        }
+
+        void start() {
+            //取消或者结束时把另一个请求和定时器一起取消
+            sink.onDispose(attempts);
+            attempts.add(timer.schedule(this::fire, currentDelayNanos(), TimeUnit.NANOSECONDS));
+            attempts.add(subscribe(false));
+        }
+
+        private Disposable subscribe(boolean hedged) {
+            return Mono.defer(call).subscribe(v -> onValue(v, hedged), e -> onEnd(e, hedged), () -> onEnd(null, hedged));
+        }
+
+        private void fire() {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                if (!tryAcquire()) {
+                    hedgesDenied.increment();
+                    return;
+                }
+                hedgeRunning = true;
+            }
+            hedgesFired.increment();
+            attempts.add(subscribe(true));
+        }
+
+        private void onValue(T value, boolean hedged) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+            }
+            record(System.nanoTime() - start);
+            if (hedged) {
+                hedgesWon.increment();
+            }
+            sink.success(value);
+        }
+
+        private void onEnd(Throwable e, boolean hedged) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                if (e != null && (error == null || !hedged)) {
+                    error = e;
+                }
+                if (hedged) {
+                    hedgeRunning = false;
+                } else {
+                    primaryRunning = false;
+                }
+                if (primaryRunning || hedgeRunning) {
+                    return;
+                }
+                done = true;
+            }
+            if (error != null) {
+                sink.error(error);
+            } else {
+                sink.success();
+            }
+        }
+    }
+}
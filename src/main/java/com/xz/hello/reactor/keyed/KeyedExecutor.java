@@ -0,0 +1,406 @@
+package com.xz.hello.reactor.keyed;
+
+import com.xz.hello.reactor.NonFuseableLift;
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Operators;
+import reactor.core.scheduler.Scheduler;
+import reactor.util.context.Context;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * 按key分派到固定个数的通道(lane)上并行处理,同一个key保持顺序
+ * <p>
+ * test2 里的 flatMap 不限制并发,不同key的结果交错,同一个key的结果也可能乱序;常见的替代写法
+ * groupBy(key).flatMap(g -> g.publishOn(...)) 每个key一个GroupedFlux,key多的时候组超过flatMap的并发数就会卡住,
+ * 组也要等上游完成才释放。这里不为key创建任何对象:
+ * <p>
+ * 1--key的哈希决定通道,通道个数固定,每个通道是调度器上的一个Worker,通道内串行处理,所以同一个key的元素按到达顺序处理和发出
+ * <p>
+ * 2--mapper返回Mono时,通道等这个Mono结束再处理下一个元素(相当于通道内concatMap);Mono.just/fromCallable直接同步取值
+ * <p>
+ * 3--从上游收到、还没有发给下游的元素不超过 maxInFlight 个,下游慢的时候上游也停下
+ * <p>
+ * 不同通道的结果按完成的先后合并发出
+ * <p>
+ * 用法: flux.transform(KeyedExecutor.mapping(Schedulers.parallel(), 8, 256, Order::getUserId, this::process).operator())
+ */
+public class KeyedExecutor<T, R> {
+
+    private final Scheduler scheduler;
+
+    private final int lanes;
+
+    private final int maxInFlight;
+
+    private final Function<? super T, ?> key;
+
+    private final Function<? super T, ? extends Mono<? extends R>> asyncMapper;
+
+    private final Function<? super T, ? extends R> syncMapper;
+
+    private KeyedExecutor(Scheduler scheduler, int lanes, int maxInFlight, Function<? super T, ?> key,
+                          Function<? super T, ? extends Mono<? extends R>> asyncMapper, Function<? super T, ? extends R> syncMapper) {
+        if (lanes <= 0 || maxInFlight <= 0) {
+            throw new IllegalArgumentException("lanes and maxInFlight must be positive: " + lanes + ", " + maxInFlight);
+        }
+        this.scheduler = scheduler;
+        this.lanes = lanes;
+        this.maxInFlight = maxInFlight;
+        this.key = key;
+        this.asyncMapper = asyncMapper;
+        this.syncMapper = syncMapper;
+    }
+
+    /**
+     * 每个元素返回一个Mono,通道内一个一个地订阅
+     */
+    public KeyedExecutor(Scheduler scheduler, int lanes, int maxInFlight, Function<? super T, ?> key,
+                         Function<? super T, ? extends Mono<? extends R>> mapper) {
+        this(scheduler, lanes, maxInFlight, key, mapper, null);
+    }
+
+    /**
+     * 同步的计算,直接在通道的线程上执行,返回null表示不发出
+     */
+    public static <T, R> KeyedExecutor<T, R> mapping(Scheduler scheduler, int lanes, int maxInFlight,
+                                                     Function<? super T, ?> key, Function<? super T, ? extends R> mapper) {
+        return new KeyedExecutor<>(scheduler, lanes, maxInFlight, key, null, mapper);
+    }
+
+    public Function<Flux<T>, Flux<R>> operator() {
+        return NonFuseableLift.operator((scannable, actual) -> new KeyedSubscriber(actual));
+    }
+
+    /**
+     * 再做一次混淆,避免 hashCode 低位分布不均(比如都是偶数)时通道负载不均
+     */
+    int laneOf(Object k) {
+        int h = k == null ? 0 : k.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return (h & Integer.MAX_VALUE) % lanes;
+    }
+
+    final class KeyedSubscriber implements CoreSubscriber<T>, Subscription {
+
+        final CoreSubscriber<? super R> actual;
+
+        final List<Lane> laneList;
+
+        /**
+         * 所有通道的结果,多生产者单消费者
+         */
+        final Queue<R> results = new ConcurrentLinkedQueue<>();
+
+        final AtomicInteger wip = new AtomicInteger();
+
+        final AtomicLong requested = new AtomicLong();
+
+        /**
+         * 已经交给通道、还没处理完的元素个数
+         */
+        final AtomicLong processing = new AtomicLong();
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        final int limit;
+
+        Subscription s;
+
+        volatile boolean done;
+
+        volatile boolean cancelled;
+
+        /**
+         * 只在drain里访问: 已经发出、还没有补充给上游的个数
+         */
+        int consumed;
+
+        KeyedSubscriber(CoreSubscriber<? super R> actual) {
+            this.actual = actual;
+            this.limit = Math.max(1, maxInFlight - (maxInFlight >> 2));
+            this.laneList = new ArrayList<>(lanes);
+            for (int i = 0; i < lanes; i++) {
+                laneList.add(new Lane(this, scheduler.createWorker()));
+            }
+        }
+
+        @Override
+        public Context currentContext() {
+            return actual.currentContext();
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            if (Operators.validate(this.s, s)) {
+                this.s = s;
+                actual.onSubscribe(this);
+                s.request(maxInFlight);
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            if (done) {
+                Operators.onNextDropped(t, actual.currentContext());
+                return;
+            }
+            Lane lane;
+            try {
+                lane = laneList.get(laneOf(key.apply(t)));
+            } catch (Throwable e) {
+                onError(Operators.onOperatorError(s, e, t, actual.currentContext()));
+                return;
+            }
+            processing.incrementAndGet();
+            lane.offer(t);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (!error.compareAndSet(null, t)) {
+                Operators.onErrorDropped(t, actual.currentContext());
+                return;
+            }
+            done = true;
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            done = true;
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (Operators.validate(n)) {
+                requested.getAndUpdate(r -> Operators.addCap(r, n));
+                drain();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                s.cancel();
+                disposeLanes();
+                if (wip.getAndIncrement() == 0) {
+                    results.clear();
+                }
+            }
+        }
+
+        /**
+         * 通道处理完一个元素,result为null表示没有结果
+         */
+        void onProcessed(R result) {
+            if (result != null) {
+                results.offer(result);
+            } else {
+                //没有结果也释放一个名额
+                results.offer(skip());
+            }
+            processing.decrementAndGet();
+            drain();
+        }
+
+        void onLaneError(Throwable e) {
+            if (error.compareAndSet(null, e)) {
+                s.cancel();
+                done = true;
+                drain();
+            } else {
+                Operators.onErrorDropped(e, actual.currentContext());
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        R skip() {
+            return (R) SKIP;
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            for (;;) {
+                long r = requested.get();
+                long e = 0;
+                for (;;) {
+                    if (cancelled) {
+                        results.clear();
+                        return;
+                    }
+                    if (error.get() != null) {
+                        fail();
+                        return;
+                    }
+                    boolean d = done && processing.get() == 0;
+                    R v = results.peek();
+                    if (v == null) {
+                        if (d) {
+                            disposeLanes();
+                            actual.onComplete();
+                            return;
+                        }
+                        break;
+                    }
+                    //没有结果的元素不需要下游的request,直接释放名额
+                    if (v != SKIP) {
+                        if (e == r) {
+                            break;
+                        }
+                        actual.onNext(v);
+                        e++;
+                    }
+                    results.poll();
+                    if (++consumed == limit) {
+                        consumed = 0;
+                        s.request(limit);
+                    }
+                }
+                if (e != 0 && r != Long.MAX_VALUE) {
+                    requested.addAndGet(-e);
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+
+        void fail() {
+            cancelled = true;
+            s.cancel();
+            disposeLanes();
+            results.clear();
+            actual.onError(error.get());
+        }
+
+        void disposeLanes() {
+            for (Lane lane : laneList) {
+                lane.worker.dispose();
+            }
+        }
+    }
+
+    private static final Object SKIP = new Object();
+
+    /**
+     * 一个通道: 一个Worker加一个队列,用wip保证同一时刻只有一个任务在处理这个通道
+     */
+    final class Lane implements Runnable {
+
+        final KeyedSubscriber parent;
+
+        final Scheduler.Worker worker;
+
+        final Queue<T> queue = new ConcurrentLinkedQueue<>();
+
+        final AtomicInteger wip = new AtomicInteger();
+
+        /**
+         * 等待异步Mono时保存的missed,Mono结束后继续
+         */
+        int resumeMissed;
+
+        Lane(KeyedSubscriber parent, Scheduler.Worker worker) {
+            this.parent = parent;
+            this.worker = worker;
+        }
+
+        void offer(T t) {
+            queue.offer(t);
+            if (wip.getAndIncrement() == 0) {
+                worker.schedule(this);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run() {
+            int missed = resumeMissed == 0 ? 1 : resumeMissed;
+            resumeMissed = 0;
+            for (;;) {
+                for (;;) {
+                    if (parent.cancelled) {
+                        queue.clear();
+                        return;
+                    }
+                    T t = queue.poll();
+                    if (t == null) {
+                        break;
+                    }
+                    try {
+                        if (syncMapper != null) {
+                            parent.onProcessed(syncMapper.apply(t));
+                            continue;
+                        }
+                        Mono<? extends R> mono = asyncMapper.apply(t);
+                        if (mono instanceof Callable) {
+                            parent.onProcessed(((Callable<R>) mono).call());
+                            continue;
+                        }
+                        resumeMissed = missed;
+                        mono.subscribe(new Inner(this));
+                        return;
+                    } catch (Throwable e) {
+                        parent.onLaneError(Operators.onOperatorError(e, parent.actual.currentContext()));
+                        return;
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 异步Mono的结果,结束之后回到通道的Worker上继续处理下一个元素
+     */
+    final class Inner extends BaseSubscriber<R> {
+
+        final Lane lane;
+
+        R value;
+
+        Inner(Lane lane) {
+            this.lane = lane;
+        }
+
+        @Override
+        protected void hookOnNext(R value) {
+            this.value = value;
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            lane.parent.onProcessed(value);
+            lane.worker.schedule(lane);
+        }
+
+        @Override
+        protected void hookOnError(Throwable throwable) {
+            lane.parent.onLaneError(throwable);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.xz.hello.reactor.keyed;
+
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.function.Function;
+
+/**
+ * groupBy(key).flatMap(g -> g.publishOn(...)) 和 KeyedExecutor 的对比
+ * <p>
+ * 同样的元素个数,key的个数从少到多;每个元素做一点计算
+ * <p>
+ * groupBy 按默认的 flatMap 并发数(256)会在key超过256个时卡住,这里对每个groupBy运行限时30秒,超时记为卡住;
+ * 另外测一个把 flatMap 并发数调到key个数的版本
+ */
+public class KeyedExecutorBenchmark {
+
+    private static final int ELEMENTS = 1_000_000;
+
+    private static volatile long sink;
+
+    public static void main(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        Scheduler scheduler = Schedulers.newParallel("bench", threads);
+        for (int keys : new int[]{16, 1_000, 100_000}) {
+            for (int round = 0; round < 2; round++) {
+                measure("groupBy().flatMap()", keys, flux -> flux
+                        .groupBy(i -> i % keys)
+                        .flatMap(g -> g.publishOn(scheduler).map(KeyedExecutorBenchmark::work)));
+                measure("groupBy().flatMap(keys)", keys, flux -> flux
+                        .groupBy(i -> i % keys)
+                        .flatMap(g -> g.publishOn(scheduler).map(KeyedExecutorBenchmark::work), keys));
+                measure("KeyedExecutor", keys, flux -> flux
+                        .transform(KeyedExecutor.<Integer, Long>mapping(scheduler, threads * 2, 1024,
+                                i -> i % keys, KeyedExecutorBenchmark::work).operator()));
+            }
+        }
+        scheduler.dispose();
+    }
+
+    private static void measure(String name, int keys, Function<Flux<Integer>, Flux<Long>> pipeline) {
+        long start = System.nanoTime();
+        String result;
+        try {
+            Long count = Flux.range(0, ELEMENTS).transform(pipeline).count().block(Duration.ofSeconds(30));
+            result = String.format("%8d ms (%d results)", (System.nanoTime() - start) / 1_000_000, count);
+        } catch (IllegalStateException e) {
+            result = "  stuck (timeout after 30 s)";
+        }
+        System.out.println(String.format("%-26s keys=%-7d %s", name, keys, result));
+    }
+
+    private static long work(int i) {
+        long x = i;
+        for (int k = 0; k < 200; k++) {
+            x = x * 6364136223846793005L + 1442695040888963407L;
+        }
+        sink = x;
+        return x;
+    }
+}
@@ -0,0 +1,541 @@
+package com.xz.hello.reactor.limit;
+
+import com.xz.hello.reactor.NonFuseableLift;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Operators;
+import reactor.util.context.Context;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 并发数自适应的 flatMap
+ * <p>
+ * test2 里的 flatMap(s -> ...delayElements(...)) 和 testError2 注释里调用外部服务的写法,并发数都是固定的(默认256):
+ * 下游服务变慢时256太多,请求在服务端排队,延迟和错误一起上升;服务健康时又可能太少。这里根据内部Publisher的延迟和错误持续调整并发上限(limit):
+ * <p>
+ * 1--每个内部Publisher从订阅到结束的时间是一个延迟样本,每攒够 max(10, limit) 个样本算一次窗口平均延迟(出错的调用只计数,不算延迟)
+ * <p>
+ * 2--基线延迟是成功调用的最小延迟,每5秒换成最近5秒里的最小值,服务的基线真的变了(比如换了机房)也能跟上
+ * <p>
+ * 3--没有错误时按梯度调整(gradient): 梯度 = tolerance x 基线 / 窗口延迟,限制在 [0.5, 1];
+ * 新上限 = 上限 x 梯度 + sqrt(上限),延迟接近基线时每个窗口加 sqrt(上限),延迟上升时按比例减少,再做平滑
+ * <p>
+ * 4--窗口里有错误时直接乘以0.7(AIMD的乘性减),不平滑
+ * <p>
+ * 5--窗口里实际并发从没超过上限的一半时不增加上限(负载不够,延迟低不说明还能加)
+ * <p>
+ * 向上游最多请求 2 x limit 个元素,拿不到并发名额的元素在这里排队,排队长度和排队时间都有统计;
+ * 内部Publisher的结果按完成的先后发出,和 flatMap 一样不保证顺序;每个内部Publisher和 flatMap 一样先请求 INNER_PREFETCH 个,
+ * 结果交付给下游之后再补充,所以下游慢时内部Publisher也会停下(这段时间也算在它的延迟里)。统计和上限是所有订阅共享的
+ * <p>
+ * continueOnError 为 false 时内部的错误和 flatMap 一样让整个流出错;为 true 时错误只计入统计、降低上限,这个元素没有结果
+ * <p>
+ * 用法: flux.transform(new AdaptiveFlatMap<String, String>(service::call, 16, 1, 512, 2.0, true).operator())
+ */
+public class AdaptiveFlatMap<T, R> {
+
+    private static final int MIN_WINDOW = 10;
+
+    /**
+     * 每个内部Publisher先请求的个数,和 flatMap 的默认值一样,交付了3/4之后补充
+     */
+    private static final int INNER_PREFETCH = 32;
+
+    private static final int INNER_REPLENISH = INNER_PREFETCH - (INNER_PREFETCH >> 2);
+
+    private static final double DECREASE = 0.7;
+
+    private static final double SMOOTHING = 0.2;
+
+    private static final long BASELINE_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final Function<? super T, ? extends Publisher<? extends R>> mapper;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final double tolerance;
+
+    private final boolean continueOnError;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder queueWaitNanos = new LongAdder();
+    private final LongAdder started = new LongAdder();
+
+    private volatile double limit;
+
+    private volatile double latencyNanos;
+
+    private volatile double baselineNanos;
+
+    /**
+     * 以下字段在 sample 的 synchronized 里访问
+     */
+    private int windowCount;
+    private long windowSumNanos;
+    private int windowErrors;
+    private int windowMaxInFlight;
+    private long periodMinNanos = Long.MAX_VALUE;
+    private long periodStartNanos = System.nanoTime();
+
+    /**
+     * @param tolerance 窗口延迟不超过基线的多少倍时认为服务没有排队,通常1.5到2
+     */
+    public AdaptiveFlatMap(Function<? super T, ? extends Publisher<? extends R>> mapper, int initialLimit,
+                           int minLimit, int maxLimit, double tolerance, boolean continueOnError) {
+        if (minLimit <= 0 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("invalid limits: initial=" + initialLimit + ", range=" + minLimit + ".." + maxLimit);
+        }
+        if (tolerance < 1) {
+            throw new IllegalArgumentException("tolerance must be >= 1: " + tolerance);
+        }
+        this.mapper = mapper;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.continueOnError = continueOnError;
+        this.limit = initialLimit;
+    }
+
+    public Function<Flux<T>, Flux<R>> operator() {
+        return NonFuseableLift.operator((scannable, actual) -> new LimitSubscriber(actual));
+    }
+
+    public int getLimit() {
+        return (int) Math.round(limit);
+    }
+
+    /**
+     * 正在执行的内部Publisher个数
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * 已经从上游收到、在等并发名额的元素个数
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * 元素等并发名额的平均时间
+     */
+    public double getMeanQueueMillis() {
+        long count = started.sum();
+        return count == 0 ? 0 : queueWaitNanos.sum() / 1e6 / count;
+    }
+
+    /**
+     * 内部Publisher延迟的指数移动平均
+     */
+    public double getLatencyMillis() {
+        return latencyNanos / 1e6;
+    }
+
+    public double getBaselineMillis() {
+        return baselineNanos / 1e6;
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public String snapshot() {
+        return String.format("limit=%d, inFlight=%d, queued=%d, queueMeanMs=%.2f, latencyMs=%.2f, baselineMs=%.2f, completed=%d, errors=%d",
+                getLimit(), getInFlight(), getQueued(), getMeanQueueMillis(), getLatencyMillis(), getBaselineMillis(),
+                getCompleted(), getErrors());
+    }
+
+    private synchronized void sample(long nanos, boolean error, int active) {
+        windowMaxInFlight = Math.max(windowMaxInFlight, active);
+        if (error) {
+            //被拒绝的调用往往返回得特别快,不算进延迟,否则基线会被拉低
+            errors.increment();
+            windowErrors++;
+        } else {
+            completed.increment();
+            latencyNanos = latencyNanos == 0 ? nanos : latencyNanos * 0.9 + nanos * 0.1;
+            windowCount++;
+            windowSumNanos += nanos;
+            baseline(nanos);
+        }
+        double current = limit;
+        if (windowCount + windowErrors < Math.max(MIN_WINDOW, current)) {
+            return;
+        }
+        double next;
+        if (windowErrors > 0 || windowCount == 0) {
+            next = current * DECREASE;
+        } else {
+            double windowNanos = (double) windowSumNanos / windowCount;
+            double gradient = Math.max(0.5, Math.min(1.0, tolerance * baselineNanos / windowNanos));
+            next = current * gradient + Math.sqrt(current);
+            if (next > current && windowMaxInFlight < current / 2) {
+                next = current;
+            }
+            next = current * (1 - SMOOTHING) + next * SMOOTHING;
+        }
+        limit = Math.max(minLimit, Math.min(maxLimit, next));
+        windowCount = 0;
+        windowSumNanos = 0;
+        windowErrors = 0;
+        windowMaxInFlight = 0;
+    }
+
+    /**
+     * 基线取单个样本的最小值;每个周期结束时换成这个周期里的最小值,服务的基线变慢或者变快之后最多一个周期就能跟上
+     */
+    private void baseline(long nanos) {
+        periodMinNanos = Math.min(periodMinNanos, nanos);
+        long now = System.nanoTime();
+        if (now - periodStartNanos >= BASELINE_PERIOD_NANOS) {
+            baselineNanos = periodMinNanos;
+            periodMinNanos = Long.MAX_VALUE;
+            periodStartNanos = now;
+        } else if (baselineNanos == 0 || nanos < baselineNanos) {
+            baselineNanos = nanos;
+        }
+    }
+
+    /**
+     * 内部Publisher发出的一个结果,记下来源以便交付之后给它补充请求
+     */
+    final class Emitted {
+
+        final R value;
+
+        final Inner inner;
+
+        Emitted(R value, Inner inner) {
+            this.value = value;
+            this.inner = inner;
+        }
+    }
+
+    static final class Waiting<T> {
+
+        final T value;
+
+        final long arrivalNanos;
+
+        Waiting(T value, long arrivalNanos) {
+            this.value = value;
+            this.arrivalNanos = arrivalNanos;
+        }
+    }
+
+    /**
+     * 所有决策都在drain里做,用wip保证同一时刻只有一个线程在drain;上游、内部Publisher和下游的信号只放进队列
+     */
+    final class LimitSubscriber implements CoreSubscriber<T>, Subscription {
+
+        final CoreSubscriber<? super R> actual;
+
+        final Queue<Waiting<T>> arrivals = new ConcurrentLinkedQueue<>();
+
+        final Queue<Emitted> results = new ConcurrentLinkedQueue<>();
+
+        final Queue<Inner> finished = new ConcurrentLinkedQueue<>();
+
+        final Set<Inner> inners = ConcurrentHashMap.newKeySet();
+
+        final AtomicInteger resultCount = new AtomicInteger();
+
+        final AtomicInteger wip = new AtomicInteger();
+
+        final AtomicLong requested = new AtomicLong();
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        Subscription s;
+
+        volatile boolean done;
+
+        volatile boolean cancelled;
+
+        /**
+         * 以下字段只在drain里访问
+         */
+        final ArrayDeque<Waiting<T>> pending = new ArrayDeque<>();
+
+        int active;
+
+        long outstanding;
+
+        boolean terminated;
+
+        LimitSubscriber(CoreSubscriber<? super R> actual) {
+            this.actual = actual;
+        }
+
+        @Override
+        public Context currentContext() {
+            return actual.currentContext();
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            if (Operators.validate(this.s, s)) {
+                this.s = s;
+                actual.onSubscribe(this);
+                drain();
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            if (done) {
+                Operators.onNextDropped(t, actual.currentContext());
+                return;
+            }
+            queued.incrementAndGet();
+            arrivals.offer(new Waiting<>(t, System.nanoTime()));
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (done || !error.compareAndSet(null, t)) {
+                Operators.onErrorDropped(t, actual.currentContext());
+                return;
+            }
+            done = true;
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            done = true;
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (Operators.validate(n)) {
+                requested.getAndUpdate(r -> Operators.addCap(r, n));
+                drain();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                s.cancel();
+                cancelInners();
+                drain();
+            }
+        }
+
+        void innerDone(Inner inner) {
+            inners.remove(inner);
+            finished.offer(inner);
+            drain();
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            for (;;) {
+                if (terminated) {
+                    return;
+                }
+                if (cancelled) {
+                    clear();
+                    return;
+                }
+                Inner inner;
+                while ((inner = finished.poll()) != null) {
+                    active--;
+                    inFlight.decrementAndGet();
+                    sample(inner.latencyNanos, inner.failure != null, active + 1);
+                    if (inner.failure != null && !continueOnError && !error.compareAndSet(null, inner.failure)) {
+                        Operators.onErrorDropped(inner.failure, actual.currentContext());
+                    }
+                }
+                Throwable e = error.get();
+                if (e != null) {
+                    fail(e);
+                    return;
+                }
+
+                long r = requested.get();
+                long emitted = 0;
+                Emitted v;
+                while (emitted != r && (v = results.poll()) != null) {
+                    resultCount.decrementAndGet();
+                    actual.onNext(v.value);
+                    emitted++;
+                    v.inner.replenish();
+                }
+                if (emitted != 0 && r != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+
+                Waiting<T> w;
+                while ((w = arrivals.poll()) != null) {
+                    outstanding--;
+                    pending.offer(w);
+                }
+                int max = getLimit();
+                while (active < max && (w = pending.poll()) != null) {
+                    if (!start(w)) {
+                        return;
+                    }
+                }
+
+                //排队的、执行中的、没交付的结果都算在窗口里,下游慢的时候也不再向上游要
+                long want = 2L * max - active - pending.size() - outstanding - resultCount.get();
+                if (!done && want > 0) {
+                    outstanding += want;
+                    s.request(want);
+                }
+
+                if (done && arrivals.isEmpty() && pending.isEmpty() && active == 0 && results.isEmpty()) {
+                    terminated = true;
+                    actual.onComplete();
+                    return;
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+
+        boolean start(Waiting<T> w) {
+            long now = System.nanoTime();
+            queued.decrementAndGet();
+            queueWaitNanos.add(now - w.arrivalNanos);
+            started.increment();
+            Publisher<? extends R> publisher;
+            try {
+                publisher = mapper.apply(w.value);
+            } catch (Throwable ex) {
+                fail(Operators.onOperatorError(s, ex, w.value, actual.currentContext()));
+                return false;
+            }
+            Inner inner = new Inner(this, now);
+            inners.add(inner);
+            //cancel()可能在另一个线程上已经遍历完inners,加入之后再检查一次,避免取消之后还有内部Publisher在运行
+            if (cancelled) {
+                inners.remove(inner);
+                clear();
+                return false;
+            }
+            active++;
+            inFlight.incrementAndGet();
+            publisher.subscribe(inner);
+            return true;
+        }
+
+        void fail(Throwable e) {
+            terminated = true;
+            s.cancel();
+            cancelInners();
+            clear();
+            actual.onError(e);
+        }
+
+        void cancelInners() {
+            for (Inner inner : inners) {
+                inner.dispose();
+            }
+        }
+
+        /**
+         * 取消或者出错时归还统计里的排队和并发个数
+         */
+        void clear() {
+            Waiting<T> w;
+            while ((w = arrivals.poll()) != null) {
+                pending.offer(w);
+            }
+            queued.addAndGet(-pending.size());
+            pending.clear();
+            inFlight.addAndGet(-active);
+            active = 0;
+            results.clear();
+            finished.clear();
+        }
+    }
+
+    final class Inner extends BaseSubscriber<R> {
+
+        final LimitSubscriber parent;
+
+        final long startNanos;
+
+        long latencyNanos;
+
+        Throwable failure;
+
+        /**
+         * 只在drain里访问: 已经交付、还没有补充请求的个数
+         */
+        int produced;
+
+        Inner(LimitSubscriber parent, long startNanos) {
+            this.parent = parent;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            request(INNER_PREFETCH);
+        }
+
+        void replenish() {
+            if (++produced == INNER_REPLENISH) {
+                produced = 0;
+                request(INNER_REPLENISH);
+            }
+        }
+
+        @Override
+        protected void hookOnNext(R value) {
+            parent.results.offer(new Emitted(value, this));
+            parent.resultCount.incrementAndGet();
+            parent.drain();
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            latencyNanos = System.nanoTime() - startNanos;
+            parent.innerDone(this);
+        }
+
+        @Override
+        protected void hookOnError(Throwable throwable) {
+            latencyNanos = System.nanoTime() - startNanos;
+            failure = throwable;
+            parent.innerDone(this);
+        }
+    }
+}
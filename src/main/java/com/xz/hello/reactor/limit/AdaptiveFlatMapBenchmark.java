@@ -0,0 +1,109 @@
+package com.xz.hello.reactor.limit;
+
+import com.xz.hello.reactor.SimulatedService;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 固定并发的 flatMap 和 AdaptiveFlatMap 调用同一个随时间变化的模拟服务
+ * <p>
+ * 服务分三个阶段,每个阶段 PHASE_MILLIS: 健康(10ms,能同时处理40个)、变差(30ms,只能同时处理8个)、恢复;
+ * 超过处理能力时排队变慢,超过4倍时直接拒绝。上游不限量,每个阶段统计成功的吞吐量、错误数和成功调用的平均延迟
+ */
+public class AdaptiveFlatMapBenchmark {
+
+    private static final long PHASE_MILLIS = 3000;
+
+    private static final long[][] PHASES = {{10, 40}, {30, 8}, {10, 40}};
+
+    private static final String[] PHASE_NAMES = {"healthy", "degraded", "recovered"};
+
+    public static void main(String[] args) {
+        run("flatMap(256)", (service, stats) -> flux -> flux.flatMap(i -> stats.call(service, i).onErrorResume(e -> Mono.empty()), 256), null);
+        run("flatMap(16)", (service, stats) -> flux -> flux.flatMap(i -> stats.call(service, i).onErrorResume(e -> Mono.empty()), 16), null);
+        AtomicReference<AdaptiveFlatMap<Integer, String>> adaptive = new AtomicReference<>();
+        run("adaptive", (service, stats) -> {
+            adaptive.set(new AdaptiveFlatMap<>(i -> stats.call(service, i), 16, 1, 512, 1.5, true));
+            return adaptive.get().operator();
+        }, adaptive::get);
+    }
+
+    interface Strategy {
+        Function<Flux<Integer>, Flux<String>> create(SimulatedService service, Stats stats);
+    }
+
+    interface LimiterRef {
+        AdaptiveFlatMap<Integer, String> get();
+    }
+
+    private static void run(String name, Strategy strategy, LimiterRef limiter) {
+        SimulatedService service = new SimulatedService(PHASES[0][0], 0);
+        service.setCapacity((int) PHASES[0][1]);
+        Stats stats = new Stats();
+        Flux<String> flux = Flux.range(0, Integer.MAX_VALUE).transform(strategy.create(service, stats));
+        for (int p = 1; p < PHASES.length; p++) {
+            int phase = p;
+            Schedulers.parallel().schedule(() -> {
+                report(name, phase - 1, stats, limiter);
+                stats.phase.set(phase);
+                service.setLatencyMillis(PHASES[phase][0]);
+                service.setCapacity((int) PHASES[phase][1]);
+            }, PHASE_MILLIS * phase, TimeUnit.MILLISECONDS);
+        }
+        flux.take(Duration.ofMillis(PHASE_MILLIS * PHASES.length)).blockLast();
+        report(name, PHASES.length - 1, stats, limiter);
+    }
+
+    private static void report(String name, int phase, Stats stats, LimiterRef limiter) {
+        long ok = stats.ok[phase].sum();
+        long failed = stats.failed[phase].sum();
+        double latency = ok == 0 ? 0 : stats.latencyNanos[phase].sum() / 1e6 / ok;
+        AdaptiveFlatMap<Integer, String> adaptive = limiter == null ? null : limiter.get();
+        System.out.println(String.format("%-14s %-10s %8.0f ok/s %8.0f errors/s  latency %7.1f ms%s", name, PHASE_NAMES[phase],
+                ok * 1000.0 / PHASE_MILLIS, failed * 1000.0 / PHASE_MILLIS, latency,
+                adaptive == null ? "" : "  " + adaptive.snapshot()));
+    }
+
+    /**
+     * 按阶段统计每次调用的结果
+     */
+    static final class Stats {
+
+        final AtomicInteger phase = new AtomicInteger();
+
+        final LongAdder[] ok = adders();
+
+        final LongAdder[] failed = adders();
+
+        final LongAdder[] latencyNanos = adders();
+
+        Mono<String> call(SimulatedService service, int i) {
+            return Mono.defer(() -> {
+                long start = System.nanoTime();
+                return service.call(String.valueOf(i))
+                        .doOnSuccess(s -> {
+                            int p = phase.get();
+                            ok[p].increment();
+                            latencyNanos[p].add(System.nanoTime() - start);
+                        })
+                        .doOnError(e -> failed[phase.get()].increment());
+            });
+        }
+
+        private static LongAdder[] adders() {
+            LongAdder[] adders = new LongAdder[PHASES.length];
+            for (int i = 0; i < adders.length; i++) {
+                adders[i] = new LongAdder();
+            }
+            return adders;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package com.xz.hello.reactor.metrics;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.Fuseable;
+import reactor.core.Scannable;
+import reactor.core.publisher.Hooks;
+import reactor.core.publisher.Operators;
+import reactor.util.context.Context;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * 按操作符统计内存分配: 每个阶段(stage)在调用线程上分配了多少字节、处理了多少个信号
+ * <p>
+ * Flux.range(...).map(i -> i * i) 里的装箱、testGenerate 和 testHandle 里 "" + (char) letterIndexAscii 这样的字符串拼接,
+ * 用外部的profiler只能看到分配发生在哪个lambda,看不出是链上的哪一步。这里和 RequestProfiler 一样在每个操作符后面插一个
+ * 透明的 Subscriber,每次信号穿过它时读当前线程已分配的字节数(com.sun.management.ThreadMXBean.getThreadAllocatedBytes):
+ * <p>
+ * 1--信号是嵌套调用的(上游的onNext里调用下游的onNext),用线程本地的栈记录每一层里子调用分配的字节,
+ * 一层的总分配减去子调用的分配就是这一层自己的分配
+ * <p>
+ * 2--向下的信号(onNext/onComplete/onError)里自己的分配算到下游那个阶段(比如map的函数);
+ * 向上的调用(request/poll)里自己的分配算到上游那个阶段(比如range在request里生成元素并装箱)
+ * <p>
+ * 3--阶段按离源头的距离编号,源头是0,最后的订阅者(比如subscribe里的lambda)也是一个阶段
+ * <p>
+ * 用法: profiler.install(); 组装并运行要分析的链(可以用 RequestProfiler.pipeline(name) 起名字);profiler.report() 输出按分配量排序的报告
+ * <p>
+ * 注意: 每个信号要多读几次线程分配计数器,只适合排查问题时打开;和 RequestProfiler 一样不实现 ConditionalSubscriber
+ * <p>
+ * JDK 8 上 getThreadAllocatedBytes(long) 每次调用自己要分配线程id数组和结果数组(几十字节),这些字节会落在被测的区间里。
+ * install() 时连续读两次计数器测出一次读取的分配量,每一层减去它自己和子调用的读取,新版本的JDK上这个值是0
+ */
+public class AllocationProfiler {
+
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+    private static final ThreadLocal<FrameStack> FRAMES = ThreadLocal.withInitial(FrameStack::new);
+
+    /**
+     * 读一次线程分配计数器本身分配的字节数,install() 时测量
+     */
+    private static volatile long probeBytes;
+
+    private final String hookKey;
+
+    private final Map<String, Map<Integer, Stage>> pipelines = new ConcurrentHashMap<>();
+
+    public AllocationProfiler() {
+        this.hookKey = AllocationProfiler.class.getName() + "@" + Integer.toHexString(System.identityHashCode(this));
+    }
+
+    /**
+     * JVM不支持线程分配计数时抛出 UnsupportedOperationException
+     */
+    public void install() {
+        if (THREADS == null || !THREADS.isThreadAllocatedMemorySupported()) {
+            throw new UnsupportedOperationException("thread allocated bytes not supported by this JVM");
+        }
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+        probeBytes = measureProbe();
+        Function<? super Publisher<Object>, ? extends Publisher<Object>> lift =
+                Operators.lift((scannable, actual) -> allocationSubscriber(scannable, actual));
+        Hooks.onEachOperator(hookKey, lift);
+    }
+
+    /**
+     * 只影响之后组装的链
+     */
+    public void uninstall() {
+        Hooks.resetOnEachOperator(hookKey);
+    }
+
+    public void reset() {
+        pipelines.clear();
+    }
+
+    /**
+     * 某条链上所有的阶段,从源头往下排列
+     */
+    public List<Stage> stages(String pipeline) {
+        Map<Integer, Stage> stages = pipelines.get(pipeline);
+        List<Stage> result = stages == null ? new ArrayList<>() : new ArrayList<>(stages.values());
+        result.sort(Comparator.comparingInt(Stage::getDepth));
+        return result;
+    }
+
+    /**
+     * 所有链的所有阶段,按分配的字节数从大到小排列
+     */
+    public List<Stage> ranked() {
+        List<Stage> result = new ArrayList<>();
+        pipelines.values().forEach(stages -> result.addAll(stages.values()));
+        result.sort(Comparator.comparingLong(Stage::getAllocatedBytes).reversed());
+        return result;
+    }
+
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-4s %14s %10s %12s  %s%n", "rank", "bytes", "signals", "bytes/signal", "stage"));
+        int rank = 1;
+        for (Stage stage : ranked()) {
+            sb.append(String.format("%-4d %14d %10d %12.1f  %s%n", rank++, stage.getAllocatedBytes(), stage.getSignals(),
+                    stage.getBytesPerSignal(), stage));
+        }
+        return sb.toString();
+    }
+
+    private <T> AllocationSubscriber<T> allocationSubscriber(Scannable operator, CoreSubscriber<? super T> actual) {
+        String pipeline = actual.currentContext().getOrDefault(RequestProfiler.PIPELINE_KEY, null);
+        //钩子给每个操作符套的lift、Hooks.onOperatorDebug() 套的 OnAssembly 都不算在距离里,
+        //这样上游操作符的下游阶段和下游操作符是同一个编号
+        List<Scannable> chain = new ArrayList<>();
+        Stream.concat(Stream.of(operator), operator.parents()).filter(p -> !isWrapper(p)).forEach(chain::add);
+        if (pipeline == null) {
+            Scannable source = chain.isEmpty() ? operator : chain.get(chain.size() - 1);
+            pipeline = "unnamed(" + source.name() + ")";
+        }
+        int depth = Math.max(0, chain.size() - 1);
+        Map<Integer, Stage> stages = pipelines.computeIfAbsent(pipeline, k -> new ConcurrentHashMap<>());
+        String name = pipeline;
+        Stage upstream = stages.computeIfAbsent(depth, d -> new Stage(name, d));
+        upstream.name = operator.name();
+        Stage downstream = stages.computeIfAbsent(depth + 1, d -> new Stage(name, d));
+        if (downstream.name == null) {
+            //下一个操作符订阅时会换成操作符的名字,最后的订阅者只能用类名
+            downstream.name = actual.getClass().getSimpleName();
+        }
+        return new AllocationSubscriber<>(actual, upstream, downstream);
+    }
+
+    /**
+     * 连续两次读取之间的差就是一次读取的分配量;中间可能碰上TLAB换新之类的干扰,取多次里最小的
+     */
+    private static long measureProbe() {
+        long id = Thread.currentThread().getId();
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < 16; i++) {
+            long first = THREADS.getThreadAllocatedBytes(id);
+            long second = THREADS.getThreadAllocatedBytes(id);
+            min = Math.min(min, second - first);
+        }
+        return Math.max(0, min);
+    }
+
+    private static boolean isWrapper(Scannable operator) {
+        String name = operator.getClass().getSimpleName();
+        return name.contains("Lift") || name.contains("OnAssembly");
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) bean : null;
+    }
+
+    /**
+     * 一个阶段,同一条链多次订阅时累加
+     */
+    public static final class Stage {
+
+        private final String pipeline;
+        private final int depth;
+        private final LongAdder allocated = new LongAdder();
+        private final LongAdder signals = new LongAdder();
+
+        volatile String name;
+
+        Stage(String pipeline, int depth) {
+            this.pipeline = pipeline;
+            this.depth = depth;
+        }
+
+        public String getPipeline() {
+            return pipeline;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * 离源头的距离,源头是0
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        public long getAllocatedBytes() {
+            return allocated.sum();
+        }
+
+        /**
+         * 这个阶段收到的 onNext/onComplete/onError 个数,融合时是poll到的元素个数;源头阶段是它发出的元素个数
+         */
+        public long getSignals() {
+            return signals.sum();
+        }
+
+        public double getBytesPerSignal() {
+            long count = getSignals();
+            return count == 0 ? 0 : (double) getAllocatedBytes() / count;
+        }
+
+        @Override
+        public String toString() {
+            return pipeline + " #" + depth + " " + name;
+        }
+    }
+
+    /**
+     * 每个线程一个栈,每一层记录子调用分配的字节数
+     * <p>
+     * 一层的区间里除了自己的分配,还有自己结束时的那次读取,以及每个子调用开始时的那次读取(子调用结束时的读取算在子调用里),
+     * 所以子调用按 total + probeBytes 记到父层,自己再减去一个 probeBytes
+     */
+    static final class FrameStack {
+
+        long[] children = new long[16];
+
+        int top;
+
+        long enter() {
+            if (top == children.length) {
+                children = Arrays.copyOf(children, top * 2);
+            }
+            children[top++] = 0;
+            return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        void exit(long start, Stage stage) {
+            long total = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+            long probe = probeBytes;
+            long self = total - children[--top] - probe;
+            if (top > 0) {
+                children[top - 1] += total + probe;
+            }
+            if (self > 0) {
+                stage.allocated.add(self);
+            }
+        }
+    }
+
+    /**
+     * 透明地转发所有信号,实现 QueueSubscription 不破坏融合;每个信号前后各读一次分配计数器
+     */
+    static final class AllocationSubscriber<T> implements CoreSubscriber<T>, Fuseable.QueueSubscription<T> {
+
+        final CoreSubscriber<? super T> actual;
+
+        final Stage upstream;
+
+        final Stage downstream;
+
+        Subscription s;
+
+        Fuseable.QueueSubscription<T> qs;
+
+        AllocationSubscriber(CoreSubscriber<? super T> actual, Stage upstream, Stage downstream) {
+            this.actual = actual;
+            this.upstream = upstream;
+            this.downstream = downstream;
+        }
+
+        @Override
+        public Context currentContext() {
+            return actual.currentContext();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onSubscribe(Subscription s) {
+            if (Operators.validate(this.s, s)) {
+                this.s = s;
+                if (s instanceof Fuseable.QueueSubscription) {
+                    this.qs = (Fuseable.QueueSubscription<T>) s;
+                }
+                actual.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            if (upstream.getDepth() == 0) {
+                upstream.signals.increment();
+            }
+            FrameStack frames = FRAMES.get();
+            long start = frames.enter();
+            try {
+                actual.onNext(t);
+            } finally {
+                downstream.signals.increment();
+                frames.exit(start, downstream);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            FrameStack frames = FRAMES.get();
+            long start = frames.enter();
+            try {
+                actual.onError(t);
+            } finally {
+                downstream.signals.increment();
+                frames.exit(start, downstream);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            FrameStack frames = FRAMES.get();
+            long start = frames.enter();
+            try {
+                actual.onComplete();
+            } finally {
+                downstream.signals.increment();
+                frames.exit(start, downstream);
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            FrameStack frames = FRAMES.get();
+            long start = frames.enter();
+            try {
+                s.request(n);
+            } finally {
+                frames.exit(start, upstream);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            s.cancel();
+        }
+
+        @Override
+        public int requestFusion(int requestedMode) {
+            return qs == null ? Fuseable.NONE : qs.requestFusion(requestedMode);
+        }
+
+        @Override
+        public T poll() {
+            FrameStack frames = FRAMES.get();
+            long start = frames.enter();
+            T value = null;
+            try {
+                value = qs.poll();
+                return value;
+            } finally {
+                if (value != null) {
+                    downstream.signals.increment();
+                }
+                frames.exit(start, upstream);
+            }
+        }
+
+        @Override
+        public int size() {
+            return qs.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return qs.isEmpty();
+        }
+
+        @Override
+        public void clear() {
+            qs.clear();
+        }
+    }
+}
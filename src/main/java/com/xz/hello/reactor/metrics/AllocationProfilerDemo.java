@@ -0,0 +1,50 @@
+package com.xz.hello.reactor.metrics;
+
+import reactor.core.publisher.Flux;
+
+/**
+ * 用 ReactorTest 里的几条链演示 AllocationProfiler: range + map 的装箱,testGenerate 的字符串拼接,
+ * testHandle 的 "" + (char) letterIndexAscii;每条链跑 ROUNDS 次,最后输出按分配量排序的报告
+ */
+public class AllocationProfilerDemo {
+
+    private static final int ROUNDS = 1000;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        AllocationProfiler profiler = new AllocationProfiler();
+        profiler.install();
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                Flux.range(1, 100)
+                        .map(i -> i * i)
+                        .subscriberContext(RequestProfiler.pipeline("range-map"))
+                        .subscribe(i -> sink = i);
+
+                Flux.<String, Integer>generate(() -> 0, (state, s) -> {
+                    s.next("3 x " + state + " = " + 3 * state);
+                    if (state == 10) {
+                        s.complete();
+                    }
+                    return state + 1;
+                })
+                        .subscriberContext(RequestProfiler.pipeline("generate"))
+                        .subscribe(s -> sink = s);
+
+                Flux.just(-1, 30, 13, 9, 20)
+                        .<String>handle((i, s) -> {
+                            if (i >= 1 && i <= 26) {
+                                s.next("" + (char) ('A' + i - 1));
+                            }
+                        })
+                        .filter(s -> !s.isEmpty())
+                        .subscriberContext(RequestProfiler.pipeline("handle"))
+                        .subscribe(s -> sink = s);
+            }
+        } finally {
+            profiler.uninstall();
+        }
+        System.out.print(profiler.report());
+    }
+}
@@ -0,0 +1,324 @@
+package com.xz.hello.reactor.metrics;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.Fuseable;
+import reactor.core.Scannable;
+import reactor.core.publisher.Hooks;
+import reactor.core.publisher.Operators;
+import reactor.util.context.Context;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 请求模式分析器: 统计每条订阅链上每一跳的 request(n) 分布、无界请求和融合(fusion)协商结果
+ * <p>
+ * ReactorTest.testLog 的注释里分析过: LambdaSubscriber 请求 Long.MAX_VALUE 时 FluxRange 走 fastPath(),
+ * 否则走要跟踪剩余需求的 slowPath();如果下游协商成功融合,则根本不走 request,而是直接 poll()。
+ * 这里在每个操作符后面插一个透明的 Subscriber,把这几件事记下来,找出"悄悄"强制上游走慢路径的订阅者
+ * <p>
+ * 用法:
+ * <p>
+ * profiler.install(); 之后组装的 Flux/Mono 都会被统计(Hooks.onEachOperator,全局)
+ * <p>
+ * flux.subscriberContext(RequestProfiler.pipeline("orders")) 给链起名字,否则用源头操作符的名字
+ * <p>
+ * profiler.report() 输出按链分组的报告,profiler.uninstall() 卸载
+ * <p>
+ * 注意: 插入的 Subscriber 不实现 ConditionalSubscriber,filter 之类的 tryOnNext 优化在分析期间不生效,只适合排查问题时打开
+ */
+public class RequestProfiler {
+
+    static final String PIPELINE_KEY = RequestProfiler.class.getName() + ".pipeline";
+
+    private static final int BUCKETS = 64;
+
+    private final String hookKey;
+
+    private final Map<String, Map<String, Hop>> pipelines = new ConcurrentHashMap<>();
+
+    public RequestProfiler() {
+        this.hookKey = RequestProfiler.class.getName() + "@" + Integer.toHexString(System.identityHashCode(this));
+    }
+
+    /**
+     * 给订阅链起名字,配合 subscriberContext 使用
+     */
+    public static Context pipeline(String name) {
+        return Context.of(PIPELINE_KEY, name);
+    }
+
+    public void install() {
+        Function<? super Publisher<Object>, ? extends Publisher<Object>> lift =
+                Operators.lift((scannable, actual) -> new ProfilingSubscriber<>(actual, hop(scannable, actual)));
+        Hooks.onEachOperator(hookKey, lift);
+    }
+
+    /**
+     * 只影响之后组装的链
+     */
+    public void uninstall() {
+        Hooks.resetOnEachOperator(hookKey);
+    }
+
+    public void reset() {
+        pipelines.clear();
+    }
+
+    /**
+     * 某条链上所有的跳,从源头往下排列
+     */
+    public List<Hop> hops(String pipeline) {
+        Map<String, Hop> hops = pipelines.get(pipeline);
+        List<Hop> result = hops == null ? new ArrayList<>() : new ArrayList<>(hops.values());
+        result.sort(Comparator.comparingInt(Hop::getDepth));
+        return result;
+    }
+
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        pipelines.keySet().stream().sorted().forEach(pipeline -> {
+            sb.append("pipeline ").append(pipeline).append('\n');
+            for (Hop hop : hops(pipeline)) {
+                sb.append("  ").append(hop).append('\n');
+            }
+        });
+        return sb.toString();
+    }
+
+    private Hop hop(Scannable operator, CoreSubscriber<?> actual) {
+        String pipeline = actual.currentContext().getOrDefault(PIPELINE_KEY, null);
+        List<Scannable> parents = new ArrayList<>();
+        operator.parents().forEach(parents::add);
+        if (pipeline == null) {
+            Scannable source = parents.isEmpty() ? operator : parents.get(parents.size() - 1);
+            pipeline = "unnamed(" + source.name() + ")";
+        }
+        String upstream = operator.name();
+        String downstream = actual.getClass().getSimpleName();
+        int depth = parents.size();
+        return pipelines.computeIfAbsent(pipeline, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(depth + ":" + upstream + "->" + downstream, k -> new Hop(upstream, downstream, depth));
+    }
+
+    /**
+     * 一跳: 上游操作符 -> 下游订阅者,同一条链多次订阅时累加
+     */
+    public static final class Hop {
+
+        private final String upstream;
+        private final String downstream;
+        private final int depth;
+
+        private final LongAdder subscriptions = new LongAdder();
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder unbounded = new LongAdder();
+        private final LongAdder fusionRequested = new LongAdder();
+        private final LongAdder syncFused = new LongAdder();
+        private final LongAdder asyncFused = new LongAdder();
+        private final LongAdder[] sizes = new LongAdder[BUCKETS];
+
+        Hop(String upstream, String downstream, int depth) {
+            this.upstream = upstream;
+            this.downstream = downstream;
+            this.depth = depth;
+            for (int i = 0; i < BUCKETS; i++) {
+                sizes[i] = new LongAdder();
+            }
+        }
+
+        public String getUpstream() {
+            return upstream;
+        }
+
+        public String getDownstream() {
+            return downstream;
+        }
+
+        /**
+         * 离源头的距离,源头是0
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        public long getSubscriptions() {
+            return subscriptions.sum();
+        }
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        public long getUnboundedRequests() {
+            return unbounded.sum();
+        }
+
+        public long getFusionRequested() {
+            return fusionRequested.sum();
+        }
+
+        public long getFused() {
+            return syncFused.sum() + asyncFused.sum();
+        }
+
+        /**
+         * 第i个桶统计 n 在 [2^i, 2^(i+1)) 之间的有界请求次数
+         */
+        public long[] getRequestSizeHistogram() {
+            long[] result = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                result[i] = sizes[i].sum();
+            }
+            return result;
+        }
+
+        /**
+         * 有过有界请求,又既没有无界请求也没有融合,上游只能走跟踪需求的慢路径
+         */
+        public boolean isSlowPath() {
+            return getRequests() > 0 && getUnboundedRequests() == 0 && getFused() == 0;
+        }
+
+        void request(long n) {
+            requests.increment();
+            if (n == Long.MAX_VALUE) {
+                unbounded.increment();
+            } else {
+                sizes[63 - Long.numberOfLeadingZeros(Math.max(n, 1))].increment();
+            }
+        }
+
+        void fusion(int granted) {
+            fusionRequested.increment();
+            if (granted == Fuseable.SYNC) {
+                syncFused.increment();
+            } else if (granted == Fuseable.ASYNC) {
+                asyncFused.increment();
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(upstream).append(" -> ").append(downstream)
+                    .append(": subscriptions=").append(getSubscriptions())
+                    .append(", requests=").append(getRequests())
+                    .append(", unbounded=").append(getUnboundedRequests())
+                    .append(", fusion=").append(syncFused.sum()).append(" sync/")
+                    .append(asyncFused.sum()).append(" async/")
+                    .append(getFusionRequested()).append(" asked");
+            long[] histogram = getRequestSizeHistogram();
+            sb.append(", sizes={");
+            boolean first = true;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (histogram[i] != 0) {
+                    sb.append(first ? "" : ", ").append(1L << i).append("+:").append(histogram[i]);
+                    first = false;
+                }
+            }
+            sb.append('}');
+            if (isSlowPath()) {
+                sb.append("  <-- slow path");
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * 透明地转发所有信号;实现 QueueSubscription,这样不会破坏上下游之间的融合,只是记录协商结果
+     */
+    static final class ProfilingSubscriber<T> implements CoreSubscriber<T>, Fuseable.QueueSubscription<T> {
+
+        final CoreSubscriber<? super T> actual;
+
+        final Hop hop;
+
+        Subscription s;
+
+        Fuseable.QueueSubscription<T> qs;
+
+        ProfilingSubscriber(CoreSubscriber<? super T> actual, Hop hop) {
+            this.actual = actual;
+            this.hop = hop;
+        }
+
+        @Override
+        public Context currentContext() {
+            return actual.currentContext();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onSubscribe(Subscription s) {
+            if (Operators.validate(this.s, s)) {
+                this.s = s;
+                if (s instanceof Fuseable.QueueSubscription) {
+                    this.qs = (Fuseable.QueueSubscription<T>) s;
+                }
+                hop.subscriptions.increment();
+                actual.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            actual.onNext(t);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            actual.onError(t);
+        }
+
+        @Override
+        public void onComplete() {
+            actual.onComplete();
+        }
+
+        @Override
+        public void request(long n) {
+            hop.request(n);
+            s.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            s.cancel();
+        }
+
+        @Override
+        public int requestFusion(int requestedMode) {
+            int granted = qs == null ? Fuseable.NONE : qs.requestFusion(requestedMode);
+            hop.fusion(granted);
+            return granted;
+        }
+
+        @Override
+        public T poll() {
+            return qs.poll();
+        }
+
+        @Override
+        public int size() {
+            return qs.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return qs.isEmpty();
+        }
+
+        @Override
+        public void clear() {
+            qs.clear();
+        }
+    }
+}
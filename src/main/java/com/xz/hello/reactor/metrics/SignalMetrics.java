@@ -0,0 +1,318 @@
+package com.xz.hello.reactor.metrics;
+
+import com.xz.hello.reactor.NonFuseableLift;
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Operators;
+import reactor.util.context.Context;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 可以插在链中任意位置的指标操作符,用来代替 doOnNext(System.out::print)、log() 和 doOnRequest 打印
+ * <p>
+ * 这些打印在热路径上都是加锁的控制台输出,而这里只对分段计数器(LongAdder)做累加:
+ * <p>
+ * 1--统计 onNext、request、cancel、error、complete 的次数
+ * <p>
+ * 2--统计元素之间的间隔(每 sampleEvery 个元素采样一次),按2的幂分桶做直方图
+ * <p>
+ * 3--统计还没有被满足的 request 个数(in-flight demand),订阅结束或者取消时剩下的需求一并扣掉
+ * <p>
+ * 每个元素不分配任何对象;关闭之后 operator() 原样返回 flux,不加任何操作符,关闭之前组装好的链在订阅时直接透传
+ * <p>
+ * 用法: flux.transform(metrics.operator()),然后用 snapshot() 拉取或者 registerMBean() 发布到JMX
+ */
+public class SignalMetrics implements SignalMetricsMXBean {
+
+    private static final int BUCKETS = 64;
+
+    private final String name;
+
+    private final int sampleEvery;
+
+    private volatile boolean enabled = true;
+
+    private final LongAdder onNext = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder requested = new LongAdder();
+    private final LongAdder cancels = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder completes = new LongAdder();
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder gapCount = new LongAdder();
+    private final LongAdder gapTotalNanos = new LongAdder();
+    private final LongAccumulator gapMaxNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder[] histogram = new LongAdder[BUCKETS];
+
+    /**
+     * @param sampleEvery 每多少个元素测一次间隔,1表示每个都测
+     */
+    public SignalMetrics(String name, int sampleEvery) {
+        if (sampleEvery <= 0) {
+            throw new IllegalArgumentException("sampleEvery must be positive: " + sampleEvery);
+        }
+        this.name = name;
+        this.sampleEvery = sampleEvery;
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = new LongAdder();
+        }
+    }
+
+    public SignalMetrics(String name) {
+        this(name, 1);
+    }
+
+    public <T> Function<Flux<T>, Flux<T>> operator() {
+        Function<Flux<T>, Flux<T>> lift =
+                NonFuseableLift.operator((scannable, actual) -> enabled ? new MetricsSubscriber<>(actual, this) : actual);
+        return flux -> enabled ? lift.apply(flux) : flux;
+    }
+
+    public ObjectName registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("com.xz.hello.reactor:type=SignalMetrics,name=" + ObjectName.quote(name));
+            server.registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("register SignalMetrics " + name + " failed", e);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 只影响之后的组装和订阅,已经在运行的订阅继续统计
+     */
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public long getOnNextCount() {
+        return onNext.sum();
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getRequestedTotal() {
+        return requested.sum();
+    }
+
+    @Override
+    public long getCancelCount() {
+        return cancels.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getCompleteCount() {
+        return completes.sum();
+    }
+
+    /**
+     * 还在进行的订阅里没有被满足的请求个数;无界请求(Long.MAX_VALUE)不计入,变成无界之前的有界请求也一并扣掉
+     */
+    @Override
+    public long getInFlightDemand() {
+        return inFlight.sum();
+    }
+
+    @Override
+    public double getMeanInterElementMicros() {
+        long count = gapCount.sum();
+        return count == 0 ? 0 : gapTotalNanos.sum() / 1000.0 / count;
+    }
+
+    @Override
+    public long getMaxInterElementMicros() {
+        return gapMaxNanos.get() / 1000;
+    }
+
+    /**
+     * 第i个桶统计间隔在 [2^i, 2^(i+1)) 纳秒之间的次数
+     */
+    @Override
+    public long[] getInterElementHistogram() {
+        long[] result = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            result[i] = histogram[i].sum();
+        }
+        return result;
+    }
+
+    public String snapshot() {
+        return name + ": onNext=" + getOnNextCount() + ", request=" + getRequestCount()
+                + "(" + getRequestedTotal() + "), cancel=" + getCancelCount() + ", error=" + getErrorCount()
+                + ", complete=" + getCompleteCount() + ", inFlight=" + getInFlightDemand()
+                + ", gapMeanUs=" + String.format("%.1f", getMeanInterElementMicros())
+                + ", gapMaxUs=" + getMaxInterElementMicros();
+    }
+
+    private void recordGap(long nanos) {
+        gapCount.increment();
+        gapTotalNanos.add(nanos);
+        gapMaxNanos.accumulate(nanos);
+        histogram[63 - Long.numberOfLeadingZeros(Math.max(nanos, 1))].increment();
+    }
+
+    static final class MetricsSubscriber<T> implements CoreSubscriber<T>, Subscription {
+
+        final CoreSubscriber<? super T> actual;
+
+        final SignalMetrics metrics;
+
+        Subscription s;
+
+        /**
+         * request和onNext可能在不同的线程上
+         */
+        volatile boolean unbounded;
+
+        volatile boolean done;
+
+        /**
+         * 这个订阅计入 inFlight 的部分,结束时把剩下的扣掉
+         */
+        volatile long outstanding;
+
+        /**
+         * 以下字段只在onNext里访问,按照规范onNext是串行调用的
+         */
+        long lastNanos;
+
+        int sampleCountdown;
+
+        @SuppressWarnings("rawtypes")
+        static final AtomicLongFieldUpdater<MetricsSubscriber> OUTSTANDING =
+                AtomicLongFieldUpdater.newUpdater(MetricsSubscriber.class, "outstanding");
+
+        MetricsSubscriber(CoreSubscriber<? super T> actual, SignalMetrics metrics) {
+            this.actual = actual;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Context currentContext() {
+            return actual.currentContext();
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            if (Operators.validate(this.s, s)) {
+                this.s = s;
+                actual.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            SignalMetrics m = metrics;
+            m.onNext.increment();
+            if (!unbounded) {
+                for (;;) {
+                    long r = outstanding;
+                    if (r == 0) {
+                        break;
+                    }
+                    if (OUTSTANDING.compareAndSet(this, r, r - 1)) {
+                        m.inFlight.decrement();
+                        break;
+                    }
+                }
+            }
+            if (--sampleCountdown <= 0) {
+                sampleCountdown = m.sampleEvery;
+                long now = System.nanoTime();
+                if (lastNanos != 0) {
+                    m.recordGap((now - lastNanos) / m.sampleEvery);
+                }
+                lastNanos = now;
+            }
+            actual.onNext(t);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            metrics.errors.increment();
+            done = true;
+            release();
+            actual.onError(t);
+        }
+
+        @Override
+        public void onComplete() {
+            metrics.completes.increment();
+            done = true;
+            release();
+            actual.onComplete();
+        }
+
+        @Override
+        public void request(long n) {
+            SignalMetrics m = metrics;
+            m.requests.increment();
+            if (n == Long.MAX_VALUE) {
+                unbounded = true;
+                release();
+            } else if (!unbounded) {
+                m.requested.add(n);
+                long added = 0;
+                for (;;) {
+                    long r = outstanding;
+                    long next = Operators.addCap(r, n);
+                    if (OUTSTANDING.compareAndSet(this, r, next)) {
+                        added = next - r;
+                        break;
+                    }
+                }
+                m.inFlight.add(added);
+                //和结束、变成无界并发时,不能把刚加上的需求留在计数里
+                if (unbounded || done) {
+                    release();
+                }
+            }
+            s.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            metrics.cancels.increment();
+            done = true;
+            release();
+            s.cancel();
+        }
+
+        void release() {
+            long remaining = OUTSTANDING.getAndSet(this, 0);
+            if (remaining != 0) {
+                metrics.inFlight.add(-remaining);
+            }
+        }
+    }
+}
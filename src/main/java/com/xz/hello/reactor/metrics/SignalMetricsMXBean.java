@@ -0,0 +1,31 @@
+package com.xz.hello.reactor.metrics;
+
+/**
+ * 通过JMX暴露的 SignalMetrics 指标
+ */
+public interface SignalMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getOnNextCount();
+
+    long getRequestCount();
+
+    long getRequestedTotal();
+
+    long getCancelCount();
+
+    long getErrorCount();
+
+    long getCompleteCount();
+
+    long getInFlightDemand();
+
+    double getMeanInterElementMicros();
+
+    long getMaxInterElementMicros();
+
+    long[] getInterElementHistogram();
+}
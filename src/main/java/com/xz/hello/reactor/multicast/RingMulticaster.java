@@ -0,0 +1,407 @@
+package com.xz.hello.reactor.multicast;
+
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Operators;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基于环形缓冲区的热发布者(hot publisher)
+ * <p>
+ * testSchedulers1 和 test4 里每个订阅者都有自己的 Flux.interval,生产环境里是几百个订阅者挂在同一个事件源上
+ * <p>
+ * 1--所有元素只写一次,写进预先分配好的环形缓冲区,发布时不加锁,也不为每个订阅者分配对象
+ * <p>
+ * 2--每个订阅者只保存自己读到的位置(cursor),按自己的request速度从环里读
+ * <p>
+ * 3--生产者不会等慢的订阅者,落后太多时按 SlowSubscriberPolicy 处理
+ * <p>
+ * 发布一个元素只写槽位、更新序号,不在生产者线程上调用订阅者: 每个订阅者在自己的 Scheduler.Worker 上拉取,
+ * 读完了就挂到等待队列里;有订阅者在等时,生产者只提交一个通知任务,由它唤醒等待的订阅者
+ * <p>
+ * 订阅者共用同一个线程时,慢的订阅者仍然会拖慢同一线程上的其他订阅者,需要隔离时传入 Schedulers.elastic()
+ * <p>
+ * 4--新来的订阅者可以先重放最近 replay 个元素
+ * <p>
+ * 注意: emitNext/emitComplete/emitError 只能由一个线程调用(单生产者)
+ */
+public class RingMulticaster<T> extends Flux<T> {
+
+    public enum SlowSubscriberPolicy {
+        /**
+         * 跳过已经被覆盖的元素,从环里最老的元素继续
+         */
+        DROP,
+        /**
+         * 落后超过 lagLimit 时直接跳到只落后 lagLimit 的位置
+         */
+        LAG_LIMIT,
+        /**
+         * 落后超过 lagLimit 时以 overflow 错误断开
+         */
+        DISCONNECT
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final RingSubscription[] EMPTY = new RingSubscription[0];
+
+    @SuppressWarnings("rawtypes")
+    private static final RingSubscription[] TERMINATED = new RingSubscription[0];
+
+    private final AtomicReferenceArray<T> ring;
+
+    private final int mask;
+
+    private final int replay;
+
+    private final SlowSubscriberPolicy policy;
+
+    private final long lagLimit;
+
+    /**
+     * 生产者已经开始写入的序号,写槽位之前先更新,用来判断读的时候槽位有没有被覆盖
+     */
+    private final AtomicLong claimed = new AtomicLong();
+
+    /**
+     * 已经写完可以读的序号
+     */
+    private final AtomicLong published = new AtomicLong();
+
+    /**
+     * 读完了在等新元素的订阅者,可能有已经被唤醒的旧条目,唤醒时用 parked 判断
+     */
+    private final ConcurrentLinkedQueue<RingSubscription<T>> waiters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 已经提交了通知任务还没执行,生产者不用重复提交
+     */
+    private final AtomicBoolean notifying = new AtomicBoolean();
+
+    private final Scheduler scheduler;
+
+    @SuppressWarnings("unchecked")
+    private final AtomicReference<RingSubscription<T>[]> subscribers = new AtomicReference<>(EMPTY);
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder disconnected = new LongAdder();
+
+    private volatile boolean done;
+
+    private Throwable error;
+
+    /**
+     * @param capacity 环形缓冲区大小,会向上取整为2的幂
+     * @param replay   新订阅者重放的元素个数,不超过 capacity
+     * @param lagLimit 允许的最大落后元素个数,DROP 策略下固定为 capacity
+     * @param scheduler 订阅者拉取元素和唤醒订阅者用的线程
+     */
+    public RingMulticaster(int capacity, int replay, SlowSubscriberPolicy policy, int lagLimit, Scheduler scheduler) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.replay = Math.max(0, Math.min(replay, size));
+        this.policy = policy;
+        this.lagLimit = policy == SlowSubscriberPolicy.DROP ? size : Math.max(1, Math.min(lagLimit, size));
+        this.scheduler = scheduler;
+    }
+
+    public RingMulticaster(int capacity, int replay, SlowSubscriberPolicy policy, int lagLimit) {
+        this(capacity, replay, policy, lagLimit, Schedulers.parallel());
+    }
+
+    public RingMulticaster(int capacity, int replay) {
+        this(capacity, replay, SlowSubscriberPolicy.DROP, capacity);
+    }
+
+    public void emitNext(T value) {
+        if (done) {
+            return;
+        }
+        long seq = published.get();
+        claimed.set(seq + 1);
+        ring.lazySet((int) seq & mask, value);
+        //不能用lazySet: 订阅者先进等待队列再读published,这里先写published再看等待队列,两边都要是完整的内存屏障
+        published.set(seq + 1);
+        if (!waiters.isEmpty() && notifying.compareAndSet(false, true)) {
+            try {
+                scheduler.schedule(this::wakeWaiters);
+            } catch (RejectedExecutionException e) {
+                notifying.set(false);
+            }
+        }
+    }
+
+    private void wakeWaiters() {
+        notifying.set(false);
+        RingSubscription<T> s;
+        while ((s = waiters.poll()) != null) {
+            s.wake();
+        }
+    }
+
+    public void emitComplete() {
+        terminate(null);
+    }
+
+    public void emitError(Throwable e) {
+        terminate(e);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void terminate(Throwable e) {
+        if (done) {
+            return;
+        }
+        error = e;
+        done = true;
+        subscribers.set(TERMINATED);
+        wakeWaiters();
+    }
+
+    public int subscriberCount() {
+        return subscribers.get().length;
+    }
+
+    /**
+     * 所有订阅者因为落后被跳过的元素总数
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * 因为落后被断开的订阅者个数
+     */
+    public long getDisconnected() {
+        return disconnected.sum();
+    }
+
+    @Override
+    public void subscribe(CoreSubscriber<? super T> actual) {
+        long start = Math.max(0, published.get() - replay);
+        RingSubscription<T> s = new RingSubscription<>(actual, this, start, scheduler.createWorker());
+        actual.onSubscribe(s);
+        if (add(s) && s.cancelled) {
+            //在onSubscribe里就取消了,那时还没有加入,remove没有效果
+            remove(s);
+        }
+        //已经结束时没有request也要发出结束信号
+        s.drain();
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean add(RingSubscription<T> s) {
+        for (;;) {
+            RingSubscription<T>[] current = subscribers.get();
+            if (current == TERMINATED) {
+                return false;
+            }
+            RingSubscription<T>[] next = (RingSubscription<T>[]) new RingSubscription<?>[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = s;
+            if (subscribers.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void remove(RingSubscription<T> s) {
+        for (;;) {
+            RingSubscription<T>[] current = subscribers.get();
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == s) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            RingSubscription<T>[] next = current.length == 1 ? EMPTY : (RingSubscription<T>[]) new RingSubscription<?>[current.length - 1];
+            System.arraycopy(current, 0, next, 0, index);
+            System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+            if (subscribers.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    static final class RingSubscription<T> implements Subscription, Runnable {
+
+        final CoreSubscriber<? super T> actual;
+
+        final RingMulticaster<T> parent;
+
+        final AtomicLong requested = new AtomicLong();
+
+        final AtomicInteger wip = new AtomicInteger();
+
+        final AtomicBoolean parked = new AtomicBoolean();
+
+        final Scheduler.Worker worker;
+
+        /**
+         * 只在drain里读写,由wip保证同一时间只有一个线程
+         */
+        long cursor;
+
+        volatile boolean cancelled;
+
+        RingSubscription(CoreSubscriber<? super T> actual, RingMulticaster<T> parent, long cursor, Scheduler.Worker worker) {
+            this.actual = actual;
+            this.parent = parent;
+            this.cursor = cursor;
+            this.worker = worker;
+        }
+
+        @Override
+        public void request(long n) {
+            if (Operators.validate(n)) {
+                requested.getAndUpdate(r -> Operators.addCap(r, n));
+                drain();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                parent.remove(this);
+                if (parked.compareAndSet(true, false)) {
+                    parent.waiters.remove(this);
+                }
+                worker.dispose();
+            }
+        }
+
+        void wake() {
+            if (parked.compareAndSet(true, false)) {
+                drain();
+            }
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0 || cancelled) {
+                return;
+            }
+            try {
+                worker.schedule(this);
+            } catch (RejectedExecutionException e) {
+                //只有取消之后worker才会被释放
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            RingMulticaster<T> p = parent;
+            for (;;) {
+                long r = requested.get();
+                long e = 0;
+                while (e != r) {
+                    if (cancelled) {
+                        return;
+                    }
+                    long pub = p.published.get();
+                    if (cursor >= pub) {
+                        break;
+                    }
+                    if (pub - cursor > p.lagLimit && !catchUp(pub)) {
+                        return;
+                    }
+                    T v = p.ring.get((int) cursor & p.mask);
+                    //读的过程中槽位可能已经被生产者覆盖,这时v不可信,重新按落后处理
+                    if (p.claimed.get() - cursor > p.mask + 1) {
+                        if (!catchUp(p.claimed.get())) {
+                            return;
+                        }
+                        continue;
+                    }
+                    cursor++;
+                    actual.onNext(v);
+                    e++;
+                }
+                if (cancelled) {
+                    return;
+                }
+                if (p.done && cursor >= p.published.get()) {
+                    cancelled = true;
+                    worker.dispose();
+                    Throwable ex = p.error;
+                    if (ex != null) {
+                        actual.onError(ex);
+                    } else {
+                        actual.onComplete();
+                    }
+                    return;
+                }
+                if (e != 0 && r != Long.MAX_VALUE) {
+                    r = requested.addAndGet(-e);
+                }
+                if (r != 0 && cursor >= p.published.get() && park()) {
+                    continue;
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * 还有request但是没有新元素,挂到等待队列里;返回true表示挂上之后马上又有了新元素,自己取消等待继续读
+         */
+        private boolean park() {
+            RingMulticaster<T> p = parent;
+            //上一次挂上之后还没被唤醒,不用重复进队
+            if (parked.compareAndSet(false, true)) {
+                p.waiters.offer(this);
+            }
+            return (cursor < p.published.get() || p.done) && parked.compareAndSet(true, false);
+        }
+
+        /**
+         * 落后太多时按策略处理,返回false表示已经断开
+         */
+        private boolean catchUp(long head) {
+            RingMulticaster<T> p = parent;
+            if (p.policy == SlowSubscriberPolicy.DISCONNECT) {
+                cancel();
+                p.disconnected.increment();
+                actual.onError(Exceptions.failWithOverflow(
+                        "subscriber lagged " + (head - cursor) + " elements behind, limit " + p.lagLimit));
+                return false;
+            }
+            long next = head - Math.min(p.lagLimit, p.mask + 1);
+            //生产者可能正在写next所在的槽位,多跳一个保证读到的是完整的元素
+            if (p.policy == SlowSubscriberPolicy.DROP || p.lagLimit > p.mask) {
+                next++;
+            }
+            p.dropped.add(next - cursor);
+            cursor = next;
+            return true;
+        }
+    }
+}
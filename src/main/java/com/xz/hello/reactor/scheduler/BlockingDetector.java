@@ -0,0 +1,404 @@
+package com.xz.hello.reactor.scheduler;
+
+import reactor.core.scheduler.NonBlocking;
+import reactor.core.scheduler.Schedulers;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 检测在非阻塞调度器线程上的阻塞调用
+ * <p>
+ * BasicConcept.testMon 在 delayElement 之后的 map/filter 里调用 delaySeconds(TimeUnit.SECONDS.sleep),
+ * 这些代码跑在 parallel 线程上;testBackpressure 在 hookOnNext 里 sleep。parallel 只有 CPU 个数的线程,
+ * 一个线程睡着,分到它上面的所有 Worker 都停下。Reactor 自己只拦截 block()(在 NonBlocking 线程上直接抛异常),
+ * sleep、阻塞IO、synchronized 等待、Future.get 都拦不住
+ * <p>
+ * 这里不修改字节码,也不包装任务,而是用一个后台线程定期采样:
+ * <p>
+ * 1--非阻塞线程: Schedulers.isNonBlockingThread 为真的线程(parallel、single 以及 nonBlockingThreads 创建的线程),每次采样前枚举一遍(不需要安全点,线程池懒创建的线程也能马上被看到)
+ * <p>
+ * 2--每隔 interval 用 ThreadMXBean 一次取出这些线程的状态和调用栈,按栈顶判断: Thread.sleep、等 synchronized 的锁(BLOCKED)、
+ * Object.wait、Future.get/join、其它 park(CountDownLatch、BlockingQueue...)、以及停在 java.io/java.net/sun.nio 的本地方法里(阻塞IO)
+ * <p>
+ * 3--栈里没有 Reactor 的操作符或者调度任务的帧时认为线程空闲(线程池在等任务),不算
+ * <p>
+ * 4--记录栈、操作符(栈顶往下第一个 reactor.core.publisher 的类)和调用位置(第一个非 JDK、非 Reactor 的帧),
+ * 同一个线程连续几次采样停在同一个位置只算一次(一个事件),采样次数乘以间隔大致是阻塞的时长
+ * <p>
+ * 被检测的线程上没有任何额外开销,开销只在采样线程(每次采样一次安全点),比 interval 短的阻塞可能采不到,
+ * 但高负载下经常发生的短阻塞总会被采到,适合在预发环境长时间开着
+ * <p>
+ * 用法: BlockingDetector detector = new BlockingDetector(Duration.ofMillis(10), v -> log.warn(v.toString())); detector.start(); ... detector.report()
+ */
+public class BlockingDetector {
+
+    private static final int MAX_DEPTH = 64;
+
+    public enum Kind {
+        /**
+         * Thread.sleep / TimeUnit.sleep
+         */
+        SLEEP,
+        /**
+         * 阻塞在 java.io / java.net / sun.nio 的本地方法里
+         */
+        IO,
+        /**
+         * 等待进入 synchronized
+         */
+        MONITOR,
+        /**
+         * Object.wait
+         */
+        WAIT,
+        /**
+         * Future.get / CompletableFuture.join
+         */
+        FUTURE,
+        /**
+         * 其它 LockSupport.park,比如 CountDownLatch.await、BlockingQueue.take、Lock.lock
+         */
+        PARK
+    }
+
+    private final long intervalNanos;
+
+    private final Consumer<? super Violation> onViolation;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final Map<String, Violation> sites = new ConcurrentHashMap<>();
+
+    /**
+     * 线程id -> 上一次采样时它阻塞的位置,只在采样线程里访问
+     */
+    private final Map<Long, String> blocked = new HashMap<>();
+
+    private final LongAdder samples = new LongAdder();
+
+    private final LongAdder events = new LongAdder();
+
+    private Thread[] all = new Thread[64];
+
+    private volatile Thread sampler;
+
+    public BlockingDetector(Duration interval, Consumer<? super Violation> onViolation) {
+        if (interval.isNegative() || interval.isZero()) {
+            throw new IllegalArgumentException("interval must be positive: " + interval);
+        }
+        this.intervalNanos = interval.toNanos();
+        this.onViolation = onViolation;
+    }
+
+    public BlockingDetector(Duration interval) {
+        this(interval, v -> {
+        });
+    }
+
+    /**
+     * 创建实现了 NonBlocking 的线程,自定义的调度器用它之后也会被检测(也会像 parallel 一样禁止 block())
+     * <p>
+     * 用法: Schedulers.newParallel(4, BlockingDetector.nonBlockingThreads("cpu"))
+     */
+    public static ThreadFactory nonBlockingThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new NonBlockingThread(r, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public synchronized void start() {
+        if (sampler != null) {
+            return;
+        }
+        Thread thread = new Thread(this::loop, "blocking-detector");
+        thread.setDaemon(true);
+        sampler = thread;
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        Thread thread = sampler;
+        sampler = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * 每个阻塞位置一项,按采样次数从多到少排列
+     */
+    public List<Violation> violations() {
+        List<Violation> result = new ArrayList<>(sites.values());
+        result.sort(Comparator.comparingLong(Violation::getSamples).reversed());
+        return result;
+    }
+
+    public long getSamples() {
+        return samples.sum();
+    }
+
+    /**
+     * 阻塞事件的个数,同一次阻塞被连续采到只算一次
+     */
+    public long getEvents() {
+        return events.sum();
+    }
+
+    public void reset() {
+        sites.clear();
+    }
+
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("samples=").append(getSamples()).append(", events=").append(getEvents()).append('\n');
+        for (Violation violation : violations()) {
+            sb.append("  ").append(violation).append('\n');
+            for (StackTraceElement frame : violation.getStack()) {
+                sb.append("      at ").append(frame).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private void loop() {
+        long next = System.nanoTime();
+        while (sampler == Thread.currentThread()) {
+            sample();
+            next += intervalNanos;
+            long wait = next - System.nanoTime();
+            if (wait < 0) {
+                //采样本身太慢,不追赶
+                next = System.nanoTime();
+                continue;
+            }
+            try {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 采样一次,只在采样线程里调用
+     */
+    void sample() {
+        long[] watched = nonBlockingThreadIds();
+        samples.increment();
+        if (watched.length == 0) {
+            return;
+        }
+        ThreadInfo[] infos = threads.getThreadInfo(watched, MAX_DEPTH);
+        for (int i = 0; i < infos.length; i++) {
+            ThreadInfo info = infos[i];
+            Long id = watched[i];
+            Kind kind = info == null ? null : classify(info);
+            if (kind == null) {
+                blocked.remove(id);
+                continue;
+            }
+            StackTraceElement[] stack = info.getStackTrace();
+            String operator = operator(stack);
+            String location = location(stack);
+            String key = kind + "|" + operator + "|" + location;
+            Violation violation = sites.computeIfAbsent(key, k -> new Violation(kind, info.getThreadName(), operator, location, stack));
+            violation.samples.increment();
+            if (!key.equals(blocked.put(id, key))) {
+                violation.events.increment();
+                events.increment();
+                onViolation.accept(violation);
+            }
+        }
+    }
+
+    private long[] nonBlockingThreadIds() {
+        ThreadGroup root = Thread.currentThread().getThreadGroup();
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        int count;
+        while ((count = root.enumerate(all, true)) == all.length) {
+            all = new Thread[all.length * 2];
+        }
+        long[] ids = new long[count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (Schedulers.isNonBlockingThread(all[i])) {
+                ids[n++] = all[i].getId();
+            }
+            all[i] = null;
+        }
+        return Arrays.copyOf(ids, n);
+    }
+
+    /**
+     * 不是阻塞或者线程空闲时返回null
+     */
+    static Kind classify(ThreadInfo info) {
+        StackTraceElement[] stack = info.getStackTrace();
+        if (stack.length == 0 || !runningTask(stack)) {
+            return null;
+        }
+        StackTraceElement top = stack[0];
+        switch (info.getThreadState()) {
+            case BLOCKED:
+                return Kind.MONITOR;
+            case RUNNABLE:
+                String c = top.getClassName();
+                return top.isNativeMethod() && (c.startsWith("java.io.") || c.startsWith("java.net.")
+                        || c.startsWith("sun.nio.") || c.startsWith("sun.net.")) ? Kind.IO : null;
+            case WAITING:
+            case TIMED_WAITING:
+                if (isMethod(top, "java.lang.Thread", "sleep")) {
+                    return Kind.SLEEP;
+                }
+                if (isMethod(top, "java.lang.Object", "wait")) {
+                    return Kind.WAIT;
+                }
+                for (StackTraceElement frame : stack) {
+                    String cls = frame.getClassName();
+                    if (cls.startsWith("java.util.concurrent.locks.") || cls.startsWith("jdk.internal.misc.") || cls.startsWith("sun.misc.")) {
+                        continue;
+                    }
+                    if ((cls.equals("java.util.concurrent.FutureTask") || cls.startsWith("java.util.concurrent.CompletableFuture"))
+                            && !frame.getMethodName().equals("run")) {
+                        return Kind.FUTURE;
+                    }
+                    break;
+                }
+                return Kind.PARK;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 栈里有操作符或者调度任务才是在执行任务,否则是线程池在等新任务
+     */
+    private static boolean runningTask(StackTraceElement[] stack) {
+        for (StackTraceElement frame : stack) {
+            String cls = frame.getClassName();
+            if (isMethod(frame, "java.util.concurrent.ThreadPoolExecutor", "getTask")) {
+                return false;
+            }
+            if (cls.startsWith("reactor.core.publisher.") || (cls.startsWith("reactor.core.scheduler.") && cls.endsWith("Task"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isMethod(StackTraceElement frame, String cls, String method) {
+        //JDK 19 之后 sleep/wait 的本地方法叫 sleep0/wait0
+        return frame.getClassName().equals(cls) && frame.getMethodName().startsWith(method);
+    }
+
+    private static String operator(StackTraceElement[] stack) {
+        for (StackTraceElement frame : stack) {
+            String cls = frame.getClassName();
+            if (cls.startsWith("reactor.core.publisher.")) {
+                String simple = cls.substring("reactor.core.publisher.".length());
+                int inner = simple.indexOf('$');
+                return inner < 0 ? simple : simple.substring(0, inner);
+            }
+        }
+        return "?";
+    }
+
+    private static String location(StackTraceElement[] stack) {
+        for (StackTraceElement frame : stack) {
+            String cls = frame.getClassName();
+            if (!cls.startsWith("java.") && !cls.startsWith("javax.") && !cls.startsWith("jdk.") && !cls.startsWith("sun.")
+                    && !cls.startsWith("com.sun.") && !cls.startsWith("reactor.")) {
+                return frame.toString();
+            }
+        }
+        return "?";
+    }
+
+    /**
+     * 一个阻塞位置: 种类 + 操作符 + 调用位置,保存第一次采到的线程名和栈
+     */
+    public static final class Violation {
+
+        private final Kind kind;
+        private final String thread;
+        private final String operator;
+        private final String location;
+        private final StackTraceElement[] stack;
+        private final LongAdder samples = new LongAdder();
+        private final LongAdder events = new LongAdder();
+
+        Violation(Kind kind, String thread, String operator, String location, StackTraceElement[] stack) {
+            this.kind = kind;
+            this.thread = thread;
+            this.operator = operator;
+            this.location = location;
+            this.stack = stack;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public String getThread() {
+            return thread;
+        }
+
+        /**
+         * 离阻塞调用最近的 Reactor 操作符的类名,比如 MonoMapFuseable
+         */
+        public String getOperator() {
+            return operator;
+        }
+
+        /**
+         * 发起阻塞调用的业务代码位置
+         */
+        public String getLocation() {
+            return location;
+        }
+
+        public StackTraceElement[] getStack() {
+            return stack;
+        }
+
+        public long getSamples() {
+            return samples.sum();
+        }
+
+        public long getEvents() {
+            return events.sum();
+        }
+
+        @Override
+        public String toString() {
+            return kind + " in " + operator + " at " + location + " on " + thread
+                    + ": events=" + getEvents() + ", samples=" + getSamples();
+        }
+    }
+
+    static final class NonBlockingThread extends Thread implements NonBlocking {
+
+        NonBlockingThread(Runnable target, String name) {
+            super(target, name);
+        }
+    }
+}
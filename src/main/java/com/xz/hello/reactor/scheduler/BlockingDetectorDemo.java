@@ -0,0 +1,138 @@
+package com.xz.hello.reactor.scheduler;
+
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BlockingDetector 演示:
+ * <p>
+ * 1--开销: 在 parallel 上跑纯计算的流水线,分别在不开检测、每10毫秒采样、每1毫秒采样时计时
+ * <p>
+ * 2--BasicConcept.testMon 的写法(delayElement 之后在 map/filter 里 sleep)、testBackpressure 的写法(hookOnNext 里 sleep,这里放到 parallel 上),
+ * 再加上 synchronized 等锁和 Future.get,最后输出检测报告
+ */
+public class BlockingDetectorDemo {
+
+    private static final int ELEMENTS = 2_000_000;
+
+    private static final Object LOCK = new Object();
+
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        overhead();
+        mistakes();
+    }
+
+    private static void overhead() {
+        for (int round = 0; round < 3; round++) {
+            System.out.println(String.format("no detector   %8.1f ms", pipeline() / 1e6));
+            for (Duration interval : new Duration[]{Duration.ofMillis(10), Duration.ofMillis(1)}) {
+                BlockingDetector detector = new BlockingDetector(interval);
+                detector.start();
+                long nanos = pipeline();
+                detector.stop();
+                System.out.println(String.format("sample %-6s %8.1f ms  (%d samples, %d events)",
+                        interval.toMillis() + "ms", nanos / 1e6, detector.getSamples(), detector.getEvents()));
+            }
+        }
+    }
+
+    private static long pipeline() {
+        long start = System.nanoTime();
+        Flux.range(0, ELEMENTS)
+                .parallel()
+                .runOn(Schedulers.parallel())
+                .map(BlockingDetectorDemo::work)
+                .sequential()
+                .blockLast();
+        return System.nanoTime() - start;
+    }
+
+    private static void mistakes() throws Exception {
+        BlockingDetector detector = new BlockingDetector(Duration.ofMillis(10), v -> System.out.println("detected " + v));
+        detector.start();
+
+        Mono.just(10)
+                .delayElement(Duration.ofMillis(100))
+                .map(n -> {
+                    sleep(300);
+                    return n + 1;
+                })
+                .filter(n -> {
+                    sleep(200);
+                    return n % 2 == 0;
+                })
+                .defaultIfEmpty(9)
+                .block();
+
+        CountDownLatch done = new CountDownLatch(1);
+        Flux.range(1, 3)
+                .publishOn(Schedulers.parallel())
+                .subscribe(new BaseSubscriber<Integer>() {
+                    @Override
+                    protected void hookOnSubscribe(Subscription subscription) {
+                        request(1);
+                    }
+
+                    @Override
+                    protected void hookOnNext(Integer value) {
+                        sleep(100);
+                        request(1);
+                    }
+
+                    @Override
+                    protected void hookOnComplete() {
+                        done.countDown();
+                    }
+                });
+        done.await();
+
+        Thread holder = new Thread(() -> {
+            synchronized (LOCK) {
+                sleep(300);
+            }
+        });
+        holder.start();
+        Thread.sleep(20);
+        Mono.fromCallable(() -> {
+            synchronized (LOCK) {
+                return 1;
+            }
+        }).subscribeOn(Schedulers.parallel()).block();
+
+        CompletableFuture<Integer> slow = CompletableFuture.supplyAsync(() -> {
+            sleep(200);
+            return 1;
+        });
+        Mono.just(1).publishOn(Schedulers.parallel()).map(i -> i + slow.join()).block();
+
+        detector.stop();
+        System.out.print(detector.report());
+    }
+
+    private static long work(long value) {
+        long x = value;
+        for (int k = 0; k < 500; k++) {
+            x = x * 6364136223846793005L + 1442695040888963407L;
+        }
+        sink = x;
+        return x;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,545 @@
+package com.xz.hello.reactor.scheduler;
+
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.scheduler.Scheduler;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * 多优先级通道的调度器
+ * <p>
+ * testSyncToAsync、testSchedulers1 和 BasicConcept.testMon 都共用 Schedulers.elastic()、single() 或者定时线程,
+ * 对延迟敏感的请求会排在批量任务后面
+ * <p>
+ * 这里一组固定的线程服务多个通道(lane),每个通道有自己的权重:
+ * <p>
+ * 1--按平滑加权轮询(smooth weighted round robin)从非空的通道取任务,所有通道都忙时每个通道分到的执行次数和权重成正比
+ * <p>
+ * 2--权重就是最低份额,高优先级通道一直满载时低优先级通道也不会饿死;高优先级通道空闲时低优先级通道可以用满所有线程
+ * <p>
+ * 3--lane(i) 返回一个普通的 Scheduler,可以直接用在 subscribeOn/publishOn 上
+ * <p>
+ * 4--统计每个通道任务的排队等待时间
+ */
+public class PriorityScheduler implements Disposable {
+
+    private final String name;
+
+    private final int[] weights;
+
+    private final int[] currentWeights;
+
+    private final ArrayDeque<Task>[] queues;
+
+    private final Lane[] lanes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Thread[] threads;
+
+    /**
+     * 延时任务到期后再放进对应的通道
+     */
+    private final ScheduledExecutorService timer;
+
+    private volatile boolean disposed;
+
+    /**
+     * @param weights 每个通道的权重,下标0是优先级最高的通道
+     */
+    @SuppressWarnings("unchecked")
+    public PriorityScheduler(String name, int threadCount, int... weights) {
+        if (weights.length == 0) {
+            throw new IllegalArgumentException("at least one lane is required");
+        }
+        for (int weight : weights) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("lane weight must be positive: " + weight);
+            }
+        }
+        this.name = name;
+        this.weights = weights.clone();
+        this.currentWeights = new int[weights.length];
+        this.queues = (ArrayDeque<Task>[]) new ArrayDeque<?>[weights.length];
+        this.lanes = new Lane[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            queues[i] = new ArrayDeque<>();
+            lanes[i] = new Lane(i);
+        }
+        AtomicInteger timerIndex = new AtomicInteger();
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name + "-timer-" + timerIndex.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread(this::runLoop, name + "-" + (i + 1));
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    public Scheduler lane(int index) {
+        return lanes[index];
+    }
+
+    public int laneCount() {
+        return lanes.length;
+    }
+
+    public LaneStats laneStats(int index) {
+        return lanes[index].stats();
+    }
+
+    @Override
+    public void dispose() {
+        disposed = true;
+        timer.shutdownNow();
+        lock.lock();
+        try {
+            for (ArrayDeque<Task> queue : queues) {
+                queue.clear();
+            }
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return disposed;
+    }
+
+    private void enqueue(Task task) {
+        if (disposed) {
+            throw new RejectedExecutionException(name + " is disposed");
+        }
+        if (!(task instanceof WorkerStep)) {
+            lanes[task.lane].onQueued(task);
+        }
+        lock.lock();
+        try {
+            queues[task.lane].offer(task);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Task take() throws InterruptedException {
+        lock.lock();
+        try {
+            for (;;) {
+                if (disposed) {
+                    return null;
+                }
+                int pick = -1;
+                int total = 0;
+                for (int i = 0; i < queues.length; i++) {
+                    if (queues[i].isEmpty()) {
+                        continue;
+                    }
+                    currentWeights[i] += weights[i];
+                    total += weights[i];
+                    if (pick < 0 || currentWeights[i] > currentWeights[pick]) {
+                        pick = i;
+                    }
+                }
+                if (pick >= 0) {
+                    currentWeights[pick] -= total;
+                    return queues[pick].poll();
+                }
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runLoop() {
+        while (!disposed) {
+            Task task;
+            try {
+                task = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == null) {
+                return;
+            }
+            if (!(task instanceof WorkerStep)) {
+                lanes[task.lane].onStart(task);
+            }
+            task.run();
+        }
+    }
+
+    /**
+     * 某个通道排队情况的快照
+     */
+    public static final class LaneStats {
+        private final int lane;
+        private final long queued;
+        private final long executed;
+        private final long waitTotalNanos;
+        private final long waitMaxNanos;
+
+        LaneStats(int lane, long queued, long executed, long waitTotalNanos, long waitMaxNanos) {
+            this.lane = lane;
+            this.queued = queued;
+            this.executed = executed;
+            this.waitTotalNanos = waitTotalNanos;
+            this.waitMaxNanos = waitMaxNanos;
+        }
+
+        public long getQueued() {
+            return queued;
+        }
+
+        public long getExecuted() {
+            return executed;
+        }
+
+        public double getMeanWaitMicros() {
+            return executed == 0 ? 0 : waitTotalNanos / 1000.0 / executed;
+        }
+
+        public long getMaxWaitMicros() {
+            return waitMaxNanos / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return "lane " + lane + ": queued=" + queued + ", executed=" + executed
+                    + ", meanWaitUs=" + String.format("%.1f", getMeanWaitMicros()) + ", maxWaitUs=" + getMaxWaitMicros();
+        }
+    }
+
+    private static class Task implements Runnable, Disposable {
+
+        final int lane;
+
+        final Runnable action;
+
+        long enqueuedAt;
+
+        volatile boolean disposed;
+
+        Task(int lane, Runnable action) {
+            this.lane = lane;
+            this.action = action;
+        }
+
+        @Override
+        public void run() {
+            if (disposed) {
+                return;
+            }
+            try {
+                action.run();
+            } catch (Throwable e) {
+                Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+            }
+        }
+
+        @Override
+        public void dispose() {
+            disposed = true;
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return disposed;
+        }
+    }
+
+    /**
+     * Worker 往通道里放的"执行下一个任务"的动作,它本身不计入通道的统计,真正的任务在执行时才计入
+     */
+    private static final class WorkerStep extends Task {
+
+        WorkerStep(int lane, Runnable action) {
+            super(lane, action);
+        }
+    }
+
+    /**
+     * 延时或者周期任务: 到期之后放进通道排队
+     * <p>
+     * 通过 Worker 提交的还会登记在 Worker 上(owner),Worker 关闭时一起取消,不用等定时器到期
+     */
+    private class TimedTask extends Task {
+
+        final Disposable.Composite owner;
+
+        volatile ScheduledFuture<?> future;
+
+        TimedTask(int lane, Runnable action, Disposable.Composite owner) {
+            super(lane, action);
+            this.owner = owner;
+        }
+
+        void setFuture(ScheduledFuture<?> future) {
+            this.future = future;
+            //登记之后、设置future之前被取消了
+            if (isDisposed()) {
+                future.cancel(false);
+            }
+        }
+
+        /**
+         * 已经交给 Worker 排队或者被取消了,不再需要 Worker 跟踪
+         */
+        void release() {
+            if (owner != null) {
+                owner.remove(this);
+            }
+        }
+
+        @Override
+        public void dispose() {
+            super.dispose();
+            ScheduledFuture<?> f = future;
+            if (f != null) {
+                f.cancel(false);
+            }
+            release();
+        }
+    }
+
+    /**
+     * 周期任务: 上一次还在排队或者执行时,到期的周期直接跳过,同一个周期任务不会并发执行
+     */
+    private final class PeriodicTask extends TimedTask {
+
+        final AtomicBoolean running = new AtomicBoolean();
+
+        PeriodicTask(Runnable action, Disposable.Composite owner) {
+            super(-1, action, owner);
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                running.set(false);
+            }
+        }
+    }
+
+    private final class Lane implements Scheduler {
+
+        final int index;
+
+        final LongAdder queued = new LongAdder();
+        final LongAdder executed = new LongAdder();
+        final LongAdder waitTotalNanos = new LongAdder();
+        final LongAccumulator waitMaxNanos = new LongAccumulator(Math::max, 0);
+
+        Lane(int index) {
+            this.index = index;
+        }
+
+        void onQueued(Task task) {
+            task.enqueuedAt = System.nanoTime();
+            queued.increment();
+        }
+
+        /**
+         * 等待时间从任务提交算起,Worker的任务包括在Worker自己队列里等待的时间
+         */
+        void onStart(Task task) {
+            queued.decrement();
+            long wait = System.nanoTime() - task.enqueuedAt;
+            waitTotalNanos.add(wait);
+            waitMaxNanos.accumulate(wait);
+            executed.increment();
+        }
+
+        LaneStats stats() {
+            return new LaneStats(index, queued.sum(), executed.sum(), waitTotalNanos.sum(), waitMaxNanos.get());
+        }
+
+        @Override
+        public Disposable schedule(Runnable task) {
+            Task t = new Task(index, task);
+            enqueue(t);
+            return t;
+        }
+
+        @Override
+        public Disposable schedule(Runnable task, long delay, TimeUnit unit) {
+            return scheduleOn(this::schedule, null, task, delay, unit);
+        }
+
+        @Override
+        public Disposable schedulePeriodically(Runnable task, long initialDelay, long period, TimeUnit unit) {
+            return schedulePeriodicallyOn(this::schedule, null, task, initialDelay, period, unit);
+        }
+
+        @Override
+        public Worker createWorker() {
+            return new LaneWorker(index);
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return disposed;
+        }
+
+        @Override
+        public void dispose() {
+            //单个通道不能单独关闭,由 PriorityScheduler.dispose() 统一关闭
+        }
+    }
+
+    /**
+     * @param owner 提交任务的 Worker 用来跟踪定时任务的容器,直接提交到通道时为null
+     */
+    private Disposable scheduleOn(Function<Runnable, Disposable> target, Disposable.Composite owner,
+                                  Runnable task, long delay, TimeUnit unit) {
+        TimedTask timed = new TimedTask(-1, task, owner);
+        track(owner, timed);
+        try {
+            timed.setFuture(timer.schedule(() -> {
+                if (!timed.isDisposed()) {
+                    timed.release();
+                    target.apply(timed);
+                }
+            }, delay, unit));
+        } catch (RejectedExecutionException e) {
+            timed.release();
+            throw new RejectedExecutionException(name + " is disposed", e);
+        }
+        return timed;
+    }
+
+    private Disposable schedulePeriodicallyOn(Function<Runnable, Disposable> target, Disposable.Composite owner,
+                                              Runnable task, long initialDelay, long period, TimeUnit unit) {
+        PeriodicTask periodic = new PeriodicTask(task, owner);
+        track(owner, periodic);
+        try {
+            periodic.setFuture(timer.scheduleAtFixedRate(() -> {
+                if (periodic.isDisposed() || !periodic.running.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    target.apply(periodic);
+                } catch (RuntimeException e) {
+                    periodic.running.set(false);
+                    throw e;
+                }
+            }, initialDelay, period, unit));
+        } catch (RejectedExecutionException e) {
+            periodic.release();
+            throw new RejectedExecutionException(name + " is disposed", e);
+        }
+        return periodic;
+    }
+
+    private static void track(Disposable.Composite owner, TimedTask task) {
+        if (owner != null && !owner.add(task)) {
+            throw new RejectedExecutionException("worker is disposed");
+        }
+    }
+
+    /**
+     * Worker 上的任务必须按顺序一个一个执行(publishOn 依赖这一点)
+     * <p>
+     * 所以任务先放进 Worker 自己的队列,Worker 每次只往通道里放一个"执行下一个任务"的动作,
+     * 执行完一个再放下一个,这样同一个 Worker 的任务既不会并发,也要和其他任务一起按权重排队
+     */
+    private final class LaneWorker implements Scheduler.Worker {
+
+        final int lane;
+
+        final ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<>();
+
+        final AtomicInteger wip = new AtomicInteger();
+
+        /**
+         * 还没到期的延时任务和所有周期任务
+         */
+        final Disposable.Composite timedTasks = Disposables.composite();
+
+        volatile boolean disposed;
+
+        LaneWorker(int lane) {
+            this.lane = lane;
+        }
+
+        @Override
+        public Disposable schedule(Runnable task) {
+            if (disposed) {
+                throw new RejectedExecutionException("worker is disposed");
+            }
+            Task t = new Task(lane, task);
+            lanes[lane].onQueued(t);
+            tasks.offer(t);
+            if (wip.getAndIncrement() == 0) {
+                enqueue(new WorkerStep(lane, this::runNext));
+            }
+            return t;
+        }
+
+        void runNext() {
+            if (disposed) {
+                return;
+            }
+            Task task = tasks.poll();
+            if (task != null) {
+                lanes[lane].onStart(task);
+                task.run();
+            }
+            if (wip.decrementAndGet() != 0) {
+                enqueue(new WorkerStep(lane, this::runNext));
+            }
+        }
+
+        @Override
+        public Disposable schedule(Runnable task, long delay, TimeUnit unit) {
+            return scheduleOn(this::schedule, timedTasks, task, delay, unit);
+        }
+
+        @Override
+        public Disposable schedulePeriodically(Runnable task, long initialDelay, long period, TimeUnit unit) {
+            return schedulePeriodicallyOn(this::schedule, timedTasks, task, initialDelay, period, unit);
+        }
+
+        @Override
+        public void dispose() {
+            disposed = true;
+            timedTasks.dispose();
+            while (tasks.poll() != null) {
+                lanes[lane].queued.decrement();
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return disposed;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.xz.hello.reactor.scheduler;
+
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Arrays;
+
+/**
+ * 负载不均匀的 publishOn 对比: Schedulers.parallel() 和 WorkStealingScheduler
+ * <p>
+ * 一共 chains 条链,每条链 publishOn 到调度器上,其中每隔 threads 条有一条是重负载的链(每个元素的计算量是普通链的 heavyFactor 倍)
+ * <p>
+ * Schedulers.newParallel() 按轮询分配 Worker,重负载的链会集中到同一个线程上
+ * <p>
+ * 两边使用相同的线程数,默认为CPU核数,也可以用第一个参数指定
+ */
+public class WorkStealingBenchmark {
+
+    private static final int ELEMENTS = 2_000;
+
+    private static volatile long sink;
+
+    public static void main(String[] args) {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int chains = threads * 8;
+        int heavyFactor = 20;
+
+        Scheduler parallelScheduler = Schedulers.newParallel("parallel", threads);
+        WorkStealingScheduler stealing = new WorkStealingScheduler("stealing", threads);
+        for (int round = 0; round < 3; round++) {
+            long parallel = run(parallelScheduler, threads, chains, heavyFactor);
+            long workStealing = run(stealing, threads, chains, heavyFactor);
+            System.out.println("round " + round + ": parallel() " + parallel + " ms, work stealing " + workStealing + " ms");
+        }
+        System.out.println("steals: " + stealing.getSteals() + ", executed per thread: "
+                + Arrays.toString(stealing.getExecutedPerThread()));
+        parallelScheduler.dispose();
+        stealing.dispose();
+    }
+
+    private static long run(Scheduler scheduler, int threads, int chains, int heavyFactor) {
+        long start = System.nanoTime();
+        Flux.range(0, chains)
+                .flatMap(chain -> Flux.range(0, ELEMENTS)
+                        .publishOn(scheduler)
+                        .map(i -> spin(chain % threads == 0 ? heavyFactor : 1)), chains)
+                .blockLast();
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private static int spin(int units) {
+        long x = 0;
+        for (int i = 0; i < units * 1_000; i++) {
+            x += i * 31 ^ x;
+        }
+        sink = x;
+        return units;
+    }
+}
@@ -0,0 +1,449 @@
+package com.xz.hello.reactor.scheduler;
+
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.scheduler.Scheduler;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * 基于任务窃取(work stealing)的并行调度器
+ * <p>
+ * Schedulers.parallel() 给每个 Worker 固定分配一个单线程的执行器,publishOn 的负载不均匀时,
+ * 分到重负载 Worker 的线程排队,其他线程却空着
+ * <p>
+ * 这里每个线程有一个双端队列,自己按提交顺序从一端取任务,空闲的线程从另一端偷任务:
+ * <p>
+ * 1--直接 schedule 的任务之间没有顺序要求,可以被任意线程偷走
+ * <p>
+ * 2--Worker 上的任务必须按顺序执行(publishOn 依赖这一点),所以不会单独偷 Worker 里的某个任务,
+ * 而是把 Worker 当前的整批任务作为一个执行单元: 同一时刻只有一个线程在执行它,执行单元可以被偷,但里面的任务顺序不变
+ * <p>
+ * 3--每个 Worker 固定归属一个线程(home),任务优先在 home 线程上执行,保持缓存亲和,只有 home 线程忙不过来时才会被别的线程偷走
+ */
+public class WorkStealingScheduler implements Scheduler {
+
+    /**
+     * 一个执行单元最多连续执行的 Worker 任务个数,执行完重新排队,避免一个 Worker 长时间占住线程
+     */
+    private static final int WORKER_BATCH = 64;
+
+    private final String name;
+
+    private final WorkerThread[] threads;
+
+    private final ScheduledExecutorService timer;
+
+    private final AtomicInteger nextHome = new AtomicInteger();
+
+    private final LongAdder steals = new LongAdder();
+
+    private volatile boolean disposed;
+
+    public WorkStealingScheduler(String name, int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        this.name = name;
+        this.threads = new WorkerThread[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            threads[i] = new WorkerThread(i);
+        }
+        for (WorkerThread thread : threads) {
+            thread.start();
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name + "-timer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public WorkStealingScheduler(String name) {
+        this(name, Runtime.getRuntime().availableProcessors());
+    }
+
+    @Override
+    public Disposable schedule(Runnable task) {
+        Task t = new Task(task);
+        submit(t, homeForCaller());
+        return t;
+    }
+
+    @Override
+    public Disposable schedule(Runnable task, long delay, TimeUnit unit) {
+        return scheduleLater(this::schedule, null, task, delay, unit);
+    }
+
+    @Override
+    public Disposable schedulePeriodically(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        return schedulePeriodicallyLater(this::schedule, null, task, initialDelay, period, unit);
+    }
+
+    @Override
+    public Worker createWorker() {
+        return new SerialWorker(threads[Math.abs(nextHome.getAndIncrement() % threads.length)]);
+    }
+
+    @Override
+    public void dispose() {
+        disposed = true;
+        timer.shutdownNow();
+        for (WorkerThread thread : threads) {
+            thread.deque.clear();
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return disposed;
+    }
+
+    /**
+     * 从其他线程偷到的执行单元个数
+     */
+    public long getSteals() {
+        return steals.sum();
+    }
+
+    public long[] getExecutedPerThread() {
+        long[] result = new long[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            result[i] = threads[i].executed.sum();
+        }
+        return result;
+    }
+
+    /**
+     * 在本调度器的线程上提交就放到当前线程,否则随机挑一个
+     */
+    private WorkerThread homeForCaller() {
+        Thread current = Thread.currentThread();
+        if (current instanceof WorkerThread && ((WorkerThread) current).owner() == this) {
+            return (WorkerThread) current;
+        }
+        return threads[ThreadLocalRandom.current().nextInt(threads.length)];
+    }
+
+    private void submit(Runnable unit, WorkerThread home) {
+        if (disposed) {
+            throw new RejectedExecutionException(name + " is disposed");
+        }
+        home.deque.offerFirst(unit);
+        if (home.parked) {
+            LockSupport.unpark(home);
+            return;
+        }
+        //home线程正忙,叫醒一个空闲线程来偷
+        for (WorkerThread thread : threads) {
+            if (thread.parked) {
+                LockSupport.unpark(thread);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param owner 提交任务的 Worker 用来跟踪定时任务的容器,Worker 关闭时一起取消;直接提交给调度器时为null
+     */
+    private Disposable scheduleLater(Function<Runnable, Disposable> target, Disposable.Composite owner,
+                                     Runnable task, long delay, TimeUnit unit) {
+        Task t = new Task(task, owner);
+        track(owner, t);
+        try {
+            t.setFuture(timer.schedule(() -> {
+                if (!t.disposed) {
+                    //交给 Worker 排队之后由 Worker 的队列负责,不用再跟踪
+                    t.release();
+                    target.apply(t);
+                }
+            }, delay, unit));
+        } catch (RejectedExecutionException e) {
+            t.release();
+            throw new RejectedExecutionException(name + " is disposed", e);
+        }
+        return t;
+    }
+
+    private Disposable schedulePeriodicallyLater(Function<Runnable, Disposable> target, Disposable.Composite owner,
+                                                 Runnable task, long initialDelay, long period, TimeUnit unit) {
+        PeriodicTask t = new PeriodicTask(task, owner);
+        track(owner, t);
+        try {
+            //上一次还没执行完时跳过这个周期,同一个周期任务不会并发执行
+            t.setFuture(timer.scheduleAtFixedRate(() -> {
+                if (t.disposed || !t.running.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    target.apply(t);
+                } catch (RuntimeException e) {
+                    t.running.set(false);
+                    throw e;
+                }
+            }, initialDelay, period, unit));
+        } catch (RejectedExecutionException e) {
+            t.release();
+            throw new RejectedExecutionException(name + " is disposed", e);
+        }
+        return t;
+    }
+
+    private static void track(Disposable.Composite owner, Task task) {
+        if (owner != null && !owner.add(task)) {
+            throw new RejectedExecutionException("worker is disposed");
+        }
+    }
+
+    private final class WorkerThread extends Thread {
+
+        final int index;
+
+        final ConcurrentLinkedDeque<Runnable> deque = new ConcurrentLinkedDeque<>();
+
+        final LongAdder executed = new LongAdder();
+
+        volatile boolean parked;
+
+        WorkerThread(int index) {
+            super(name + "-" + (index + 1));
+            this.index = index;
+            setDaemon(true);
+        }
+
+        WorkStealingScheduler owner() {
+            return WorkStealingScheduler.this;
+        }
+
+        @Override
+        public void run() {
+            while (!disposed) {
+                Runnable unit = deque.pollLast();
+                if (unit == null) {
+                    unit = steal();
+                }
+                if (unit == null) {
+                    //先设置parked再检查一遍所有队列: 提交方先入队再看parked,两边至少有一边能看到对方
+                    parked = true;
+                    unit = deque.pollLast();
+                    if (unit == null) {
+                        unit = steal();
+                    }
+                    if (unit == null) {
+                        LockSupport.park(this);
+                        parked = false;
+                        continue;
+                    }
+                    parked = false;
+                }
+                executed.increment();
+                try {
+                    unit.run();
+                } catch (Throwable e) {
+                    getUncaughtExceptionHandler().uncaughtException(this, e);
+                }
+            }
+        }
+
+        /**
+         * 从随机位置开始扫描其他线程,从最新提交的一端偷,和队列主人取任务的一端错开
+         */
+        Runnable steal() {
+            int n = threads.length;
+            int start = ThreadLocalRandom.current().nextInt(n);
+            for (int i = 0; i < n; i++) {
+                WorkerThread victim = threads[(start + i) % n];
+                if (victim == this) {
+                    continue;
+                }
+                Runnable unit = victim.deque.pollFirst();
+                if (unit != null) {
+                    steals.increment();
+                    return unit;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class Task implements Runnable, Disposable {
+
+        final Runnable action;
+
+        /**
+         * 通过 Worker 提交的定时任务登记在 Worker 上,其他任务为null
+         */
+        final Disposable.Composite owner;
+
+        volatile ScheduledFuture<?> future;
+
+        volatile boolean disposed;
+
+        Task(Runnable action) {
+            this(action, null);
+        }
+
+        Task(Runnable action, Disposable.Composite owner) {
+            this.action = action;
+            this.owner = owner;
+        }
+
+        void setFuture(ScheduledFuture<?> future) {
+            this.future = future;
+            //登记之后、设置future之前被取消了
+            if (disposed) {
+                future.cancel(false);
+            }
+        }
+
+        void release() {
+            if (owner != null) {
+                owner.remove(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!disposed) {
+                action.run();
+            }
+        }
+
+        @Override
+        public void dispose() {
+            disposed = true;
+            ScheduledFuture<?> f = future;
+            if (f != null) {
+                f.cancel(false);
+            }
+            release();
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return disposed;
+        }
+    }
+
+    private static final class PeriodicTask extends Task {
+
+        final AtomicBoolean running = new AtomicBoolean();
+
+        PeriodicTask(Runnable action, Disposable.Composite owner) {
+            super(action, owner);
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                running.set(false);
+            }
+        }
+    }
+
+    /**
+     * 串行 Worker: 任务先进自己的队列,wip 从0变成1时把自己作为一个执行单元提交给 home 线程
+     */
+    private final class SerialWorker implements Worker, Runnable {
+
+        final WorkerThread home;
+
+        final ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<>();
+
+        final AtomicInteger wip = new AtomicInteger();
+
+        /**
+         * 还没到期的延时任务和所有周期任务
+         */
+        final Disposable.Composite timedTasks = Disposables.composite();
+
+        volatile boolean disposed;
+
+        SerialWorker(WorkerThread home) {
+            this.home = home;
+        }
+
+        @Override
+        public Disposable schedule(Runnable task) {
+            if (disposed || WorkStealingScheduler.this.disposed) {
+                throw new RejectedExecutionException("worker is disposed");
+            }
+            Task t = new Task(task);
+            tasks.offer(t);
+            if (wip.getAndIncrement() == 0) {
+                submit(this, home);
+            }
+            return t;
+        }
+
+        @Override
+        public void run() {
+            int executed = 0;
+            int missed = wip.get();
+            for (;;) {
+                for (int i = 0; i < missed; i++) {
+                    if (disposed) {
+                        return;
+                    }
+                    Task t = tasks.poll();
+                    if (t != null) {
+                        //一个任务抛出异常不能中断循环,否则wip不会归零,这个Worker以后的任务都不会再执行
+                        try {
+                            t.run();
+                        } catch (Throwable e) {
+                            Thread current = Thread.currentThread();
+                            current.getUncaughtExceptionHandler().uncaughtException(current, e);
+                        }
+                    }
+                    executed++;
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+                if (executed >= WORKER_BATCH) {
+                    //剩下的任务重新排队,让同一个线程上的其他执行单元也有机会执行
+                    submit(this, home);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public Disposable schedule(Runnable task, long delay, TimeUnit unit) {
+            return scheduleLater(this::schedule, timedTasks, task, delay, unit);
+        }
+
+        @Override
+        public Disposable schedulePeriodically(Runnable task, long initialDelay, long period, TimeUnit unit) {
+            return schedulePeriodicallyLater(this::schedule, timedTasks, task, initialDelay, period, unit);
+        }
+
+        @Override
+        public void dispose() {
+            disposed = true;
+            timedTasks.dispose();
+            tasks.clear();
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return disposed;
+        }
+    }
+}
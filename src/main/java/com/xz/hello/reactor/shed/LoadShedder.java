@@ -0,0 +1,433 @@
+package com.xz.hello.reactor.shed;
+
+import com.xz.hello.reactor.NonFuseableLift;
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Operators;
+import reactor.util.context.Context;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 快生产者、慢消费者之间的自适应减载操作符
+ * <p>
+ * testBackpressure 里消费者每个元素睡1秒,Flux.range 可以等;但 Flux.interval 这样的源不能等,
+ * 只能 onBackpressureBuffer() 无限排队(延迟越来越大),或者报 OverflowException。这里换一种做法,让端到端延迟有上限:
+ * <p>
+ * 1--每个元素进来时记下到达时间和截止时间(deadline,可以按元素计算)
+ * <p>
+ * 2--测量消费者的处理速度(指数移动平均): 下游是有界请求时,按相邻两次request的间隔除以请求个数,只在这段时间内
+ * 下游一直有活干(上一次request交付完之后这里还有积压)时采样;无界请求时下游就是消费者本身,按积压时相邻两次交付的间隔。
+ * 预计排队时间 = 队列长度 x 单个元素处理时间,超过截止时间的元素在进队列时就丢掉,所以队列长度自动收敛到 吞吐量 x deadline
+ * <p>
+ * 3--交付时已经过了截止时间的元素丢掉;sampleEvery 大于0时每 sampleEvery 个过期元素仍然交付一个(抽样),让下游能看到趋势
+ * <p>
+ * 4--指定了key时,同一个key还在队列里的元素直接被新值替换(保持原来的排队位置),突发的更新只交付最新值
+ * <p>
+ * 5--maxQueue 是硬上限,防止消费者还没被测量时队列无限增长
+ * <p>
+ * 向上游请求 Long.MAX_VALUE,向下游严格按request交付;统计是所有订阅共享的
+ * <p>
+ * 注意: 截止时间只约束在这里排队的时间。交付之后下游缓冲里的元素不受约束,所以这个操作符要直接放在慢消费者前面;
+ * 中间有 publishOn 这样的异步边界时用 prefetch 1,默认的 prefetch 256 会在下游再积压最多256个元素,
+ * 端到端延迟要再加上 256 x 单个元素处理时间
+ * <p>
+ * 用法: Flux.interval(...).transform(shedder.operator()).publishOn(scheduler, 1).subscribe(slowConsumer)
+ */
+public class LoadShedder<T> {
+
+    private final Function<? super T, Duration> deadline;
+
+    private final Function<? super T, ?> key;
+
+    private final int sampleEvery;
+
+    private final int maxQueue;
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder shedOnArrival = new LongAdder();
+    private final LongAdder shedExpired = new LongAdder();
+    private final LongAdder sampled = new LongAdder();
+    private final LongAdder latencyTotalNanos = new LongAdder();
+    private final LongAccumulator latencyMaxNanos = new LongAccumulator(Math::max, 0);
+
+    private volatile double serviceNanos;
+
+    /**
+     * @param deadline    每个元素允许的最长排队时间
+     * @param key         合并用的key,null表示不合并
+     * @param sampleEvery 过期元素每多少个交付一个,0表示全部丢掉
+     * @param maxQueue    队列长度的硬上限
+     */
+    public LoadShedder(Function<? super T, Duration> deadline, Function<? super T, ?> key, int sampleEvery, int maxQueue) {
+        if (sampleEvery < 0 || maxQueue <= 0) {
+            throw new IllegalArgumentException("invalid sampleEvery/maxQueue: " + sampleEvery + ", " + maxQueue);
+        }
+        this.deadline = deadline;
+        this.key = key;
+        this.sampleEvery = sampleEvery;
+        this.maxQueue = maxQueue;
+    }
+
+    /**
+     * 固定的截止时间,不合并,过期就丢
+     */
+    public LoadShedder(Duration deadline, int maxQueue) {
+        this(t -> deadline, null, 0, maxQueue);
+    }
+
+    public Function<Flux<T>, Flux<T>> operator() {
+        return NonFuseableLift.operator((scannable, actual) -> new ShedSubscriber(actual));
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    /**
+     * 被同key的新值替换掉的元素个数
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * 预计排队时间超过截止时间,或者队列已满,进队列时就丢掉的元素个数
+     */
+    public long getShedOnArrival() {
+        return shedOnArrival.sum();
+    }
+
+    /**
+     * 交付时已经过期而丢掉的元素个数
+     */
+    public long getShedExpired() {
+        return shedExpired.sum();
+    }
+
+    /**
+     * 已经过期但作为抽样交付的元素个数
+     */
+    public long getSampled() {
+        return sampled.sum();
+    }
+
+    /**
+     * 交付的元素在这里排队的平均时间
+     */
+    public double getMeanLatencyMillis() {
+        long count = getDelivered();
+        return count == 0 ? 0 : latencyTotalNanos.sum() / 1e6 / count;
+    }
+
+    public double getMaxLatencyMillis() {
+        return latencyMaxNanos.get() / 1e6;
+    }
+
+    /**
+     * 测量到的消费者吞吐量(每秒元素个数),还没测量时是0
+     */
+    public double getConsumerThroughput() {
+        double nanos = serviceNanos;
+        return nanos == 0 ? 0 : 1e9 / nanos;
+    }
+
+    public String snapshot() {
+        return "received=" + getReceived() + ", delivered=" + getDelivered() + ", coalesced=" + getCoalesced()
+                + ", shedOnArrival=" + getShedOnArrival() + ", shedExpired=" + getShedExpired() + ", sampled=" + getSampled()
+                + String.format(", latencyMeanMs=%.1f, latencyMaxMs=%.1f, consumer=%.1f/s",
+                getMeanLatencyMillis(), getMaxLatencyMillis(), getConsumerThroughput());
+    }
+
+    static final class Entry<T> {
+
+        final Object key;
+
+        T value;
+
+        long arrivalNanos;
+
+        long deadlineNanos;
+
+        Entry(Object key, T value, long arrivalNanos, long deadlineNanos) {
+            this.key = key;
+            this.value = value;
+            this.arrivalNanos = arrivalNanos;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    /**
+     * 队列和索引在synchronized里修改;向下游交付用 wip 保证同一时刻只有一个线程在交付,交付时不持有锁
+     */
+    final class ShedSubscriber implements CoreSubscriber<T>, Subscription {
+
+        final CoreSubscriber<? super T> actual;
+
+        final ArrayDeque<Entry<T>> queue = new ArrayDeque<>();
+
+        final Map<Object, Entry<T>> index = key == null ? null : new HashMap<>();
+
+        final AtomicInteger wip = new AtomicInteger();
+
+        final AtomicLong requested = new AtomicLong();
+
+        Subscription s;
+
+        volatile boolean done;
+
+        volatile boolean cancelled;
+
+        Throwable error;
+
+        /**
+         * 上一次交付循环用完了下游的请求,这里还有积压: 下游在处理已经交付的元素,下一次request之前一直在忙
+         */
+        volatile boolean demandExhausted;
+
+        /**
+         * 只在request里访问,按规范request是串行调用的
+         */
+        long lastRequestNanos;
+
+        /**
+         * 以下字段只在交付循环里访问
+         */
+        long lastDeliveryNanos;
+
+        boolean backlogged;
+
+        long expiredSeen;
+
+        ShedSubscriber(CoreSubscriber<? super T> actual) {
+            this.actual = actual;
+        }
+
+        @Override
+        public Context currentContext() {
+            return actual.currentContext();
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            if (Operators.validate(this.s, s)) {
+                this.s = s;
+                actual.onSubscribe(this);
+                s.request(Long.MAX_VALUE);
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            if (done) {
+                Operators.onNextDropped(t, actual.currentContext());
+                return;
+            }
+            received.increment();
+            long now = System.nanoTime();
+            long deadlineNanos;
+            Object k;
+            try {
+                deadlineNanos = now + deadline.apply(t).toNanos();
+                k = key == null ? null : key.apply(t);
+            } catch (Throwable e) {
+                onError(Operators.onOperatorError(s, e, t, actual.currentContext()));
+                return;
+            }
+            synchronized (this) {
+                Entry<T> existing = index == null ? null : index.get(k);
+                if (existing != null) {
+                    existing.value = t;
+                    existing.arrivalNanos = now;
+                    existing.deadlineNanos = deadlineNanos;
+                    coalesced.increment();
+                } else if (queue.size() >= maxQueue || queue.size() * serviceNanos > deadlineNanos - now) {
+                    shedOnArrival.increment();
+                    return;
+                } else {
+                    Entry<T> entry = new Entry<>(k, t, now, deadlineNanos);
+                    queue.offer(entry);
+                    if (index != null) {
+                        index.put(k, entry);
+                    }
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (done) {
+                Operators.onErrorDropped(t, actual.currentContext());
+                return;
+            }
+            error = t;
+            done = true;
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            done = true;
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (Operators.validate(n)) {
+                if (n != Long.MAX_VALUE) {
+                    measureRequest(n);
+                }
+                requested.getAndUpdate(r -> Operators.addCap(r, n));
+                drain();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            s.cancel();
+            if (wip.getAndIncrement() == 0) {
+                clear();
+            }
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            for (;;) {
+                long r = requested.get();
+                long e = 0;
+                while (e != r) {
+                    if (cancelled) {
+                        clear();
+                        return;
+                    }
+                    boolean d = done;
+                    Entry<T> entry;
+                    boolean more;
+                    synchronized (this) {
+                        entry = queue.poll();
+                        if (entry != null && index != null) {
+                            index.remove(entry.key);
+                        }
+                        more = !queue.isEmpty();
+                    }
+                    if (entry == null) {
+                        if (d) {
+                            terminate();
+                            return;
+                        }
+                        break;
+                    }
+                    long now = System.nanoTime();
+                    if (now > entry.deadlineNanos) {
+                        if (sampleEvery == 0 || expiredSeen++ % sampleEvery != 0) {
+                            shedExpired.increment();
+                            continue;
+                        }
+                        sampled.increment();
+                    }
+                    if (r == Long.MAX_VALUE) {
+                        measureDelivery(now, more);
+                    }
+                    latencyTotalNanos.add(now - entry.arrivalNanos);
+                    latencyMaxNanos.accumulate(now - entry.arrivalNanos);
+                    delivered.increment();
+                    actual.onNext(entry.value);
+                    e++;
+                }
+                if (e == r) {
+                    if (cancelled) {
+                        clear();
+                        return;
+                    }
+                    boolean empty;
+                    synchronized (this) {
+                        empty = queue.isEmpty();
+                    }
+                    if (done && empty) {
+                        terminate();
+                        return;
+                    }
+                    demandExhausted = !empty;
+                }
+                if (e != 0 && r != Long.MAX_VALUE) {
+                    requested.addAndGet(-e);
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * 有界请求: 上一次request交付完之后还有积压,现在又有积压,说明这段间隔里下游一直在处理,
+         * 这次请求的个数就是它在这段时间里处理掉的个数(publishOn 之类按处理进度补充请求)
+         */
+        void measureRequest(long n) {
+            long now = System.nanoTime();
+            boolean waiting;
+            synchronized (this) {
+                waiting = !queue.isEmpty();
+            }
+            if (lastRequestNanos != 0 && demandExhausted && waiting) {
+                recordService((double) (now - lastRequestNanos) / n);
+            }
+            lastRequestNanos = now;
+            demandExhausted = false;
+        }
+
+        /**
+         * 无界请求: 上一次交付时队列里还有元素,说明这段间隔完全是消费者(onNext)的处理时间
+         */
+        void measureDelivery(long now, boolean more) {
+            if (backlogged) {
+                recordService(now - lastDeliveryNanos);
+            }
+            lastDeliveryNanos = now;
+            backlogged = more;
+        }
+
+        void recordService(double nanos) {
+            double previous = serviceNanos;
+            serviceNanos = previous == 0 ? nanos : previous * 0.8 + nanos * 0.2;
+        }
+
+        void terminate() {
+            Throwable e = error;
+            if (e != null) {
+                actual.onError(e);
+            } else {
+                actual.onComplete();
+            }
+        }
+
+        void clear() {
+            synchronized (this) {
+                queue.clear();
+                if (index != null) {
+                    index.clear();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.xz.hello.reactor.shm;
+
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 内存映射文件里的环形缓冲区布局,生产者和消费者进程共用
+ * <p>
+ * 0    magic(4) partitions(4) slots(4) slotSize(4) state(8)
+ * <p>
+ * 128  每个分区128字节: 已发布序号(8) ... 已消费序号(8,偏移64),两个计数器在不同的缓存行上,避免伪共享
+ * <p>
+ * 数据区从4096对齐的位置开始,每个分区 slots 个槽位,每个槽位: 长度(4) 内容(slotSize - 4)
+ * <p>
+ * 计数器只增不减,序号 seq 的元素在槽位 seq & (slots - 1)。跨进程的可见性靠 Unsafe 的内存屏障:
+ * 生产者先写内容,storeFence,再写已发布序号;消费者读已发布序号,loadFence,再读内容;已消费序号同理
+ */
+final class MappedRing {
+
+    static final int MAGIC = 0x52494E47;
+
+    static final int RUNNING = 0;
+
+    static final int COMPLETED = 1;
+
+    static final int FAILED = 2;
+
+    private static final int STATE = 16;
+
+    private static final int COUNTERS = 128;
+
+    private static final int STRIDE = 128;
+
+    private static final Unsafe UNSAFE;
+
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = (Unsafe) field.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    final MappedByteBuffer buffer;
+
+    final int partitions;
+
+    final int slots;
+
+    final int slotSize;
+
+    private final int dataStart;
+
+    private MappedRing(MappedByteBuffer buffer, int partitions, int slots, int slotSize) {
+        this.buffer = buffer;
+        this.partitions = partitions;
+        this.slots = slots;
+        this.slotSize = slotSize;
+        this.dataStart = align(COUNTERS + partitions * STRIDE, 4096);
+    }
+
+    /**
+     * 生产者创建并初始化文件,magic最后写,消费者看到magic时其它字段都已经写好
+     */
+    static MappedRing create(Path path, int partitions, int slots, int slotSize) throws IOException {
+        if (partitions <= 0 || slots <= 0 || Integer.bitCount(slots) != 1 || slotSize < 8) {
+            throw new IllegalArgumentException("invalid ring: partitions=" + partitions + ", slots=" + slots + ", slotSize=" + slotSize);
+        }
+        long size = (long) align(COUNTERS + partitions * STRIDE, 4096) + (long) partitions * slots * slotSize;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("ring too large: " + size + " bytes");
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(4, partitions).putInt(8, slots).putInt(12, slotSize).putLong(STATE, RUNNING);
+            UNSAFE.storeFence();
+            buffer.putInt(0, MAGIC);
+            return new MappedRing(buffer, partitions, slots, slotSize);
+        }
+    }
+
+    /**
+     * 消费者打开已经存在的文件
+     */
+    static MappedRing open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            if (buffer.capacity() < COUNTERS || buffer.getInt(0) != MAGIC) {
+                throw new IOException("not a ring file or not initialized yet: " + path);
+            }
+            UNSAFE.loadFence();
+            return new MappedRing(buffer, buffer.getInt(4), buffer.getInt(8), buffer.getInt(12));
+        }
+    }
+
+    long published(int partition) {
+        long value = buffer.getLong(COUNTERS + partition * STRIDE);
+        UNSAFE.loadFence();
+        return value;
+    }
+
+    /**
+     * 槽位内容写完之后调用
+     */
+    void publish(int partition, long sequence) {
+        UNSAFE.storeFence();
+        buffer.putLong(COUNTERS + partition * STRIDE, sequence);
+    }
+
+    long consumed(int partition) {
+        long value = buffer.getLong(COUNTERS + partition * STRIDE + 64);
+        UNSAFE.loadFence();
+        return value;
+    }
+
+    /**
+     * 槽位内容读完之后调用,之后生产者可以覆盖这个槽位
+     */
+    void consume(int partition, long sequence) {
+        UNSAFE.loadFence();
+        buffer.putLong(COUNTERS + partition * STRIDE + 64, sequence);
+    }
+
+    int state() {
+        int value = (int) buffer.getLong(STATE);
+        UNSAFE.loadFence();
+        return value;
+    }
+
+    void state(int state) {
+        UNSAFE.storeFence();
+        buffer.putLong(STATE, state);
+    }
+
+    int slotOffset(int partition, long sequence) {
+        return dataStart + (partition * slots + (int) (sequence & (slots - 1))) * slotSize;
+    }
+
+    private static int align(int value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+}
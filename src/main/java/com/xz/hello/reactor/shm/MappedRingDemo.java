@@ -0,0 +1,150 @@
+package com.xz.hello.reactor.shm;
+
+import reactor.core.publisher.Flux;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 多进程流水线演示: 本进程把 0..ELEMENTS-1 写进环,启动 PROCESSES 个子JVM,每个子进程消费两个分区,
+ * 对每个元素做一段纯计算(代替 ReactorTest 里的 map),最后打印每个分区的个数、总和、是否保持顺序;
+ * 本进程按同样的分区函数算出期望值进行核对,并和单进程顺序计算的耗时做对比
+ * <p>
+ * 子进程模式: consume 文件 工作量 分区1,分区2,...
+ */
+public class MappedRingDemo {
+
+    private static final long ELEMENTS = 2_000_000;
+
+    private static final int PROCESSES = 2;
+
+    private static final int WORK = 2000;
+
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 4 && "consume".equals(args[0])) {
+            consume(Paths.get(args[1]), Integer.parseInt(args[2]), args[3]);
+            return;
+        }
+        Path file = Files.createTempFile("mapped-ring", ".ring");
+        try {
+            run(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void run(Path file) throws Exception {
+        int partitions = PROCESSES * 2;
+        MappedRingWriter<Long> writer = new MappedRingWriter<>(file, partitions, 1024, 16, RingCodec.longs(), v -> v);
+        long[] expectedCount = new long[partitions];
+        long[] expectedSum = new long[partitions];
+        for (long i = 0; i < ELEMENTS; i++) {
+            int p = writer.partitionOf(i);
+            expectedCount[p]++;
+            expectedSum[p] += i;
+        }
+
+        long start = System.nanoTime();
+        List<Process> children = new ArrayList<>();
+        for (int c = 0; c < PROCESSES; c++) {
+            children.add(startConsumer(file, WORK, 2 * c, 2 * c + 1));
+        }
+        writer.write(Flux.range(0, (int) ELEMENTS).map(Integer::longValue)).block();
+        long written = System.nanoTime() - start;
+        boolean ok = true;
+        for (Process child : children) {
+            for (String line : readAll(child)) {
+                System.out.println("  " + line);
+                String[] parts = line.split(" ");
+                if (parts.length == 8 && "partition".equals(parts[0])) {
+                    int p = Integer.parseInt(parts[1]);
+                    ok &= Long.parseLong(parts[3]) == expectedCount[p]
+                            && Long.parseLong(parts[5]) == expectedSum[p]
+                            && "true".equals(parts[7]);
+                }
+            }
+            ok &= child.waitFor() == 0;
+        }
+        long total = System.nanoTime() - start;
+        System.out.println(String.format("%d processes: written in %.1f ms, consumed in %.1f ms (%.0f elements/s), "
+                        + "producer paused %d times, verified=%s",
+                PROCESSES, written / 1e6, total / 1e6, ELEMENTS * 1e9 / total, writer.getFullWaits(), ok));
+
+        start = System.nanoTime();
+        for (long i = 0; i < ELEMENTS; i++) {
+            sink = work(i, WORK);
+        }
+        System.out.println(String.format("single JVM, same work: %.1f ms (%d CPUs available)",
+                (System.nanoTime() - start) / 1e6, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * 用当前的classpath启动一个消费者子进程,输出见 consume
+     */
+    public static Process startConsumer(Path file, int work, int... partitions) throws IOException {
+        StringBuilder list = new StringBuilder();
+        for (int p : partitions) {
+            list.append(list.length() == 0 ? "" : ",").append(p);
+        }
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                MappedRingDemo.class.getName(), "consume", file.toString(), String.valueOf(work), list.toString())
+                .redirectErrorStream(true).start();
+    }
+
+    /**
+     * 读完子进程的全部输出
+     */
+    public static List<String> readAll(Process process) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * 子进程: 每个分区一个订阅,并行处理,每个分区输出一行
+     * "partition 分区 count 个数 sum 总和 ordered 是否递增"
+     */
+    private static void consume(Path file, int work, String partitions) {
+        MappedRingReader<Long> reader = new MappedRingReader<>(file, RingCodec.longs());
+        Flux.fromArray(partitions.split(","))
+                .map(Integer::parseInt)
+                .flatMap(p -> reader.partition(p)
+                        .doOnNext(v -> sink = work(v, work))
+                        .reduce(new long[]{0, 0, -1, 1}, (acc, v) -> {
+                            acc[0]++;
+                            acc[1] += v;
+                            if (v <= acc[2]) {
+                                acc[3] = 0;
+                            }
+                            acc[2] = v;
+                            return acc;
+                        })
+                        .map(acc -> "partition " + p + " count " + acc[0] + " sum " + acc[1] + " ordered " + (acc[3] == 1)))
+                .doOnNext(System.out::println)
+                .blockLast();
+    }
+
+    private static long work(long value, int rounds) {
+        long x = value;
+        for (int k = 0; k < rounds; k++) {
+            x = x * 6364136223846793005L + 1442695040888963407L;
+        }
+        return x;
+    }
+}
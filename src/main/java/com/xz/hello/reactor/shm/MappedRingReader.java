@@ -0,0 +1,200 @@
+package com.xz.hello.reactor.shm;
+
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Operators;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 从 MappedRingWriter 写的文件里按分区读元素,通常在另一个JVM里
+ * <p>
+ * 1--只在下游request的范围内读,读完(解码完)一批就推进文件里的已消费计数器,生产者才能覆盖这些槽位,
+ * 下游慢的时候生产者进程也会停下
+ * <p>
+ * 2--没有新元素时在Worker上退避轮询(20微秒起,最长1毫秒),不占用线程
+ * <p>
+ * 3--生产者标记完成并且分区里的元素都读完之后完成;生产者出错时读完剩余元素后报错
+ * <p>
+ * 已消费计数器在文件里,取消之后重新订阅(或者换一个进程)从上次读到的位置继续。
+ * 一个分区同一时刻只能有一个订阅者,不同分区可以在不同的进程里
+ * <p>
+ * 用法: new MappedRingReader<>(path, RingCodec.longs()).partition(0).map(...).subscribe(...)
+ */
+public class MappedRingReader<T> {
+
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final MappedRing ring;
+
+    private final RingCodec<? extends T> codec;
+
+    private final Scheduler scheduler;
+
+    /**
+     * 文件必须已经由 MappedRingWriter 创建
+     */
+    public MappedRingReader(Path file, RingCodec<? extends T> codec) {
+        try {
+            this.ring = MappedRing.open(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("open ring " + file + " failed", e);
+        }
+        this.codec = codec;
+        this.scheduler = Schedulers.parallel();
+    }
+
+    public int partitions() {
+        return ring.partitions;
+    }
+
+    public Flux<T> partition(int partition) {
+        if (partition < 0 || partition >= ring.partitions) {
+            throw new IllegalArgumentException("partition " + partition + " out of [0, " + ring.partitions + ")");
+        }
+        return Flux.from(actual -> {
+            PartitionSubscription subscription = new PartitionSubscription(Operators.toCoreSubscriber(actual), partition);
+            actual.onSubscribe(subscription);
+        });
+    }
+
+    /**
+     * 所有读取都在同一个Worker上,wip在等待新元素时不释放,request只在等待下游时才需要重新调度
+     */
+    final class PartitionSubscription implements Subscription, Runnable {
+
+        final CoreSubscriber<? super T> actual;
+
+        final int partition;
+
+        final Scheduler.Worker worker = scheduler.createWorker();
+
+        final ByteBuffer view = ring.buffer.duplicate();
+
+        final AtomicLong requested = new AtomicLong();
+
+        final AtomicInteger wip = new AtomicInteger();
+
+        /**
+         * 每读这么多个元素推进一次已消费计数器,让生产者不用等整批读完
+         */
+        final int releaseEvery = Math.max(1, ring.slots >> 2);
+
+        volatile boolean cancelled;
+
+        long sequence;
+
+        long available;
+
+        long backoffNanos = MIN_BACKOFF_NANOS;
+
+        PartitionSubscription(CoreSubscriber<? super T> actual, int partition) {
+            this.actual = actual;
+            this.partition = partition;
+            this.sequence = ring.consumed(partition);
+        }
+
+        @Override
+        public void request(long n) {
+            if (Operators.validate(n)) {
+                requested.getAndUpdate(r -> Operators.addCap(r, n));
+                if (wip.getAndIncrement() == 0 && !cancelled) {
+                    worker.schedule(this);
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            worker.dispose();
+        }
+
+        @Override
+        public void run() {
+            int missed = wip.get();
+            for (;;) {
+                long r = requested.get();
+                long e = 0;
+                int unreleased = 0;
+                while (e != r) {
+                    if (cancelled) {
+                        return;
+                    }
+                    if (sequence == available) {
+                        available = ring.published(partition);
+                        if (sequence == available) {
+                            break;
+                        }
+                    }
+                    int offset = ring.slotOffset(partition, sequence);
+                    int length = ring.buffer.getInt(offset);
+                    view.limit(offset + 4 + length).position(offset + 4);
+                    T value;
+                    try {
+                        value = codec.decode(view);
+                    } catch (Throwable ex) {
+                        ring.consume(partition, sequence);
+                        cancelled = true;
+                        worker.dispose();
+                        actual.onError(Operators.onOperatorError(ex, actual.currentContext()));
+                        return;
+                    }
+                    sequence++;
+                    if (++unreleased == releaseEvery) {
+                        unreleased = 0;
+                        ring.consume(partition, sequence);
+                    }
+                    actual.onNext(value);
+                    e++;
+                }
+                if (unreleased != 0) {
+                    ring.consume(partition, sequence);
+                }
+                if (cancelled) {
+                    return;
+                }
+                if (e != 0 && r != Long.MAX_VALUE) {
+                    requested.addAndGet(-e);
+                }
+                if (e != r) {
+                    //分区空了: 先看生产者是否已经结束,状态在最后一次发布之后写,所以要再读一次已发布序号
+                    int state = ring.state();
+                    if (state != MappedRing.RUNNING && (available = ring.published(partition)) == sequence) {
+                        cancelled = true;
+                        worker.dispose();
+                        if (state == MappedRing.COMPLETED) {
+                            actual.onComplete();
+                        } else {
+                            actual.onError(new IllegalStateException("ring producer failed"));
+                        }
+                        return;
+                    }
+                    if (e == 0) {
+                        worker.schedule(this, backoffNanos, TimeUnit.NANOSECONDS);
+                        backoffNanos = Math.min(MAX_BACKOFF_NANOS, backoffNanos * 2);
+                        return;
+                    }
+                    backoffNanos = MIN_BACKOFF_NANOS;
+                    continue;
+                }
+                backoffNanos = MIN_BACKOFF_NANOS;
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+    }
+}
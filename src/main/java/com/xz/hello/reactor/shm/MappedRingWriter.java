@@ -0,0 +1,291 @@
+package com.xz.hello.reactor.shm;
+
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 把一个Flux写进内存映射的环形缓冲区,其它JVM用 MappedRingReader 按分区读
+ * <p>
+ * ReactorTest 里 map/handle 这样吃CPU的步骤在一个JVM里做不完时,可以拆到同一台机器的多个进程,不需要中间的消息服务:
+ * <p>
+ * 1--元素按key的哈希分到 partitions 个分区,每个分区是一个独立的环,同一个key的元素在同一个分区里保持顺序
+ * <p>
+ * 2--背压通过文件里的计数器传递: 分区里 已发布 - 已消费 达到 slots 时这个分区满了,
+ * 写入暂停(在Worker上退避重试,不阻塞线程),也不再向上游request,直到消费者进程推进已消费的计数器
+ * <p>
+ * 3--一次drain里写入的多个元素只发布一次计数器,减少内存屏障
+ * <p>
+ * 4--上游结束时在文件头写下完成或出错,消费者读完剩余元素后结束
+ * <p>
+ * 元素按到达顺序写入,一个分区满了会挡住后面所有分区的元素(最慢的消费者决定整体速度),
+ * 这样上游的request和环的容量是一致的。一个文件同一时刻只能有一个写入者
+ * <p>
+ * 用法: new MappedRingWriter<>(path, 4, 1024, 64, RingCodec.longs(), v -> v).write(flux).block()
+ */
+public class MappedRingWriter<T> {
+
+    private static final int PREFETCH = 256;
+
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final MappedRing ring;
+
+    private final RingCodec<? super T> codec;
+
+    private final Function<? super T, ?> key;
+
+    private final Scheduler scheduler;
+
+    private final LongAdder written = new LongAdder();
+
+    private final LongAdder fullWaits = new LongAdder();
+
+    /**
+     * 创建(或者清空)文件,消费者进程要在这之后才能打开
+     *
+     * @param slots    每个分区的槽位个数,必须是2的幂
+     * @param slotSize 每个槽位的字节数,包括4字节的长度,编码后超过的元素会让写入出错
+     */
+    public MappedRingWriter(Path file, int partitions, int slots, int slotSize, RingCodec<? super T> codec,
+                            Function<? super T, ?> key) {
+        try {
+            this.ring = MappedRing.create(file, partitions, slots, slotSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException("create ring " + file + " failed", e);
+        }
+        this.codec = codec;
+        this.key = key;
+        this.scheduler = Schedulers.parallel();
+    }
+
+    /**
+     * 写完所有元素、标记完成之后结束;取消返回的Mono会取消上游,消费者会一直等下去
+     */
+    public Mono<Void> write(Flux<? extends T> source) {
+        return Mono.create(sink -> source.subscribe(new RingSubscriber(sink)));
+    }
+
+    /**
+     * 元素会写到哪个分区,消费者可以用它来校验
+     */
+    public int partitionOf(T value) {
+        Object k = key.apply(value);
+        int h = k == null ? 0 : k.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return (h & Integer.MAX_VALUE) % ring.partitions;
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    /**
+     * 因为分区满了而暂停写入的次数
+     */
+    public long getFullWaits() {
+        return fullWaits.sum();
+    }
+
+    /**
+     * onNext和退避重试都进入drain,用wip保证同一时刻只有一个线程写环
+     */
+    final class RingSubscriber extends BaseSubscriber<T> implements Runnable {
+
+        final MonoSink<Void> sink;
+
+        final Queue<T> pending = new ConcurrentLinkedQueue<>();
+
+        final AtomicInteger wip = new AtomicInteger();
+
+        final Scheduler.Worker worker = scheduler.createWorker();
+
+        final ByteBuffer view = ring.buffer.duplicate();
+
+        final int limit = PREFETCH - (PREFETCH >> 2);
+
+        /**
+         * 以下字段只在drain里访问
+         */
+        final long[] next = new long[ring.partitions];
+
+        final long[] consumed = new long[ring.partitions];
+
+        final boolean[] dirty = new boolean[ring.partitions];
+
+        int replenish;
+
+        long backoffNanos = MIN_BACKOFF_NANOS;
+
+        volatile boolean done;
+
+        volatile Throwable error;
+
+        volatile boolean terminated;
+
+        RingSubscriber(MonoSink<Void> sink) {
+            this.sink = sink;
+            for (int p = 0; p < ring.partitions; p++) {
+                next[p] = ring.published(p);
+                consumed[p] = ring.consumed(p);
+            }
+            sink.onDispose(() -> {
+                dispose();
+                worker.dispose();
+            });
+        }
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            request(PREFETCH);
+        }
+
+        @Override
+        protected void hookOnNext(T value) {
+            pending.offer(value);
+            drain();
+        }
+
+        @Override
+        protected void hookOnError(Throwable throwable) {
+            error = throwable;
+            done = true;
+            drain();
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            done = true;
+            drain();
+        }
+
+        @Override
+        public void run() {
+            drainLoop();
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() == 0) {
+                drainLoop();
+            }
+        }
+
+        void drainLoop() {
+            int missed = wip.get();
+            for (;;) {
+                if (terminated) {
+                    return;
+                }
+                boolean d = done;
+                T value;
+                boolean full = false;
+                while ((value = pending.peek()) != null) {
+                    int p;
+                    try {
+                        p = partitionOf(value);
+                        if (!tryWrite(p, value)) {
+                            full = true;
+                            break;
+                        }
+                    } catch (Throwable e) {
+                        cancel();
+                        fail(e);
+                        return;
+                    }
+                    pending.poll();
+                    written.increment();
+                    if (++replenish == limit) {
+                        replenish = 0;
+                        request(limit);
+                    }
+                }
+                publishAll();
+                if (full) {
+                    //wip不释放,定时器到了从这里继续,期间的onNext只进队列
+                    fullWaits.increment();
+                    worker.schedule(this, backoffNanos, TimeUnit.NANOSECONDS);
+                    backoffNanos = Math.min(MAX_BACKOFF_NANOS, backoffNanos * 2);
+                    return;
+                }
+                backoffNanos = MIN_BACKOFF_NANOS;
+                if (d && pending.isEmpty()) {
+                    Throwable e = error;
+                    if (e != null) {
+                        fail(e);
+                    } else {
+                        terminated = true;
+                        ring.state(MappedRing.COMPLETED);
+                        worker.dispose();
+                        sink.success();
+                    }
+                    return;
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * 先看本地缓存的已消费序号,只有看起来满了才去读共享的计数器
+         */
+        boolean tryWrite(int p, T value) {
+            long sequence = next[p];
+            if (sequence - consumed[p] >= ring.slots) {
+                consumed[p] = ring.consumed(p);
+                if (sequence - consumed[p] >= ring.slots) {
+                    return false;
+                }
+            }
+            int offset = ring.slotOffset(p, sequence);
+            view.limit(offset + ring.slotSize).position(offset + 4);
+            try {
+                codec.encode(value, view);
+            } catch (BufferOverflowException e) {
+                throw new IllegalArgumentException("element larger than slot (" + (ring.slotSize - 4) + " bytes): " + value, e);
+            }
+            ring.buffer.putInt(offset, view.position() - offset - 4);
+            next[p] = sequence + 1;
+            dirty[p] = true;
+            return true;
+        }
+
+        void publishAll() {
+            for (int p = 0; p < dirty.length; p++) {
+                if (dirty[p]) {
+                    dirty[p] = false;
+                    ring.publish(p, next[p]);
+                }
+            }
+        }
+
+        void fail(Throwable e) {
+            terminated = true;
+            publishAll();
+            ring.state(MappedRing.FAILED);
+            worker.dispose();
+            sink.error(e);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.xz.hello.reactor.shm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 元素和环形缓冲区槽位之间的序列化
+ * <p>
+ * encode 从 target 的 position 开始写,不能超过 limit(槽位大小减去4字节长度),超过时抛出 BufferOverflowException;
+ * decode 读 source 的 position 到 limit 之间的字节,必须把需要的数据复制出来,返回之后槽位就可能被生产者覆盖
+ */
+public interface RingCodec<T> {
+
+    void encode(T value, ByteBuffer target);
+
+    T decode(ByteBuffer source);
+
+    static RingCodec<Long> longs() {
+        return new RingCodec<Long>() {
+            @Override
+            public void encode(Long value, ByteBuffer target) {
+                target.putLong(value);
+            }
+
+            @Override
+            public Long decode(ByteBuffer source) {
+                return source.getLong();
+            }
+        };
+    }
+
+    static RingCodec<String> strings() {
+        return new RingCodec<String>() {
+            @Override
+            public void encode(String value, ByteBuffer target) {
+                target.put(value.getBytes(StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public String decode(ByteBuffer source) {
+                byte[] bytes = new byte[source.remaining()];
+                source.get(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        };
+    }
+}
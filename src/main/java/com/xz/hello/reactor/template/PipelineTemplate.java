@@ -0,0 +1,183 @@
+package com.xz.hello.reactor.template;
+
+import org.reactivestreams.Processor;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.Scannable;
+import reactor.core.publisher.ConnectableFlux;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Operators;
+import reactor.util.context.Context;
+
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * 预先组装好的操作链模板
+ * <p>
+ * BasicConcept.generateFluxFrom1To6()、ReactorTest.getZipDescFlux() 这样的工厂方法每调用一次都会重新组装整条链,
+ * 包括 split 和数组的分配;打开 Hooks.onOperatorDebug() 之后,每个操作符组装时还要抓一次调用栈
+ * <p>
+ * 模板只在创建时组装一次(组装钩子也只执行这一次),每次请求的参数放进订阅者的 Context 里传给源头:
+ * <p>
+ * 1--instance(param) 只创建一个很小的 Flux,不经过任何操作符的组装过程,也不会触发组装钩子
+ * <p>
+ * 2--订阅时源头从 Context 里取出参数,调用 source 生成真正的数据源
+ * <p>
+ * 3--组装好的链必须是冷的,每次订阅各自保存状态,所以多个实例可以同时订阅
+ * <p>
+ * 链上如果有 cache()、share()、publish()、replay() 这样的热操作符,只有第一个实例的订阅会到达源头,
+ * 之后的实例拿到的都是第一个实例参数的结果,所以 of() 会沿着 Scannable 的 parent 检查整条主链,
+ * 发现 ConnectableFlux、Processor(Mono.cache() 就是 MonoProcessor)或者 Mono.cache(Duration) 时抛出 IllegalArgumentException;
+ * flatMap 等操作符内部的发布者不在主链上,不做检查
+ * <p>
+ * 用法:
+ * <p>
+ * PipelineTemplate<String, String> words = PipelineTemplate.of(s -> Flux.fromArray(s.split("\\s+")), f -> f.map(String::toUpperCase));
+ * <p>
+ * words.instance("hello reactor").subscribe(System.out::println);
+ */
+public class PipelineTemplate<P, R> {
+
+    /**
+     * 每个模板一个独立的key,避免嵌套的模板互相覆盖参数
+     */
+    private final Object key;
+
+    private final Flux<R> assembled;
+
+    /**
+     * @param source 根据参数生成数据源,每次订阅调用一次
+     * @param chain  数据源之后的操作链,只在这里调用一次
+     */
+    public static <P, T, R> PipelineTemplate<P, R> of(Function<? super P, ? extends Publisher<? extends T>> source,
+                                                      Function<Flux<T>, ? extends Publisher<R>> chain) {
+        Objects.requireNonNull(source, "source");
+        Objects.requireNonNull(chain, "chain");
+        Object key = new Object();
+        Flux<T> head = new ContextSource<>(key, source);
+        Publisher<R> tail = chain.apply(head);
+        if (tail == null) {
+            throw new IllegalArgumentException("chain returned null");
+        }
+        checkCold(tail);
+        return new PipelineTemplate<>(key, Flux.from(tail));
+    }
+
+    private static void checkCold(Publisher<?> tail) {
+        Scannable scannable = Scannable.from(tail);
+        Stream.concat(Stream.of(scannable), scannable.parents())
+                .filter(PipelineTemplate::isHot)
+                .findFirst()
+                .ifPresent(hot -> {
+                    throw new IllegalArgumentException("chain must be cold, found hot operator: " + hot.name());
+                });
+    }
+
+    private static boolean isHot(Scannable operator) {
+        //MonoCacheTime 不是公开的类,只能按类名判断
+        return operator instanceof ConnectableFlux || operator instanceof Processor
+                || operator.getClass().getSimpleName().equals("MonoCacheTime");
+    }
+
+    private PipelineTemplate(Object key, Flux<R> assembled) {
+        this.key = key;
+        this.assembled = assembled;
+    }
+
+    public Flux<R> instance(P param) {
+        return new Instance<>(assembled, key, Objects.requireNonNull(param, "param"));
+    }
+
+    /**
+     * 模板的源头: 订阅时从Context里取参数生成真正的数据源
+     */
+    static final class ContextSource<P, T> extends Flux<T> {
+
+        final Object key;
+
+        final Function<? super P, ? extends Publisher<? extends T>> source;
+
+        ContextSource(Object key, Function<? super P, ? extends Publisher<? extends T>> source) {
+            this.key = key;
+            this.source = source;
+        }
+
+        @Override
+        public void subscribe(CoreSubscriber<? super T> actual) {
+            Publisher<? extends T> publisher;
+            try {
+                P param = actual.currentContext().get(key);
+                publisher = Objects.requireNonNull(source.apply(param), "source returned null");
+            } catch (Throwable e) {
+                Operators.error(actual, e);
+                return;
+            }
+            publisher.subscribe(actual);
+        }
+    }
+
+    /**
+     * 一次请求对应的实例,订阅时把参数放进Context,其余信号原样转发
+     * <p>
+     * onSubscribe 时把上游的 Subscription 直接交给下游,所以下游和上游之间的融合(fusion)不受影响
+     */
+    static final class Instance<P, R> extends Flux<R> {
+
+        final Flux<R> assembled;
+
+        final Object key;
+
+        final P param;
+
+        Instance(Flux<R> assembled, Object key, P param) {
+            this.assembled = assembled;
+            this.key = key;
+            this.param = param;
+        }
+
+        @Override
+        public void subscribe(CoreSubscriber<? super R> actual) {
+            assembled.subscribe(new ParamSubscriber<>(actual, actual.currentContext().put(key, param)));
+        }
+    }
+
+    static final class ParamSubscriber<R> implements CoreSubscriber<R> {
+
+        final CoreSubscriber<? super R> actual;
+
+        final Context context;
+
+        ParamSubscriber(CoreSubscriber<? super R> actual, Context context) {
+            this.actual = actual;
+            this.context = context;
+        }
+
+        @Override
+        public Context currentContext() {
+            return context;
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            actual.onSubscribe(s);
+        }
+
+        @Override
+        public void onNext(R r) {
+            actual.onNext(r);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            actual.onError(t);
+        }
+
+        @Override
+        public void onComplete() {
+            actual.onComplete();
+        }
+    }
+}
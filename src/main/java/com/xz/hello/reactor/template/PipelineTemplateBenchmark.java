@@ -0,0 +1,62 @@
+package com.xz.hello.reactor.template;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Hooks;
+
+import java.util.function.IntFunction;
+
+/**
+ * 每次请求重新组装整条链 和 使用 PipelineTemplate 的对比,统计每次请求 组装+订阅 的平均耗时
+ * <p>
+ * 链和 ReactorTest.getZipDescFlux() 类似: split 成单词,过滤,转换,取前 n 个
+ * <p>
+ * 第二轮打开 Hooks.onOperatorDebug(),每个操作符组装时都会抓调用栈,差距会更明显
+ */
+public class PipelineTemplateBenchmark {
+
+    private static final String DESC = "Zip two sources together, that is to say wait for all the sources to emit one element and combine these elements once into a Tuple2.";
+
+    private static final int REQUESTS = 200_000;
+
+    private static volatile int sink;
+
+    public static void main(String[] args) {
+        PipelineTemplate<Integer, String> template = PipelineTemplate.of(
+                n -> Flux.fromArray(DESC.split("\\s+")).take(n),
+                PipelineTemplateBenchmark::chain);
+
+        measure("assemble per request", n -> chain(Flux.fromArray(DESC.split("\\s+")).take(n)));
+        measure("template instance", template::instance);
+
+        Hooks.onOperatorDebug();
+        PipelineTemplate<Integer, String> debugTemplate = PipelineTemplate.of(
+                n -> Flux.fromArray(DESC.split("\\s+")).take(n),
+                PipelineTemplateBenchmark::chain);
+        measure("assemble per request (debug)", n -> chain(Flux.fromArray(DESC.split("\\s+")).take(n)));
+        measure("template instance (debug)", debugTemplate::instance);
+        Hooks.resetOnOperatorDebug();
+    }
+
+    private static Flux<String> chain(Flux<String> words) {
+        return words.filter(w -> w.length() > 3)
+                .map(String::toUpperCase)
+                .map(w -> w.substring(0, 1))
+                .distinctUntilChanged();
+    }
+
+    private static void measure(String name, IntFunction<Flux<String>> factory) {
+        for (int warmup = 0; warmup < 2; warmup++) {
+            run(factory, REQUESTS / 4);
+        }
+        long start = System.nanoTime();
+        run(factory, REQUESTS);
+        long nanos = System.nanoTime() - start;
+        System.out.println(String.format("%-32s %8.0f ns/request", name, (double) nanos / REQUESTS));
+    }
+
+    private static void run(IntFunction<Flux<String>> factory, int requests) {
+        for (int i = 0; i < requests; i++) {
+            factory.apply(5 + i % 10).subscribe(s -> sink += s.length());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.xz;
+
+import com.xz.hello.reactor.batch.AdaptiveBatcher;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveBatcherTest {
+
+    /**
+     * 所有元素按顺序写出,负载高时批大小会变大
+     */
+    @Test
+    public void testWriteAllInOrder() {
+        List<Integer> written = new ArrayList<>();
+        AdaptiveBatcher<Integer> batcher = new AdaptiveBatcher<>(batch -> Mono.fromRunnable(() -> written.addAll(batch)),
+                1, 1000, Duration.ofMillis(1), Duration.ofMillis(50), Duration.ofSeconds(1));
+
+        StepVerifier.create(batcher.write(Flux.range(0, 10_000)))
+                .verifyComplete();
+
+        assertEquals(IntStream.range(0, 10_000).boxed().collect(Collectors.toList()), written);
+        assertEquals(1000, batcher.getBatchSize());
+        assertTrue(batcher.getBatches() < 100);
+    }
+
+    /**
+     * 元素来得慢时等待超时就写出,不会一直攒着
+     */
+    @Test
+    public void testFlushOnTimeout() {
+        List<Integer> sizes = new ArrayList<>();
+        AdaptiveBatcher<Long> batcher = new AdaptiveBatcher<>(batch -> Mono.fromRunnable(() -> sizes.add(batch.size())),
+                10, 100, Duration.ofMillis(20), Duration.ofMillis(20), Duration.ofSeconds(1));
+
+        StepVerifier.create(batcher.write(Flux.interval(Duration.ofMillis(100)).take(3).onBackpressureBuffer()))
+                .verifyComplete();
+
+        assertEquals(3, sizes.size());
+        assertEquals(10, batcher.getBatchSize());
+    }
+
+    @Test
+    public void testSinkError() {
+        AdaptiveBatcher<Integer> batcher = new AdaptiveBatcher<>(batch -> Mono.error(new IllegalStateException("disk full")),
+                1, 10, Duration.ofMillis(1), Duration.ofMillis(10), Duration.ofSeconds(1));
+
+        StepVerifier.create(batcher.write(Flux.range(0, 100)))
+                .verifyErrorMessage("disk full");
+    }
+}
@@ -0,0 +1,101 @@
+package com.xz;
+
+import com.xz.hello.reactor.SimulatedService;
+import com.xz.hello.reactor.limit.AdaptiveFlatMap;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveFlatMapTest {
+
+    /**
+     * 和 test2 一样每个元素展开成多个延迟发出的元素,全部结果都到;下游只要多少给多少
+     */
+    @Test
+    public void testAllResultsWithBackpressure() {
+        AdaptiveFlatMap<String, String> adaptive = new AdaptiveFlatMap<>(
+                s -> Flux.fromArray(s.split("")).delayElements(Duration.ofMillis(10)), 2, 1, 8, 1.5, false);
+        StepVerifier.create(Flux.just("flux", "mono").transform(adaptive.operator()), 0)
+                .thenRequest(3)
+                .expectNextCount(3)
+                .thenRequest(5)
+                .expectNextCount(5)
+                .verifyComplete();
+        assertEquals(0, adaptive.getInFlight());
+        assertEquals(0, adaptive.getQueued());
+
+        List<Integer> squares = Flux.range(0, 200)
+                .transform(new AdaptiveFlatMap<Integer, Integer>(i -> Mono.just(i * i), 4, 1, 16, 1.5, false).operator())
+                .collectSortedList()
+                .block();
+        assertEquals(IntStream.range(0, 200).map(i -> i * i).boxed().collect(Collectors.toList()), squares);
+    }
+
+    /**
+     * 内部Publisher有很多元素时也按下游的请求来,每个内部Publisher先只请求一批
+     */
+    @Test
+    public void testInnerPrefetchBounded() {
+        AtomicInteger produced = new AtomicInteger();
+        AdaptiveFlatMap<Integer, Integer> adaptive = new AdaptiveFlatMap<>(
+                i -> Flux.range(0, 1000).doOnNext(v -> produced.incrementAndGet()), 2, 1, 2, 1.5, false);
+        StepVerifier.create(Flux.range(0, 4).transform(adaptive.operator()), 5)
+                .expectNextCount(5)
+                .then(() -> assertTrue(String.valueOf(produced.get()), produced.get() <= 2 * 32))
+                .thenCancel()
+                .verify();
+        assertEquals(0, adaptive.getInFlight());
+    }
+
+    /**
+     * 服务健康、延迟不随并发变化时上限增长;并发从不超过当时的上限
+     */
+    @Test
+    public void testLimitGrowsWhenHealthy() {
+        SimulatedService service = new SimulatedService(5, 0);
+        AtomicInteger maxConcurrent = new AtomicInteger();
+        AdaptiveFlatMap<Integer, String> adaptive = new AdaptiveFlatMap<>(i -> service.call(String.valueOf(i))
+                .doOnSubscribe(s -> maxConcurrent.accumulateAndGet(service.getInFlight() + 1, Math::max)), 2, 1, 64, 1.5, false);
+        Flux.range(0, 600).transform(adaptive.operator()).blockLast(Duration.ofSeconds(30));
+
+        assertTrue(adaptive.snapshot(), adaptive.getLimit() > 8);
+        assertTrue(maxConcurrent.get() <= 64);
+        assertEquals(600, adaptive.getCompleted());
+    }
+
+    /**
+     * 超过处理能力就排队变慢、再多就拒绝: 上限降到处理能力附近,错误只计数不中断
+     */
+    @Test
+    public void testLimitDropsWhenOverloaded() {
+        SimulatedService service = new SimulatedService(5, 0);
+        service.setCapacity(4);
+        AdaptiveFlatMap<Integer, String> adaptive = new AdaptiveFlatMap<>(i -> service.call(String.valueOf(i)), 64, 1, 64, 1.5, true);
+        long results = Flux.range(0, 1000).transform(adaptive.operator()).count().block(Duration.ofSeconds(30));
+
+        assertEquals(1000, adaptive.getCompleted() + adaptive.getErrors());
+        assertEquals(adaptive.getCompleted(), results);
+        assertTrue(adaptive.snapshot(), adaptive.getErrors() > 0);
+        assertTrue(adaptive.snapshot(), adaptive.getLimit() <= 16);
+    }
+
+    @Test
+    public void testErrorPropagatesByDefault() {
+        AdaptiveFlatMap<Integer, Integer> adaptive = new AdaptiveFlatMap<>(
+                i -> i == 3 ? Mono.error(new IllegalStateException("boom")) : Mono.just(i), 1, 1, 4, 1.5, false);
+        StepVerifier.create(Flux.range(0, 10).transform(adaptive.operator()))
+                .expectNext(0, 1, 2)
+                .verifyErrorMessage("boom");
+        assertEquals(1, adaptive.getErrors());
+    }
+}
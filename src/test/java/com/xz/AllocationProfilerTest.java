@@ -0,0 +1,51 @@
+package com.xz;
+
+import com.xz.hello.reactor.metrics.AllocationProfiler;
+import com.xz.hello.reactor.metrics.RequestProfiler;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AllocationProfilerTest {
+
+    /**
+     * map 里拼字符串的阶段分配最多,只做比较的 filter 几乎不分配;range在request里装箱,算到源头
+     */
+    @Test
+    public void testAttributesAllocationsToStages() {
+        AllocationProfiler profiler = new AllocationProfiler();
+        profiler.install();
+        try {
+            Flux.range(1000, 10_000)
+                    .map(i -> "value " + i)
+                    .filter(s -> s.length() > 3)
+                    .subscriberContext(RequestProfiler.pipeline("strings"))
+                    .blockLast();
+        } finally {
+            profiler.uninstall();
+        }
+
+        List<AllocationProfiler.Stage> stages = profiler.stages("strings");
+        AllocationProfiler.Stage source = stages.get(0);
+        AllocationProfiler.Stage map = stages.get(1);
+        AllocationProfiler.Stage filter = stages.get(2);
+        //其它测试打开过 Hooks.onOperatorDebug() 时名字里带着组装位置
+        assertTrue(source.getName(), source.getName().toLowerCase().contains("range"));
+        assertTrue(map.getName(), map.getName().contains("map"));
+        assertTrue(filter.getName(), filter.getName().contains("filter"));
+
+        assertEquals(10_000, source.getSignals());
+        assertEquals(10_001, map.getSignals());
+        assertTrue(map.toString(), map.getAllocatedBytes() > 10_000 * 24);
+        assertTrue(source.toString(), source.getAllocatedBytes() > 10_000 * 8);
+        assertTrue(filter.getAllocatedBytes() < map.getAllocatedBytes() / 10);
+
+        assertEquals(map, profiler.ranked().get(0));
+        String report = profiler.report();
+        assertTrue(report, report.contains("strings #1 "));
+    }
+}
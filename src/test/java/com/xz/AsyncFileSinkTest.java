@@ -0,0 +1,119 @@
+package com.xz;
+
+import com.xz.hello.reactor.file.AsyncFileSink;
+import com.xz.hello.reactor.file.RecordEncoder;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncFileSinkTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 小缓冲区和小文件,强制经历背压排队、多次滚动和多次组提交,内容按顺序完整
+     */
+    @Test
+    public void testRotateAndGroupCommit() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        AsyncFileSink<Integer> sink = new AsyncFileSink<>(dir, "numbers", RecordEncoder.utf8Lines(), 1024, 2, 8 * 1024, true);
+
+        StepVerifier.create(sink.write(Flux.range(0, 20_000))).verifyComplete();
+
+        List<String> lines = new ArrayList<>();
+        for (Path file : sink.getFiles()) {
+            assertTrue(Files.size(file) <= 8 * 1024);
+            lines.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+        }
+        assertEquals(IntStream.range(0, 20_000).mapToObj(String::valueOf).collect(Collectors.toList()), lines);
+        assertTrue(sink.getFiles().size() > 1);
+        assertEquals(lines.stream().mapToLong(line -> line.length() + 1).sum(), sink.getBytesWritten());
+        assertTrue(sink.getForces() > 0);
+        assertTrue(sink.getForces() <= sink.getWrites() + sink.getFiles().size());
+        assertEquals(2048, sink.getBufferMemory());
+    }
+
+    @Test
+    public void testRecordTooLarge() {
+        AsyncFileSink<String> sink = new AsyncFileSink<>(folder.getRoot().toPath(), "big", RecordEncoder.utf8Lines(), 16, 1, 1024, false);
+
+        StepVerifier.create(sink.write(Flux.just("ok", "this line does not fit")))
+                .verifyError(IllegalArgumentException.class);
+
+        //失败之后缓冲区归还,可以再次写入
+        StepVerifier.create(sink.write(Flux.just("a", "b"))).verifyComplete();
+    }
+
+    /**
+     * 吞吐量和字节数只算最近一次write()
+     */
+    @Test
+    public void testLastWriteStats() {
+        AsyncFileSink<Integer> sink = new AsyncFileSink<>(folder.getRoot().toPath(), "stats", RecordEncoder.utf8Lines(), 1024, 2, 64 * 1024, false);
+
+        StepVerifier.create(sink.write(Flux.range(0, 10_000))).verifyComplete();
+        long first = sink.getBytesWritten();
+        assertEquals(first, sink.getLastWriteBytes());
+
+        StepVerifier.create(sink.write(Flux.just(1, 2, 3))).verifyComplete();
+        assertEquals(6, sink.getLastWriteBytes());
+        assertEquals(first + 6, sink.getBytesWritten());
+        double mbps = sink.getMegabytesPerSecond();
+        assertEquals(mbps, sink.getMegabytesPerSecond(), 0);
+    }
+
+    /**
+     * 取消时滚动出去、还有写在进行的旧文件也要关闭,不留下打开的文件句柄
+     */
+    @Test
+    public void testCancelClosesAllSegments() throws Exception {
+        Path fds = Paths.get("/proc/self/fd");
+        Assume.assumeTrue(Files.isDirectory(fds));
+        Path dir = folder.getRoot().toPath();
+        AsyncFileSink<Integer> sink = new AsyncFileSink<>(dir, "cancel", RecordEncoder.utf8Lines(), 1024, 4, 2 * 1024, false);
+
+        Disposable writing = sink.write(Flux.range(0, Integer.MAX_VALUE).subscribeOn(Schedulers.single())).subscribe();
+        Thread.sleep(100);
+        writing.dispose();
+        Thread.sleep(300);
+
+        assertTrue(sink.getFiles().size() > 1);
+        assertEquals(0, openFilesUnder(fds, dir));
+    }
+
+    private static long openFilesUnder(Path fds, Path dir) throws IOException {
+        long count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(fds)) {
+            for (Path fd : stream) {
+                try {
+                    if (Files.readSymbolicLink(fd).startsWith(dir)) {
+                        count++;
+                    }
+                } catch (IOException ignore) {
+                    //目录遍历期间关闭的fd
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,118 @@
+package com.xz;
+
+import com.xz.hello.reactor.scheduler.BlockingDetector;
+import org.junit.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BlockingDetectorTest {
+
+    /**
+     * 和 testMon 一样: delayElement 之后 map 跑在 parallel 线程上,在里面 sleep
+     */
+    @Test
+    public void testSleepInMapOnParallel() {
+        BlockingDetector detector = new BlockingDetector(Duration.ofMillis(5));
+        detector.start();
+        try {
+            Mono.just(10)
+                    .delayElement(Duration.ofMillis(10))
+                    .map(n -> {
+                        sleep(200);
+                        return n + 1;
+                    })
+                    .block();
+        } finally {
+            detector.stop();
+        }
+
+        List<BlockingDetector.Violation> violations = detector.violations();
+        assertEquals(detector.report(), 1, violations.size());
+        BlockingDetector.Violation violation = violations.get(0);
+        assertEquals(BlockingDetector.Kind.SLEEP, violation.getKind());
+        assertTrue(violation.toString(), violation.getOperator().contains("Map"));
+        assertTrue(violation.toString(), violation.getLocation().contains("BlockingDetectorTest"));
+        assertTrue(violation.getThread().startsWith("parallel"));
+        assertEquals(1, violation.getEvents());
+    }
+
+    /**
+     * 自定义的非阻塞线程上等 synchronized 被检测到;elastic 线程上 sleep 是允许的
+     */
+    @Test
+    public void testMonitorOnCustomNonBlockingThreads() throws Exception {
+        Scheduler cpu = Schedulers.newParallel(2, BlockingDetector.nonBlockingThreads("cpu"));
+        BlockingDetector detector = new BlockingDetector(Duration.ofMillis(5));
+        detector.start();
+        Object lock = new Object();
+        try {
+            Thread holder = new Thread(() -> {
+                synchronized (lock) {
+                    sleep(200);
+                }
+            });
+            holder.start();
+            Thread.sleep(20);
+            Mono.fromCallable(() -> {
+                synchronized (lock) {
+                    return 1;
+                }
+            }).subscribeOn(cpu).block();
+
+            Mono.fromCallable(() -> {
+                sleep(100);
+                return 1;
+            }).subscribeOn(Schedulers.elastic()).block();
+        } finally {
+            detector.stop();
+            cpu.dispose();
+        }
+
+        List<BlockingDetector.Violation> violations = detector.violations();
+        assertEquals(detector.report(), 1, violations.size());
+        assertEquals(BlockingDetector.Kind.MONITOR, violations.get(0).getKind());
+        assertTrue(violations.get(0).getThread().startsWith("cpu-"));
+    }
+
+    /**
+     * 空闲的线程池和纯计算都不算
+     */
+    @Test
+    public void testNoFalsePositives() throws Exception {
+        BlockingDetector detector = new BlockingDetector(Duration.ofMillis(2));
+        detector.start();
+        try {
+            Schedulers.parallel().schedule(() -> {
+            });
+            Mono.fromCallable(() -> {
+                long x = 0;
+                long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+                while (System.nanoTime() < end) {
+                    x++;
+                }
+                return x;
+            }).subscribeOn(Schedulers.parallel()).block();
+            Thread.sleep(50);
+        } finally {
+            detector.stop();
+        }
+        assertTrue(detector.getSamples() > 0);
+        assertEquals(detector.report(), 0, detector.getEvents());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.xz;
+
+import com.xz.hello.reactor.create.ConcurrentFlux;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentFluxTest {
+
+    /**
+     * 8个线程同时发射,慢的下游分批request;每个线程自己的元素保持顺序,一个不少
+     */
+    @Test
+    public void testConcurrentProducers() {
+        int threads = 8;
+        int each = 20_000;
+        AtomicInteger running = new AtomicInteger(threads);
+        Flux<long[]> flux = ConcurrentFlux.create(sink -> {
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                new Thread(() -> {
+                    for (int i = 0; i < each; i++) {
+                        sink.next(new long[]{thread, i});
+                    }
+                    if (running.decrementAndGet() == 0) {
+                        sink.complete();
+                    }
+                }).start();
+            }
+        });
+
+        List<long[]> received = flux.publishOn(Schedulers.single(), 16).collectList().block(Duration.ofSeconds(30));
+        assertEquals(threads * each, received.size());
+        long[] last = new long[threads];
+        Arrays.fill(last, -1);
+        for (long[] v : received) {
+            assertEquals(last[(int) v[0]] + 1, v[1]);
+            last[(int) v[0]] = v[1];
+        }
+    }
+
+    /**
+     * 和 testCreate 一样同步发射,下游只要多少就给多少,取消时回调onCancel
+     */
+    @Test
+    public void testBackpressureAndCancel() {
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Flux<Integer> flux = ConcurrentFlux.<Integer>create(sink -> {
+            sink.onCancel(() -> cancelled.set(true));
+            for (int i = 0; i < 10; i++) {
+                sink.next(i);
+            }
+        });
+
+        StepVerifier.create(flux, 0)
+                .expectSubscription()
+                .thenRequest(3)
+                .expectNext(0, 1, 2)
+                .thenRequest(2)
+                .expectNext(3, 4)
+                .thenCancel()
+                .verify();
+        assertTrue(cancelled.get());
+    }
+
+    @Test
+    public void testErrorAfterElements() {
+        StepVerifier.create(ConcurrentFlux.<Integer>create(sink -> {
+            sink.next(1);
+            sink.next(2);
+            sink.error(new IllegalStateException("boom"));
+            sink.next(3);
+        }))
+                .expectNext(1, 2)
+                .verifyErrorMessage("boom");
+    }
+}
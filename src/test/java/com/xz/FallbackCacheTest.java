@@ -0,0 +1,138 @@
+package com.xz;
+
+import com.xz.hello.reactor.SimulatedService;
+import com.xz.hello.reactor.cache.FallbackCache;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FallbackCacheTest {
+
+    /**
+     * 第一次调用外部服务并缓存,第二次直接命中
+     */
+    @Test
+    public void testHit() {
+        SimulatedService service = new SimulatedService(10, 0);
+        FallbackCache<String, String> cache = new FallbackCache<>(service::call, 10, Duration.ofMinutes(1));
+
+        StepVerifier.create(cache.get("a")).expectNext("a -> 1").verifyComplete();
+        StepVerifier.create(cache.get("a")).expectNext("a -> 1").verifyComplete();
+
+        assertEquals(1, service.getCalls());
+        assertEquals(1, cache.stats().getHits());
+        assertEquals(1, cache.stats().getMisses());
+    }
+
+    /**
+     * 缓存过期后外部服务出错,用旧值顶替
+     */
+    @Test
+    public void testServeStaleOnError() throws InterruptedException {
+        SimulatedService service = new SimulatedService(0, 0);
+        FallbackCache<String, String> cache = new FallbackCache<>(service::call, 10,
+                Duration.ofMillis(50), Duration.ofMillis(50), Duration.ofMinutes(1));
+
+        StepVerifier.create(cache.get("a")).expectNext("a -> 1").verifyComplete();
+        Thread.sleep(100);
+        service.setFailureRate(1);
+
+        StepVerifier.create(Flux.just("a").flatMap(cache::get)).expectNext("a -> 1").verifyComplete();
+        StepVerifier.create(cache.get("b")).expectError(IllegalStateException.class).verify();
+
+        assertEquals(1, cache.stats().getStaleHits());
+        assertEquals(2, cache.stats().getLoadFailures());
+    }
+
+    /**
+     * 超过refreshAfter时先返回旧值,后台刷新之后返回新值
+     */
+    @Test
+    public void testRefreshInBackground() throws InterruptedException {
+        SimulatedService service = new SimulatedService(0, 0);
+        FallbackCache<String, String> cache = new FallbackCache<>(service::call, 10,
+                Duration.ofMinutes(1), Duration.ofMillis(50), Duration.ZERO);
+
+        StepVerifier.create(cache.get("a")).expectNext("a -> 1").verifyComplete();
+        Thread.sleep(100);
+        StepVerifier.create(cache.get("a")).expectNext("a -> 1").verifyComplete();
+        waitForCalls(service, 2);
+        StepVerifier.create(cache.get("a")).expectNext("a -> 2").verifyComplete();
+
+        assertEquals(1, cache.stats().getRefreshes());
+    }
+
+    /**
+     * 加载函数是阻塞的,后台刷新也不会在命中的调用方线程上执行
+     */
+    @Test
+    public void testBlockingLoaderDoesNotDelayHit() throws InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        Set<String> loaderThreads = ConcurrentHashMap.newKeySet();
+        FallbackCache<String, String> cache = new FallbackCache<>(key -> Mono.fromCallable(() -> {
+            loaderThreads.add(Thread.currentThread().getName());
+            if (calls.incrementAndGet() > 1) {
+                Thread.sleep(500);
+            }
+            return key + calls.get();
+        }), 10, Duration.ofMinutes(1), Duration.ofMillis(50), Duration.ZERO);
+
+        assertEquals("a1", cache.get("a").block());
+        Thread.sleep(100);
+        long start = System.nanoTime();
+        assertEquals("a1", cache.get("a").block());
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(200));
+        Thread.sleep(700);
+        assertEquals("a2", cache.get("a").block());
+        assertTrue(loaderThreads.toString(), loaderThreads.contains("fallback-cache-refresh"));
+    }
+
+    /**
+     * 同一个key同时未命中,只调用一次外部服务
+     */
+    @Test
+    public void testConcurrentMissesShareOneLoad() {
+        SimulatedService service = new SimulatedService(50, 0);
+        FallbackCache<String, String> cache = new FallbackCache<>(service::call, 10, Duration.ofMinutes(1));
+
+        StepVerifier.create(Flux.range(0, 10).flatMap(i -> cache.get("a")))
+                .expectNextCount(10)
+                .verifyComplete();
+
+        assertEquals(1, service.getCalls());
+        assertEquals(10, cache.stats().getMisses());
+    }
+
+    private static void waitForCalls(SimulatedService service, long calls) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (service.getCalls() < calls && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        //刷新的结果在调用返回之后才写进缓存
+        Thread.sleep(20);
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        SimulatedService service = new SimulatedService(0, 0);
+        FallbackCache<String, String> cache = new FallbackCache<>(service::call, 2, Duration.ofMinutes(1));
+
+        Flux.just("a", "b").flatMap(cache::get).blockLast();
+        cache.get("a").block();
+        cache.get("c").block();
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.stats().getEvictions());
+        StepVerifier.create(cache.get("a")).expectNext("a -> 1").verifyComplete();
+    }
+}
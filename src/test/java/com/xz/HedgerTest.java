@@ -0,0 +1,122 @@
+package com.xz;
+
+import com.xz.hello.reactor.hedge.Hedger;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HedgerTest {
+
+    /**
+     * 第一次调用卡住2秒,50ms后对冲请求发出并先返回
+     */
+    @Test
+    public void testHedgeWins() {
+        AtomicInteger attempts = new AtomicInteger();
+        Hedger hedger = Hedger.fixed(Duration.ofMillis(50), 0.1, 1);
+
+        long start = System.nanoTime();
+        StepVerifier.create(hedger.hedge(() -> {
+            int n = attempts.incrementAndGet();
+            return Mono.just("attempt " + n).delayElement(Duration.ofMillis(n == 1 ? 2000 : 10));
+        }))
+                .expectNext("attempt 2")
+                .verifyComplete();
+
+        assertTrue(System.nanoTime() - start < Duration.ofSeconds(1).toNanos());
+        assertEquals(1, hedger.getHedgesFired());
+        assertEquals(1, hedger.getHedgesWon());
+    }
+
+    /**
+     * 预算用完之后不再对冲
+     */
+    @Test
+    public void testBudget() {
+        Hedger hedger = Hedger.fixed(Duration.ofMillis(10), 0, 2);
+
+        StepVerifier.create(Flux.range(1, 5)
+                .flatMap(hedger.wrap(i -> Mono.just(i).delayElement(Duration.ofMillis(100)))))
+                .expectNextCount(5)
+                .verifyComplete();
+
+        assertEquals(5, hedger.getCalls());
+        assertEquals(2, hedger.getHedgesFired());
+        assertEquals(3, hedger.getHedgesDenied());
+    }
+
+    @Test
+    public void testPercentileDelay() {
+        Hedger hedger = Hedger.percentile(0.95, Duration.ofSeconds(1), 0.05, 5);
+
+        Flux.range(1, 128)
+                .flatMap(hedger.wrap(i -> Mono.just(i).delayElement(Duration.ofMillis(5))), 16)
+                .blockLast();
+
+        assertTrue(hedger.getCurrentDelay().toMillis() < 1000);
+        assertEquals(0, hedger.getHedgesFired());
+    }
+
+    /**
+     * 原请求100ms时出错,对冲请求200ms时返回,结果用对冲请求的
+     */
+    @Test
+    public void testPrimaryFailsHedgeWins() {
+        AtomicInteger attempts = new AtomicInteger();
+        Hedger hedger = Hedger.fixed(Duration.ofMillis(50), 0.1, 1);
+
+        StepVerifier.create(hedger.hedge(() -> attempts.incrementAndGet() == 1
+                ? Mono.<String>error(new IllegalStateException("primary failed")).delaySubscription(Duration.ofMillis(100))
+                : Mono.just("hedge").delayElement(Duration.ofMillis(150))))
+                .expectNext("hedge")
+                .verifyComplete();
+
+        assertEquals(2, attempts.get());
+        assertEquals(1, hedger.getHedgesWon());
+    }
+
+    /**
+     * 原请求空完成时对冲请求的值也能赢,两个都空才空完成
+     */
+    @Test
+    public void testEmptyResult() {
+        AtomicInteger attempts = new AtomicInteger();
+        Hedger hedger = Hedger.fixed(Duration.ofMillis(20), 0.1, 2);
+
+        StepVerifier.create(hedger.hedge(() -> attempts.incrementAndGet() == 1
+                ? Mono.<String>empty().delaySubscription(Duration.ofMillis(50))
+                : Mono.just("hedge").delayElement(Duration.ofMillis(100))))
+                .expectNext("hedge")
+                .verifyComplete();
+
+        StepVerifier.create(hedger.hedge(() -> Mono.<String>empty().delaySubscription(Duration.ofMillis(50))))
+                .verifyComplete();
+    }
+
+    /**
+     * 两个请求都出错才出错;原请求在对冲发出之前出错就直接出错
+     */
+    @Test
+    public void testBothFail() {
+        Hedger hedger = Hedger.fixed(Duration.ofMillis(20), 0.1, 2);
+        AtomicInteger attempts = new AtomicInteger();
+
+        StepVerifier.create(hedger.hedge(() -> Mono.<String>error(
+                new IllegalStateException("attempt " + attempts.incrementAndGet())).delaySubscription(Duration.ofMillis(50))))
+                .expectErrorMessage("attempt 1")
+                .verify();
+        assertEquals(2, attempts.get());
+
+        StepVerifier.create(hedger.hedge(() -> Mono.<String>error(new IllegalStateException("fast"))))
+                .expectErrorMessage("fast")
+                .verify();
+        assertEquals(1, hedger.getHedgesFired());
+    }
+}
@@ -0,0 +1,55 @@
+package com.xz;
+
+import com.xz.hello.lambda.filter.IntFilter;
+import org.junit.Test;
+
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class IntFilterTest {
+
+    /**
+     * 和逐個判斷的IntPredicate結果一致,長度故意不是64的倍數,也跨越多個塊
+     */
+    @Test
+    public void testSameAsIntStream() {
+        Random random = new Random(7);
+        int[] data = IntStream.range(0, 10_000).map(i -> i % 50 == 0 ? Integer.MIN_VALUE + i : random.nextInt()).toArray();
+        data[1] = Integer.MAX_VALUE;
+        int[] small = IntStream.range(0, 10_003).map(i -> random.nextInt(200) - 100).toArray();
+
+        check(IntFilter.lt(0), i -> i < 0, data);
+        check(IntFilter.ge(Integer.MIN_VALUE), i -> true, data);
+        check(IntFilter.gt(Integer.MAX_VALUE), i -> false, data);
+        check(IntFilter.range(-10, 10), i -> i >= -10 && i <= 10, small);
+        check(IntFilter.ne(5), i -> i != 5, small);
+        check(IntFilter.mod(2, 1), i -> i % 2 == 1, small);
+        check(IntFilter.mod(8, -3), i -> i % 8 == -3, small);
+        check(IntFilter.mod(7, 2), i -> i % 7 == 2, small);
+        check(IntFilter.mod(2, 1).and(IntFilter.le(50)).or(IntFilter.eq(-100)), i -> (i % 2 == 1 && i <= 50) || i == -100, small);
+        check(IntFilter.range(0, 20).not(), i -> i < 0 || i > 20, small);
+        check(IntFilter.of(i -> i % 3 == 0).and(IntFilter.gt(0)), i -> i % 3 == 0 && i > 0, small);
+    }
+
+    @Test
+    public void testIndexesAndBuffer() {
+        int[] data = {5, 12, 7, 30, 1, 18};
+        IntFilter bigEven = IntFilter.gt(10).and(IntFilter.mod(2, 0));
+
+        assertArrayEquals(new int[]{1, 3, 5}, IntFilter.indexes(bigEven.select(data)));
+        assertArrayEquals(new int[]{1, 3, 5}, IntFilter.indexes(bigEven.select(IntBuffer.wrap(data))));
+        IntBuffer sliced = IntBuffer.wrap(data);
+        sliced.position(2);
+        assertArrayEquals(new int[]{1, 3}, IntFilter.indexes(bigEven.select(sliced)));
+    }
+
+    private static void check(IntFilter filter, IntPredicate expected, int[] data) {
+        assertArrayEquals(IntStream.of(data).filter(expected).toArray(), filter.filter(data));
+        assertArrayEquals(IntStream.range(0, data.length).filter(i -> expected.test(data[i])).toArray(),
+                IntFilter.indexes(filter.select(IntBuffer.wrap(data))));
+    }
+}
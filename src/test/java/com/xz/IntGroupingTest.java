@@ -0,0 +1,62 @@
+package com.xz;
+
+import com.xz.hello.lambda.group.IntGroupMap;
+import com.xz.hello.lambda.group.IntGrouping;
+import org.junit.Test;
+
+import java.util.IntSummaryStatistics;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class IntGroupingTest {
+
+    /**
+     * 順序、並行、堆外的結果都和groupingBy一致,鍵的個數超過初始容量,會經歷多次擴容
+     */
+    @Test
+    public void testSameAsGroupingBy() {
+        Random random = new Random(3);
+        int[] data = IntStream.range(0, 200_000).map(i -> random.nextInt(20_000) - 10_000).toArray();
+        Map<Integer, IntSummaryStatistics> expected = IntStream.of(data).boxed()
+                .collect(Collectors.groupingBy(i -> Math.floorMod(i, 3001), Collectors.summarizingInt(i -> i)));
+
+        check(expected, IntGrouping.by(i -> Math.floorMod(i, 3001)).collect(IntStream.of(data)));
+        check(expected, IntGrouping.by(i -> Math.floorMod(i, 3001)).collect(IntStream.of(data).parallel()));
+        check(expected, IntGrouping.by(i -> Math.floorMod(i, 3001)).offHeap().collect(IntStream.of(data).parallel()));
+    }
+
+    @Test
+    public void testHistogramAndValues() {
+        IntGroupMap histogram = IntGrouping.histogram(10).collect(IntStream.of(-1, 0, 9, 10, 25, 29));
+        Map<Integer, Long> counts = new TreeMap<>();
+        counts.put(-1, 1L);
+        counts.put(0, 2L);
+        counts.put(1, 1L);
+        counts.put(2, 2L);
+        assertEquals(counts, histogram.toCountMap());
+
+        IntGroupMap lengths = IntGrouping.by(i -> i % 2).values(i -> i * 10).offHeap().collect(IntStream.rangeClosed(1, 4));
+        assertEquals(40, lengths.sum(1));
+        assertEquals(60, lengths.sum(0));
+        assertEquals(20, lengths.min(0));
+        assertEquals(30, lengths.max(1));
+        assertFalse(lengths.contains(2));
+        assertEquals(0, lengths.count(2));
+    }
+
+    private static void check(Map<Integer, IntSummaryStatistics> expected, IntGroupMap actual) {
+        assertEquals(expected.size(), actual.size());
+        expected.forEach((key, stats) -> {
+            assertEquals(stats.getCount(), actual.count(key));
+            assertEquals(stats.getSum(), actual.sum(key));
+            assertEquals(stats.getMin(), actual.min(key));
+            assertEquals(stats.getMax(), actual.max(key));
+        });
+    }
+}
@@ -0,0 +1,88 @@
+package com.xz;
+
+import com.xz.hello.lambda.pool.IsolatedPool;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IsolatedPoolTest {
+
+    /**
+     * 重的聚合佔滿了自己的池,另一個池裏的並行流不受影響,兩邊的子任務也只在各自的池裏執行
+     */
+    @Test
+    public void testWorkloadsDoNotInterfere() throws Exception {
+        try (IsolatedPool heavy = new IsolatedPool("heavy", 2);
+             IsolatedPool light = new IsolatedPool("light", 2)) {
+            Set<String> heavyThreads = ConcurrentHashMap.newKeySet();
+            CompletableFuture<Integer> heavyResult = CompletableFuture.supplyAsync(() -> heavy.invoke(() ->
+                    IntStream.range(0, 8).parallel().map(i -> {
+                        heavyThreads.add(Thread.currentThread().getName());
+                        sleep(300);
+                        return i;
+                    }).sum()));
+            sleep(50);
+
+            Set<String> lightThreads = ConcurrentHashMap.newKeySet();
+            long start = System.nanoTime();
+            long sum = light.invoke(() -> IntStream.range(0, 100_000).parallel().peek(i ->
+                    lightThreads.add(Thread.currentThread().getName())).asLongStream().sum());
+            long lightMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertEquals(4_999_950_000L, sum);
+            assertTrue("light workload took " + lightMillis + "ms", lightMillis < 250);
+            assertFalse(heavyResult.isDone());
+            assertEquals(28, (int) heavyResult.get(5, TimeUnit.SECONDS));
+            assertTrue(heavyThreads.stream().allMatch(n -> n.startsWith("heavy-")));
+            assertTrue(lightThreads.stream().allMatch(n -> n.startsWith("light-")));
+        }
+    }
+
+    @Test
+    public void testDetectBlocking() {
+        List<IsolatedPool.BlockingEvent> events = new CopyOnWriteArrayList<>();
+        try (IsolatedPool pool = new IsolatedPool("blocking", 2)) {
+            pool.detectBlocking(10, TimeUnit.MILLISECONDS).onBlocking(events::add);
+
+            pool.run(() -> IntStream.range(0, 4).parallel().forEach(i -> sleep(100)));
+
+            assertTrue(pool.getBlockingDetected() > 0);
+            String stack = events.get(0).toString();
+            assertTrue(stack, stack.contains("IsolatedPoolTest"));
+        }
+    }
+
+    /**
+     * 空閒和join等待不算阻塞
+     */
+    @Test
+    public void testNoFalsePositive() {
+        try (IsolatedPool pool = new IsolatedPool("busy", 2)) {
+            pool.detectBlocking(5, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < 20; i++) {
+                pool.invoke(() -> IntStream.range(0, 200_000).parallel().boxed().collect(Collectors.toList()).size());
+            }
+            sleep(50);
+            assertEquals(0, pool.getBlockingDetected());
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
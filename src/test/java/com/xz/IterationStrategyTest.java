@@ -0,0 +1,76 @@
+package com.xz;
+
+import com.xz.hello.lambda.iteration.IterationStrategy;
+import com.xz.hello.lambda.iteration.IterationStrategy.Cost;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IterationStrategyTest {
+
+    /**
+     * 數據量達到臨界點(包含臨界點本身)才並行,三檔計算量各用各的臨界點
+     */
+    @Test
+    public void testCrossoverThresholds() {
+        IterationStrategy strategy = new IterationStrategy(1000, 100, 10);
+
+        assertFalse(strategy.isParallel(999, Cost.TRIVIAL));
+        assertTrue(strategy.isParallel(1000, Cost.TRIVIAL));
+        assertFalse(strategy.isParallel(99, Cost.LIGHT));
+        assertTrue(strategy.isParallel(100, Cost.LIGHT));
+        assertFalse(strategy.isParallel(9, Cost.HEAVY));
+        assertTrue(strategy.isParallel(10, Cost.HEAVY));
+        assertEquals(100, strategy.crossover(Cost.LIGHT));
+        assertEquals("crossover TRIVIAL=1000, LIGHT=100, HEAVY=10", strategy.toString());
+    }
+
+    /**
+     * stream() 按數據量選擇串行或者並行,結果和串行流一樣
+     */
+    @Test
+    public void testStreamSelection() {
+        IterationStrategy strategy = new IterationStrategy(1000, 100, 10);
+        int[] small = IntStream.range(0, 50).toArray();
+        int[] large = IntStream.range(0, 5000).toArray();
+
+        assertFalse(strategy.stream(small, Cost.LIGHT).isParallel());
+        assertTrue(strategy.stream(small, Cost.HEAVY).isParallel());
+        assertTrue(strategy.stream(large, Cost.TRIVIAL).isParallel());
+        assertEquals(IntStream.of(large).sum(), strategy.stream(large, Cost.TRIVIAL).sum());
+
+        List<Integer> list = IntStream.of(small).boxed().collect(Collectors.toList());
+        assertFalse(strategy.stream(list, Cost.TRIVIAL).isParallel());
+        assertTrue(strategy.stream(list, Cost.HEAVY).isParallel());
+        assertEquals(list, strategy.stream(list, Cost.HEAVY).collect(Collectors.toList()));
+    }
+
+    /**
+     * 默認的臨界點: 只有一個核時永遠不並行;多核時計算量越大臨界點越小,便宜的小數據量不並行
+     */
+    @Test
+    public void testDefaults() {
+        IterationStrategy strategy = IterationStrategy.defaults();
+        if (ForkJoinPool.getCommonPoolParallelism() <= 1) {
+            for (Cost cost : Cost.values()) {
+                assertFalse(strategy.isParallel(Integer.MAX_VALUE - 1, cost));
+            }
+            assertEquals("crossover TRIVIAL=never, LIGHT=never, HEAVY=never", strategy.toString());
+            assertEquals(strategy.toString(), IterationStrategy.calibrate().toString());
+            return;
+        }
+        int[] crossovers = Arrays.stream(Cost.values()).mapToInt(strategy::crossover).toArray();
+        assertTrue(crossovers[0] > crossovers[1]);
+        assertTrue(crossovers[1] > crossovers[2]);
+        assertFalse(strategy.isParallel(1000, Cost.TRIVIAL));
+        assertTrue(strategy.isParallel(1 << 20, Cost.HEAVY));
+    }
+}
@@ -0,0 +1,87 @@
+package com.xz;
+
+import com.xz.hello.reactor.keyed.KeyedExecutor;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KeyedExecutorTest {
+
+    /**
+     * 大量的key,同一个key的结果按顺序;收到还没发出的元素不超过maxInFlight
+     */
+    @Test
+    public void testPerKeyOrderAndInFlightCap() {
+        Scheduler scheduler = Schedulers.newParallel("keyed", 4);
+        AtomicLong received = new AtomicLong();
+        AtomicLong emitted = new AtomicLong();
+        AtomicLong maxInFlight = new AtomicLong();
+        try {
+            List<long[]> results = Flux.range(0, 200_000)
+                    .doOnNext(i -> received.incrementAndGet())
+                    .transform(KeyedExecutor.<Integer, long[]>mapping(scheduler, 8, 64, i -> i % 50_000,
+                            i -> new long[]{i % 50_000, i}).operator())
+                    .doOnNext(r -> {
+                        long inFlight = received.get() - emitted.incrementAndGet() + 1;
+                        maxInFlight.accumulateAndGet(inFlight, Math::max);
+                    })
+                    .collectList()
+                    .block(Duration.ofSeconds(30));
+
+            assertEquals(200_000, results.size());
+            Map<Long, Long> last = new HashMap<>();
+            for (long[] result : results) {
+                Long previous = last.put(result[0], result[1]);
+                assertTrue(previous == null || previous < result[1]);
+            }
+            assertTrue("max in flight " + maxInFlight.get(), maxInFlight.get() <= 64);
+        } finally {
+            scheduler.dispose();
+        }
+    }
+
+    /**
+     * 异步的Mono在通道内一个一个执行;空的Mono不发出
+     */
+    @Test
+    public void testAsyncMapperKeepsOrder() {
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicInteger maxConcurrent = new AtomicInteger();
+        KeyedExecutor<Integer, String> executor = new KeyedExecutor<>(Schedulers.parallel(), 1, 16, i -> "same",
+                i -> i % 3 == 0 ? Mono.empty() : Mono.delay(Duration.ofMillis(20 - i))
+                        .doOnSubscribe(s -> maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max))
+                        .doOnTerminate(concurrent::decrementAndGet)
+                        .map(ignore -> "v" + i));
+
+        StepVerifier.create(Flux.range(1, 10).transform(executor.operator()))
+                .expectNext("v1", "v2", "v4", "v5", "v7", "v8", "v10")
+                .verifyComplete();
+        assertEquals(1, maxConcurrent.get());
+    }
+
+    @Test
+    public void testMapperError() {
+        StepVerifier.create(Flux.range(1, 100)
+                .transform(KeyedExecutor.<Integer, Integer>mapping(Schedulers.parallel(), 4, 8, i -> i, i -> {
+                    if (i == 50) {
+                        throw new IllegalStateException("boom");
+                    }
+                    return i;
+                }).operator()))
+                .thenConsumeWhile(i -> true)
+                .verifyErrorMessage("boom");
+    }
+}
@@ -0,0 +1,118 @@
+package com.xz;
+
+import com.xz.hello.reactor.shed.LoadShedder;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoadShedderTest {
+
+    /**
+     * 下游还没有request时同一个key的更新只保留最新值,位置不变
+     */
+    @Test
+    public void testCoalesceLatestPerKey() {
+        LoadShedder<String> shedder = new LoadShedder<>(s -> Duration.ofMinutes(1), s -> s.charAt(0), 0, 100);
+
+        StepVerifier.create(Flux.just("a1", "b1", "a2", "c1", "a3", "b2").transform(shedder.operator()), 0)
+                .thenAwait(Duration.ofMillis(10))
+                .thenRequest(10)
+                .expectNext("a3", "b2", "c1")
+                .verifyComplete();
+        assertEquals(3, shedder.getCoalesced());
+        assertEquals(3, shedder.getDelivered());
+    }
+
+    /**
+     * 过期的元素丢掉,或者每2个交付1个
+     */
+    @Test
+    public void testDropAndSampleExpired() {
+        LoadShedder<Integer> drop = new LoadShedder<>(Duration.ofMillis(20), 100);
+        StepVerifier.create(Flux.range(1, 5).transform(drop.operator()), 0)
+                .thenAwait(Duration.ofMillis(50))
+                .thenRequest(10)
+                .verifyComplete();
+        assertEquals(5, drop.getShedExpired());
+
+        LoadShedder<Integer> sample = new LoadShedder<>(i -> Duration.ofMillis(20), null, 2, 100);
+        StepVerifier.create(Flux.range(1, 5).transform(sample.operator()), 0)
+                .thenAwait(Duration.ofMillis(50))
+                .thenRequest(10)
+                .expectNext(1, 3, 5)
+                .verifyComplete();
+        assertEquals(3, sample.getSampled());
+        assertEquals(2, sample.getShedExpired());
+    }
+
+    /**
+     * 每毫秒一个元素,消费者每个元素要5毫秒: 不减载的话最后的元素要排队1秒以上,减载后排队时间不超过截止时间
+     */
+    @Test
+    public void testLatencyBoundedWithSlowConsumer() {
+        LoadShedder<Long> shedder = new LoadShedder<>(Duration.ofMillis(50), 10_000);
+
+        Flux.interval(Duration.ofMillis(1))
+                .take(300)
+                .transform(shedder.operator())
+                .publishOn(Schedulers.single(), 1)
+                .doOnNext(i -> sleep(5))
+                .blockLast(Duration.ofSeconds(30));
+
+        assertTrue(shedder.snapshot(), shedder.getShedOnArrival() + shedder.getShedExpired() > 0);
+        assertEquals(300, shedder.getReceived());
+        assertEquals(300, shedder.getDelivered() + shedder.getShedOnArrival() + shedder.getShedExpired());
+        assertTrue(shedder.snapshot(), shedder.getMaxLatencyMillis() <= 50 + 20);
+        assertTrue(shedder.snapshot(), shedder.getConsumerThroughput() > 0);
+    }
+
+    /**
+     * publishOn 用默认的 prefetch 时按批补充请求,批内的交付间隔接近0;按request的间隔测量,
+     * 测到的消费者吞吐量接近真实值(每个元素2毫秒,大约每秒500个),而不是批内交付的速度
+     */
+    @Test
+    public void testMeasureConsumerBehindDefaultPrefetch() {
+        LoadShedder<Long> shedder = new LoadShedder<>(Duration.ofMillis(200), 10_000);
+
+        Flux.interval(Duration.ofMillis(1))
+                .take(1500)
+                .transform(shedder.operator())
+                .publishOn(Schedulers.single())
+                .doOnNext(i -> sleep(2))
+                .blockLast(Duration.ofSeconds(30));
+
+        assertTrue(shedder.snapshot(), shedder.getConsumerThroughput() > 200);
+        assertTrue(shedder.snapshot(), shedder.getConsumerThroughput() < 1000);
+        assertTrue(shedder.snapshot(), shedder.getShedOnArrival() > 0);
+        assertTrue(shedder.snapshot(), shedder.getMaxLatencyMillis() <= 200 + 20);
+    }
+
+    @Test
+    public void testKeyFunctionError() {
+        LoadShedder<Integer> shedder = new LoadShedder<>(i -> Duration.ofSeconds(1), i -> {
+            if (i == 3) {
+                throw new IllegalStateException("bad key " + i);
+            }
+            return i;
+        }, 0, 100);
+
+        StepVerifier.create(Flux.range(1, 5).transform(shedder.operator()))
+                .expectNext(1, 2)
+                .verifyErrorMessage("bad key 3");
+    }
+
+    private static void sleep(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
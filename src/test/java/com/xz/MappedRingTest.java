@@ -0,0 +1,104 @@
+package com.xz;
+
+import com.xz.hello.reactor.shm.MappedRingDemo;
+import com.xz.hello.reactor.shm.MappedRingReader;
+import com.xz.hello.reactor.shm.MappedRingWriter;
+import com.xz.hello.reactor.shm.RingCodec;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MappedRingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 只有8个槽位,环绕很多圈;消费者慢的时候生产者要暂停,每个分区的顺序不变
+     */
+    @Test
+    public void testBackpressureAndWrapAround() {
+        Path file = folder.getRoot().toPath().resolve("small.ring");
+        MappedRingWriter<String> writer = new MappedRingWriter<>(file, 2, 8, 32, RingCodec.strings(), s -> s.charAt(0));
+        MappedRingReader<String> reader = new MappedRingReader<>(file, RingCodec.strings());
+        List<String> source = IntStream.range(0, 500).mapToObj(i -> (char) ('a' + i % 4) + "-" + i).collect(Collectors.toList());
+
+        Mono<List<List<String>>> consumers = Flux.range(0, reader.partitions())
+                .flatMapSequential(p -> reader.partition(p).publishOn(Schedulers.elastic(), 4).collectList())
+                .collectList();
+        Mono<Void> producer = writer.write(Flux.fromIterable(source));
+
+        List<List<String>> partitions = Mono.zip(consumers, producer.then(Mono.just(true)), (c, ignore) -> c)
+                .block(Duration.ofSeconds(30));
+        for (int p = 0; p < 2; p++) {
+            int partition = p;
+            assertEquals(source.stream().filter(s -> writer.partitionOf(s) == partition).collect(Collectors.toList()),
+                    partitions.get(p));
+        }
+        assertEquals(500, writer.getWritten());
+        assertTrue(writer.getFullWaits() > 0);
+    }
+
+    /**
+     * 元素超过槽位大小时写入出错,消费者读完前面的元素后也出错
+     */
+    @Test
+    public void testOversizedElement() {
+        Path file = folder.getRoot().toPath().resolve("oversized.ring");
+        MappedRingWriter<String> writer = new MappedRingWriter<>(file, 1, 8, 16, RingCodec.strings(), s -> s);
+        StepVerifier.create(writer.write(Flux.just("ok", "this one does not fit")))
+                .verifyError(IllegalArgumentException.class);
+        StepVerifier.create(new MappedRingReader<>(file, RingCodec.strings()).partition(0))
+                .expectNext("ok")
+                .verifyError(IllegalStateException.class);
+    }
+
+    /**
+     * 两个子JVM各消费两个分区,核对每个分区的个数、总和和顺序
+     */
+    @Test
+    public void testMultipleProcesses() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("shared.ring");
+        MappedRingWriter<Long> writer = new MappedRingWriter<>(file, 4, 64, 16, RingCodec.longs(), v -> v);
+        List<Process> children = new ArrayList<>();
+        List<String> lines = new ArrayList<>();
+        try {
+            children.add(MappedRingDemo.startConsumer(file, 10, 0, 1));
+            children.add(MappedRingDemo.startConsumer(file, 10, 2, 3));
+            writer.write(Flux.range(0, 20_000).map(Integer::longValue)).block(Duration.ofSeconds(60));
+
+            //子进程只输出几行,不会因为管道写满而卡住,可以先等它退出再读输出
+            for (Process child : children) {
+                assertTrue("consumer did not exit in time", child.waitFor(60, TimeUnit.SECONDS));
+                lines.addAll(MappedRingDemo.readAll(child));
+                assertEquals(lines.toString(), 0, child.exitValue());
+            }
+        } finally {
+            //写失败或者超时时环的状态一直是RUNNING,子进程会一直等下去
+            for (Process child : children) {
+                child.destroyForcibly();
+            }
+        }
+        for (int p = 0; p < 4; p++) {
+            int partition = p;
+            long count = IntStream.range(0, 20_000).filter(i -> writer.partitionOf((long) i) == partition).count();
+            long sum = IntStream.range(0, 20_000).filter(i -> writer.partitionOf((long) i) == partition).asLongStream().sum();
+            assertTrue(lines.toString(), lines.contains("partition " + p + " count " + count + " sum " + sum + " ordered true"));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.xz;
+
+import com.xz.hello.reactor.template.PipelineTemplate;
+import org.junit.Test;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Hooks;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PipelineTemplateTest {
+
+    @Test
+    public void testInstances() {
+        PipelineTemplate<String, String> words = PipelineTemplate.of(
+                s -> Flux.fromArray(s.split("\\s+")),
+                f -> f.filter(w -> w.length() > 2).map(String::toUpperCase));
+
+        StepVerifier.create(words.instance("hello to reactor"))
+                .expectNext("HELLO", "REACTOR")
+                .verifyComplete();
+        StepVerifier.create(words.instance("flux and mono"))
+                .expectNext("FLUX", "AND", "MONO")
+                .verifyComplete();
+    }
+
+    /**
+     * 链上的操作符只在创建模板时组装一次,之后每个实例只有源头自己的组装
+     */
+    @Test
+    public void testAssemblyHookOncePerTemplate() {
+        AtomicInteger assemblies = new AtomicInteger();
+        Hooks.onEachOperator("count", publisher -> {
+            assemblies.incrementAndGet();
+            return publisher;
+        });
+        try {
+            PipelineTemplate<Integer, Integer> squares = PipelineTemplate.of(
+                    n -> Flux.range(1, n),
+                    f -> f.filter(i -> i % 2 == 1).map(i -> i * i).take(2));
+            int afterTemplate = assemblies.get();
+
+            for (int n = 1; n <= 10; n++) {
+                squares.instance(n).blockLast();
+            }
+
+            assertEquals(10, assemblies.get() - afterTemplate);
+            StepVerifier.create(squares.instance(6)).expectNext(1, 9).verifyComplete();
+        } finally {
+            Hooks.resetOnEachOperator("count");
+        }
+    }
+
+    @Test
+    public void testSourceError() {
+        PipelineTemplate<Integer, Integer> template = PipelineTemplate.of(
+                n -> Flux.range(1, n),
+                f -> f.map(i -> 10 / (i - 3)));
+
+        StepVerifier.create(template.instance(6))
+                .expectNext(-5, -10)
+                .verifyError(ArithmeticException.class);
+    }
+
+    /**
+     * 链上有热操作符时,所有实例都会拿到第一个实例的结果,创建模板时直接拒绝
+     */
+    @Test
+    public void testHotChainRejected() {
+        assertHot(Flux::cache);
+        assertHot(Flux::share);
+        assertHot(f -> f.publish().autoConnect().map(i -> i + 1));
+        assertHot(f -> f.replay().refCount());
+        assertHot(f -> f.next().cache());
+        assertHot(f -> f.next().cache(Duration.ofSeconds(1)));
+
+        PipelineTemplate<Integer, Integer> cold = PipelineTemplate.of(
+                n -> Flux.range(1, n), f -> f.<Integer>publish(p -> p.map(i -> -i)));
+        StepVerifier.create(cold.instance(2)).expectNext(-1, -2).verifyComplete();
+    }
+
+    private static void assertHot(Function<Flux<Integer>, ? extends Publisher<Integer>> chain) {
+        try {
+            PipelineTemplate.<Integer, Integer, Integer>of(n -> Flux.range(1, n), chain);
+            fail("hot chain accepted");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("chain must be cold"));
+        }
+    }
+}
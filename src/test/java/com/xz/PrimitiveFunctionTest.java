@@ -0,0 +1,58 @@
+package com.xz;
+
+import com.xz.hello.lambda.function.IntBiPred;
+import com.xz.hello.lambda.function.IntBinaryOp;
+import com.xz.hello.lambda.function.IntPred;
+import com.xz.hello.lambda.function.IntToObj;
+import com.xz.hello.lambda.function.IntUnaryOp;
+import com.xz.hello.lambda.function.ObjToInt;
+import org.junit.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PrimitiveFunctionTest {
+
+    @Test
+    public void testPredicate() {
+        IntPred odd = i -> i % 2 == 1;
+        IntPred small = i -> i < 4;
+
+        assertEquals(2, IntStream.rangeClosed(1, 6).filter(odd.and(small)).count());
+        assertEquals(4, IntStream.rangeClosed(1, 6).filter(odd.or(small)).count());
+        assertEquals(2, IntStream.rangeClosed(1, 6).filter(odd.xor(small)).count());
+        assertTrue(IntPred.not(odd).test(2));
+        assertTrue(odd.compose(i -> i + 1).test(2));
+    }
+
+    @Test
+    public void testBinary() {
+        IntBinaryOp sub = (x, y) -> x - y;
+
+        assertEquals(7, sub.bindLeft(10).applyAsInt(3));
+        assertEquals(-7, sub.flip().applyAsInt(10, 3));
+        assertEquals(14, sub.andThen(i -> i * 2).applyAsInt(10, 3));
+        assertEquals(17, sub.compose(i -> i * 2, i -> i + 0).applyAsInt(10, 3));
+        IntBiPred positive = sub.thenTest(i -> i > 0);
+        assertTrue(positive.test(3, 1));
+        assertFalse(positive.negate().test(3, 1));
+        assertEquals("7", sub.thenApply(Integer::toString).apply(10, 3));
+    }
+
+    @Test
+    public void testObjectVariants() {
+        IntUnaryOp square = i -> i * i;
+        IntToObj<String> hex = Integer::toHexString;
+        ObjToInt<String> length = String::length;
+
+        assertEquals("ff", hex.compose(i -> i - 1).apply(256));
+        assertEquals(3, hex.thenApplyAsInt(length).applyAsInt(256));
+        assertEquals(9, length.andThen(square).applyAsInt("abc"));
+        assertTrue(length.thenTest(i -> i > 2).test("abc"));
+        assertEquals("19", square.thenApply(Integer::toHexString).apply(5));
+        assertEquals(4, length.compose(Object::toString).applyAsInt(1234));
+    }
+}
@@ -0,0 +1,142 @@
+package com.xz;
+
+import com.xz.hello.reactor.scheduler.PriorityScheduler;
+import org.junit.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PrioritySchedulerTest {
+
+    @Test
+    public void testSubscribeOnAndPublishOn() {
+        PriorityScheduler scheduler = new PriorityScheduler("prio", 2, 4, 1);
+        try {
+            StepVerifier.create(Mono.fromCallable(() -> Thread.currentThread().getName())
+                    .subscribeOn(scheduler.lane(0)))
+                    .expectNextMatches(name -> name.startsWith("prio-"))
+                    .verifyComplete();
+
+            StepVerifier.create(Flux.range(1, 1000)
+                    .publishOn(scheduler.lane(1))
+                    .delayElements(Duration.ofMillis(1), scheduler.lane(1))
+                    .take(5))
+                    .expectNext(1, 2, 3, 4, 5)
+                    .verifyComplete();
+        } finally {
+            scheduler.dispose();
+        }
+    }
+
+    /**
+     * 两个通道都积压时按3:1的权重交替执行,低优先级通道不会被饿死
+     */
+    @Test
+    public void testWeightedFairness() throws InterruptedException {
+        PriorityScheduler scheduler = new PriorityScheduler("prio", 1, 3, 1);
+        try {
+            CountDownLatch blocker = new CountDownLatch(1);
+            CountDownLatch finished = new CountDownLatch(80);
+            List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+            scheduler.lane(0).schedule(() -> {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            for (int i = 0; i < 40; i++) {
+                scheduler.lane(1).schedule(() -> {
+                    order.add(1);
+                    finished.countDown();
+                });
+                scheduler.lane(0).schedule(() -> {
+                    order.add(0);
+                    finished.countDown();
+                });
+            }
+            blocker.countDown();
+            assertTrue(finished.await(5, TimeUnit.SECONDS));
+
+            long lowInFirst20 = order.subList(0, 20).stream().filter(lane -> lane == 1).count();
+            assertEquals(5, lowInFirst20);
+            assertTrue(scheduler.laneStats(0).getMeanWaitMicros() < scheduler.laneStats(1).getMeanWaitMicros());
+            assertEquals(40, scheduler.laneStats(1).getExecuted());
+        } finally {
+            scheduler.dispose();
+        }
+    }
+
+    /**
+     * 执行时间(20ms)远大于周期(2ms)的周期任务也不会并发执行,Worker上的周期任务同样如此
+     */
+    @Test
+    public void testSlowPeriodicTaskNeverOverlaps() throws InterruptedException {
+        PriorityScheduler scheduler = new PriorityScheduler("prio", 4, 1);
+        try {
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+            AtomicInteger runs = new AtomicInteger();
+            Runnable slow = () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                runs.incrementAndGet();
+            };
+            Disposable onLane = scheduler.lane(0).schedulePeriodically(slow, 0, 2, TimeUnit.MILLISECONDS);
+            Thread.sleep(200);
+            onLane.dispose();
+            assertEquals(1, maxRunning.get());
+            assertTrue(runs.get() >= 3);
+            //等dispose之前已经开始的那一次执行完
+            Thread.sleep(50);
+
+            Scheduler.Worker worker = scheduler.lane(0).createWorker();
+            worker.schedulePeriodically(slow, 0, 2, TimeUnit.MILLISECONDS);
+            Thread.sleep(200);
+            worker.dispose();
+            assertEquals(1, maxRunning.get());
+        } finally {
+            scheduler.dispose();
+        }
+    }
+
+    /**
+     * Worker 关闭时,还没到期的延时任务和周期任务一起取消
+     */
+    @Test
+    public void testWorkerDisposeCancelsTimedTasks() throws InterruptedException {
+        PriorityScheduler scheduler = new PriorityScheduler("prio", 1, 1);
+        try {
+            AtomicInteger runs = new AtomicInteger();
+            Scheduler.Worker worker = scheduler.lane(0).createWorker();
+            Disposable delayed = worker.schedule(runs::incrementAndGet, 100, TimeUnit.MILLISECONDS);
+            Disposable periodic = worker.schedulePeriodically(runs::incrementAndGet, 100, 10, TimeUnit.MILLISECONDS);
+
+            worker.dispose();
+            assertTrue(delayed.isDisposed());
+            assertTrue(periodic.isDisposed());
+            Thread.sleep(200);
+            assertEquals(0, runs.get());
+        } finally {
+            scheduler.dispose();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.xz;
+
+import com.xz.hello.reactor.metrics.RequestProfiler;
+import org.junit.Test;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RequestProfilerTest {
+
+    /**
+     * subscribe(consumer) 无界请求走fastPath,每次request(1)的订阅者走慢路径,publishOn和range协商融合
+     */
+    @Test
+    public void testRequestPatterns() {
+        RequestProfiler profiler = new RequestProfiler();
+        profiler.install();
+        try {
+            Flux.range(1, 10).map(i -> i * 2)
+                    .subscriberContext(RequestProfiler.pipeline("unbounded"))
+                    .subscribe();
+
+            Flux.range(1, 10).map(i -> i * 2)
+                    .subscriberContext(RequestProfiler.pipeline("oneByOne"))
+                    .subscribe(new BaseSubscriber<Integer>() {
+                        @Override
+                        protected void hookOnSubscribe(Subscription subscription) {
+                            request(1);
+                        }
+
+                        @Override
+                        protected void hookOnNext(Integer value) {
+                            request(1);
+                        }
+                    });
+
+            Flux.range(1, 100).publishOn(Schedulers.immediate(), 16)
+                    .subscriberContext(RequestProfiler.pipeline("fused"))
+                    .blockLast();
+        } finally {
+            profiler.uninstall();
+        }
+
+        List<RequestProfiler.Hop> unbounded = profiler.hops("unbounded");
+        assertTrue(unbounded.get(0).getUpstream().contains("FluxRange"));
+        assertEquals(1, unbounded.get(0).getUnboundedRequests());
+        assertFalse(unbounded.get(0).isSlowPath());
+
+        List<RequestProfiler.Hop> oneByOne = profiler.hops("oneByOne");
+        assertTrue(oneByOne.get(0).isSlowPath());
+        assertEquals(11, oneByOne.get(0).getRequestSizeHistogram()[0]);
+
+        RequestProfiler.Hop range = profiler.hops("fused").get(0);
+        assertEquals("PublishOnSubscriber", range.getDownstream());
+        assertEquals(1, range.getFused());
+        assertFalse(range.isSlowPath());
+
+        String report = profiler.report();
+        assertTrue(report, report.contains("pipeline oneByOne"));
+        assertTrue(report, report.contains("slow path"));
+    }
+}
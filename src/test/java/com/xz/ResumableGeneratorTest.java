@@ -0,0 +1,116 @@
+package com.xz;
+
+import com.xz.hello.reactor.checkpoint.ResumableGenerator;
+import com.xz.hello.reactor.checkpoint.StateCodec;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import reactor.test.StepVerifier;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class ResumableGeneratorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 和 testGenerate 一样的乘法表,取消之后从取消的位置继续,完成之后再订阅直接完成
+     */
+    @Test
+    public void testResumeAfterCancel() {
+        Path path = folder.getRoot().toPath().resolve("table");
+        ResumableGenerator<Integer, String> generator = table(path, 1000);
+
+        List<String> first = generator.flux().take(500).collectList().block();
+        assertEquals(expected(0, 500), first);
+
+        List<String> second = generator.flux().collectList().block();
+        assertEquals(500, generator.getResumedFrom());
+        assertEquals(expected(500, 1000), second);
+
+        StepVerifier.create(generator.flux()).verifyComplete();
+        assertEquals(1000, generator.getResumedFrom());
+    }
+
+    /**
+     * 出错后从出错的那一步重试;检查点文件尾部被写坏时用前面完整的记录
+     */
+    @Test
+    public void testResumeAfterErrorAndTornWrite() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("failing");
+        boolean[] fail = {true};
+        ResumableGenerator<Integer, Integer> generator = new ResumableGenerator<>(path, StateCodec.ints(), () -> 0,
+                (state, sink) -> {
+                    if (state == 250 && fail[0]) {
+                        throw new IllegalStateException("boom");
+                    }
+                    sink.next(state);
+                    if (state == 299) {
+                        sink.complete();
+                    }
+                    return state + 1;
+                }, 100, Duration.ofMinutes(1));
+
+        StepVerifier.create(generator.flux()).expectNextCount(250).verifyErrorMessage("boom");
+
+        Files.write(Paths.get(path + ".1"), new byte[]{0, 0, 0, 4, 1, 2, 3}, StandardOpenOption.APPEND);
+        Files.write(Paths.get(path + ".0"), new byte[]{0, 0, 0, 4, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        fail[0] = false;
+        StepVerifier.create(generator.flux()).expectNext(250).expectNextCount(49).verifyComplete();
+        assertEquals(250, generator.getResumedFrom());
+        assertEquals(50, generator.getEmitted());
+    }
+
+    /**
+     * 生成函数用 sink.error() 报告出错并返回了新状态,下次订阅仍然从出错的那一步开始
+     */
+    @Test
+    public void testRetryStepFailedThroughSink() {
+        Path path = folder.getRoot().toPath().resolve("sinkError");
+        boolean[] fail = {true};
+        ResumableGenerator<Integer, Integer> generator = new ResumableGenerator<>(path, StateCodec.ints(), () -> 0,
+                (state, sink) -> {
+                    if (state == 35 && fail[0]) {
+                        sink.error(new IllegalStateException("boom"));
+                    } else {
+                        sink.next(state);
+                        if (state == 49) {
+                            sink.complete();
+                        }
+                    }
+                    return state + 1;
+                }, 10, Duration.ofMinutes(1));
+
+        StepVerifier.create(generator.flux()).expectNextCount(35).verifyErrorMessage("boom");
+
+        fail[0] = false;
+        StepVerifier.create(generator.flux()).expectNext(35).expectNextCount(14).verifyComplete();
+        assertEquals(35, generator.getResumedFrom());
+    }
+
+    private static ResumableGenerator<Integer, String> table(Path path, int size) {
+        return new ResumableGenerator<>(path, StateCodec.ints(), () -> 0,
+                (state, sink) -> {
+                    sink.next("3 x " + state + " = " + 3 * state);
+                    if (state == size - 1) {
+                        sink.complete();
+                    }
+                    return state + 1;
+                }, 64, Duration.ofMillis(10));
+    }
+
+    private static List<String> expected(int from, int to) {
+        return IntStream.range(from, to).mapToObj(i -> "3 x " + i + " = " + 3 * i).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,190 @@
+package com.xz;
+
+import com.xz.hello.reactor.multicast.RingMulticaster;
+import com.xz.hello.reactor.multicast.RingMulticaster.SlowSubscriberPolicy;
+import org.junit.Test;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RingMulticasterTest {
+
+    /**
+     * 后来的订阅者先重放最近的3个元素
+     */
+    @Test
+    public void testReplay() {
+        RingMulticaster<Integer> ring = new RingMulticaster<>(8, 3);
+        for (int i = 1; i <= 5; i++) {
+            ring.emitNext(i);
+        }
+
+        StepVerifier.create(ring)
+                .expectNext(3, 4, 5)
+                .then(() -> {
+                    ring.emitNext(6);
+                    ring.emitComplete();
+                })
+                .expectNext(6)
+                .verifyComplete();
+    }
+
+    /**
+     * 同一个源挂多个订阅者,每个订阅者都收到全部元素
+     */
+    @Test
+    public void testMulticast() throws InterruptedException {
+        RingMulticaster<Integer> ring = new RingMulticaster<>(128, 0);
+        List<Integer> first = new CopyOnWriteArrayList<>();
+        List<Integer> second = new CopyOnWriteArrayList<>();
+        CountDownLatch completed = new CountDownLatch(2);
+        ring.subscribe(first::add, null, completed::countDown);
+        ring.subscribe(second::add, null, completed::countDown);
+        assertEquals(2, ring.subscriberCount());
+
+        for (int i = 0; i < 100; i++) {
+            ring.emitNext(i);
+        }
+        ring.emitComplete();
+
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        assertEquals(100, first.size());
+        assertEquals(first, second);
+        assertEquals(0, ring.subscriberCount());
+    }
+
+    /**
+     * onSubscribe里request之后、加入订阅者列表之前发布的元素,不用等下一个元素就能收到
+     */
+    @Test
+    public void testEmitDuringSubscribe() throws InterruptedException {
+        RingMulticaster<Integer> ring = new RingMulticaster<>(8, 0);
+        CountDownLatch received = new CountDownLatch(1);
+        ring.subscribe(new BaseSubscriber<Integer>() {
+            @Override
+            protected void hookOnSubscribe(Subscription subscription) {
+                request(Long.MAX_VALUE);
+                ring.emitNext(1);
+            }
+
+            @Override
+            protected void hookOnNext(Integer value) {
+                received.countDown();
+            }
+        });
+
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertEquals(1, ring.subscriberCount());
+    }
+
+    /**
+     * onSubscribe里就取消的订阅者不会留在订阅者列表里
+     */
+    @Test
+    public void testCancelDuringSubscribe() {
+        RingMulticaster<Integer> ring = new RingMulticaster<>(8, 0);
+        ring.subscribe(new BaseSubscriber<Integer>() {
+            @Override
+            protected void hookOnSubscribe(Subscription subscription) {
+                cancel();
+            }
+        });
+
+        assertEquals(0, ring.subscriberCount());
+    }
+
+    /**
+     * 只request了1个的慢订阅者,之后的元素被覆盖,再request时从环里最老的元素继续
+     */
+    @Test
+    public void testDropSlowSubscriber() throws InterruptedException {
+        RingMulticaster<Integer> ring = new RingMulticaster<>(4, 0);
+        List<Integer> received = new CopyOnWriteArrayList<>();
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch completed = new CountDownLatch(1);
+        BaseSubscriber<Integer> slow = new BaseSubscriber<Integer>() {
+            @Override
+            protected void hookOnSubscribe(Subscription subscription) {
+                request(1);
+            }
+
+            @Override
+            protected void hookOnNext(Integer value) {
+                received.add(value);
+                first.countDown();
+            }
+
+            @Override
+            protected void hookOnComplete() {
+                completed.countDown();
+            }
+        };
+        ring.subscribe(slow);
+
+        ring.emitNext(0);
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < 10; i++) {
+            ring.emitNext(i);
+        }
+        ring.emitComplete();
+        slow.request(10);
+
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        assertEquals(0, (int) received.get(0));
+        assertTrue(received.get(1) > 1);
+        assertEquals(9, (int) received.get(received.size() - 1));
+        assertTrue(ring.getDropped() > 0);
+    }
+
+    @Test
+    public void testDisconnectSlowSubscriber() {
+        RingMulticaster<Integer> ring = new RingMulticaster<>(8, 0, SlowSubscriberPolicy.DISCONNECT, 2);
+
+        StepVerifier.create(ring, 0)
+                .then(() -> {
+                    for (int i = 0; i < 5; i++) {
+                        ring.emitNext(i);
+                    }
+                })
+                .thenRequest(1)
+                .verifyErrorMatches(e -> e.getMessage().contains("lagged"));
+
+        assertEquals(1, ring.getDisconnected());
+    }
+
+    /**
+     * 一个订阅者每个元素要处理50ms,生产者发布不受影响,另一个订阅者也不会被拖慢
+     */
+    @Test
+    public void testSlowSubscriberDoesNotBlockProducer() throws InterruptedException {
+        RingMulticaster<Integer> ring = new RingMulticaster<>(64, 0, SlowSubscriberPolicy.DROP, 64, Schedulers.elastic());
+        CountDownLatch fast = new CountDownLatch(20);
+        ring.subscribe(v -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        ring.subscribe(v -> fast.countDown());
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            ring.emitNext(i);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        assertTrue("emit took " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms", elapsed < TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(fast.await(500, TimeUnit.MILLISECONDS));
+        ring.emitComplete();
+    }
+}
@@ -0,0 +1,84 @@
+package com.xz;
+
+import com.xz.hello.reactor.metrics.SignalMetrics;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.UnicastProcessor;
+import reactor.test.StepVerifier;
+
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class SignalMetricsTest {
+
+    /**
+     * 代替 testBackpressure 里 doOnRequest 的打印
+     */
+    @Test
+    public void testCountSignals() throws Exception {
+        SignalMetrics metrics = new SignalMetrics("range");
+
+        StepVerifier.create(Flux.range(1, 10)
+                .transform(metrics.operator())
+                .take(3), 1)
+                .expectNext(1)
+                .thenRequest(5)
+                .expectNext(2, 3)
+                .verifyComplete();
+
+        assertEquals(3, metrics.getOnNextCount());
+        assertEquals(2, metrics.getRequestCount());
+        assertEquals(1, metrics.getCancelCount());
+        assertEquals(0, metrics.getCompleteCount());
+        //take(3)取消之后,还没满足的需求不再计入
+        assertEquals(0, metrics.getInFlightDemand());
+
+        ObjectName name = metrics.registerMBean();
+        assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "OnNextCount"));
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    }
+
+    @Test
+    public void testDisabled() {
+        SignalMetrics metrics = new SignalMetrics("disabled");
+        metrics.setEnabled(false);
+
+        Flux<Integer> source = Flux.range(1, 100);
+        assertSame(source, source.transform(metrics.operator()));
+        source.transform(metrics.operator()).blockLast();
+
+        assertEquals(0, metrics.getOnNextCount());
+    }
+
+    /**
+     * 先有界请求、再无界请求,或者订阅正常结束之后,in-flight demand 都回到0
+     */
+    @Test
+    public void testInFlightDemandReleased() {
+        SignalMetrics metrics = new SignalMetrics("demand");
+
+        UnicastProcessor<Integer> processor = UnicastProcessor.create();
+        StepVerifier.create(processor.transform(metrics.operator()), 5)
+                .then(() -> processor.onNext(1))
+                .expectNext(1)
+                .then(() -> assertEquals(4, metrics.getInFlightDemand()))
+                .thenRequest(Long.MAX_VALUE)
+                .then(() -> assertEquals(0, metrics.getInFlightDemand()))
+                .then(() -> {
+                    processor.onNext(2);
+                    processor.onComplete();
+                })
+                .expectNext(2)
+                .verifyComplete();
+        assertEquals(0, metrics.getInFlightDemand());
+
+        StepVerifier.create(Flux.range(1, 3).transform(metrics.operator()), 10)
+                .expectNextCount(3)
+                .verifyComplete();
+        assertEquals(0, metrics.getInFlightDemand());
+        assertEquals(15, metrics.getRequestedTotal());
+    }
+}
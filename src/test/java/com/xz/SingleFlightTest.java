@@ -0,0 +1,78 @@
+package com.xz;
+
+import com.xz.hello.reactor.SimulatedService;
+import com.xz.hello.reactor.cache.SingleFlight;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+
+public class SingleFlightTest {
+
+    /**
+     * 100个并发订阅者请求同一个key,只执行一次阻塞调用
+     */
+    @Test
+    public void testCoalesce() {
+        SimulatedService service = new SimulatedService(200, 0);
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(
+                k -> Mono.fromCallable(() -> service.callSync(k)).subscribeOn(Schedulers.elastic()));
+
+        StepVerifier.create(Flux.range(0, 100)
+                .flatMap(i -> singleFlight.get("hello").subscribeOn(Schedulers.parallel())))
+                .expectNextCount(100)
+                .verifyComplete();
+
+        assertEquals(1, service.getCalls());
+        assertEquals(1, singleFlight.getExecutions());
+        assertEquals(99, singleFlight.getSavedCalls());
+
+        //没有缓存,执行完之后再请求会重新执行
+        singleFlight.get("hello").block();
+        assertEquals(2, service.getCalls());
+    }
+
+    @Test
+    public void testErrorNotCached() {
+        SimulatedService service = new SimulatedService(0, 1);
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(service::call, Duration.ofMinutes(1), Duration.ZERO);
+
+        StepVerifier.create(singleFlight.get("a")).expectError(IllegalStateException.class).verify();
+        service.setFailureRate(0);
+        StepVerifier.create(singleFlight.get("a")).expectNext("a -> 2").verifyComplete();
+        StepVerifier.create(singleFlight.get("a")).expectNext("a -> 2").verifyComplete();
+    }
+
+    @Test
+    public void testRefreshAhead() throws InterruptedException {
+        SimulatedService service = new SimulatedService(0, 0);
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(service::call,
+                Duration.ofMillis(300), Duration.ofMillis(250));
+
+        StepVerifier.create(singleFlight.get("a")).expectNext("a -> 1").verifyComplete();
+        Thread.sleep(100);
+        StepVerifier.create(singleFlight.get("a")).expectNext("a -> 1").verifyComplete();
+        StepVerifier.create(singleFlight.get("a")).expectNext("a -> 2").verifyComplete();
+    }
+
+    /**
+     * 很多不同的key,过期之后都会从map里删掉
+     */
+    @Test
+    public void testExpiredEvicted() throws InterruptedException {
+        SimulatedService service = new SimulatedService(0, 0);
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(service::call,
+                Duration.ofMillis(100), Duration.ZERO);
+
+        Flux.range(0, 1000).flatMap(i -> singleFlight.get("key" + i)).blockLast();
+        assertEquals(1000, singleFlight.size());
+
+        Thread.sleep(500);
+        assertEquals(0, singleFlight.size());
+    }
+}
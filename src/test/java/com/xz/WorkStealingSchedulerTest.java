@@ -0,0 +1,181 @@
+package com.xz;
+
+import com.xz.hello.reactor.scheduler.WorkStealingScheduler;
+import org.junit.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
+import reactor.test.StepVerifier;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WorkStealingSchedulerTest {
+
+    /**
+     * 多条 publishOn 链同时运行,每条链内部的顺序不变
+     */
+    @Test
+    public void testPublishOnKeepsOrder() {
+        WorkStealingScheduler scheduler = new WorkStealingScheduler("stealing", 4);
+        try {
+            List<Integer> expected = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+            StepVerifier.create(Flux.range(0, 16)
+                    .flatMap(chain -> Flux.range(0, 1000).publishOn(scheduler).collectList()))
+                    .thenConsumeWhile(expected::equals)
+                    .verifyComplete();
+        } finally {
+            scheduler.dispose();
+        }
+    }
+
+    /**
+     * 一个线程被阻塞时,提交到它队列里的任务会被其他线程偷走执行
+     */
+    @Test
+    public void testStealWhenBlocked() throws InterruptedException {
+        WorkStealingScheduler scheduler = new WorkStealingScheduler("stealing", 2);
+        try {
+            CountDownLatch blocker = new CountDownLatch(1);
+            Scheduler.Worker worker = scheduler.createWorker();
+            worker.schedule(() -> {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+
+            CountDownLatch done = new CountDownLatch(100);
+            for (int i = 0; i < 100; i++) {
+                scheduler.schedule(done::countDown);
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertTrue(scheduler.getSteals() > 0);
+            blocker.countDown();
+            worker.dispose();
+        } finally {
+            scheduler.dispose();
+        }
+    }
+
+    @Test
+    public void testDelayedTask() throws InterruptedException {
+        WorkStealingScheduler scheduler = new WorkStealingScheduler("stealing", 2);
+        try {
+            CountDownLatch done = new CountDownLatch(1);
+            long start = System.nanoTime();
+            scheduler.schedule(done::countDown, 50, TimeUnit.MILLISECONDS);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+            assertEquals(2, scheduler.getExecutedPerThread().length);
+        } finally {
+            scheduler.dispose();
+        }
+    }
+
+    /**
+     * 执行时间(20ms)远大于周期(2ms)的周期任务也不会并发执行
+     */
+    @Test
+    public void testSlowPeriodicTaskNeverOverlaps() throws InterruptedException {
+        WorkStealingScheduler scheduler = new WorkStealingScheduler("stealing", 4);
+        try {
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+            AtomicInteger runs = new AtomicInteger();
+            Disposable periodic = scheduler.schedulePeriodically(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                runs.incrementAndGet();
+            }, 0, 2, TimeUnit.MILLISECONDS);
+            Thread.sleep(200);
+            periodic.dispose();
+            assertEquals(1, maxRunning.get());
+            assertTrue(runs.get() >= 3);
+        } finally {
+            scheduler.dispose();
+        }
+    }
+
+    /**
+     * Worker 上一个任务抛出异常之后,后面的任务照常执行
+     */
+    @Test
+    public void testWorkerSurvivesFailingTask() throws InterruptedException {
+        WorkStealingScheduler scheduler = new WorkStealingScheduler("stealing", 2);
+        Scheduler.Worker worker = scheduler.createWorker();
+        try {
+            CountDownLatch done = new CountDownLatch(1);
+            worker.schedule(() -> {
+                throw new IllegalStateException("boom");
+            });
+            worker.schedule(done::countDown);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+
+            CountDownLatch again = new CountDownLatch(1);
+            worker.schedule(again::countDown);
+            assertTrue(again.await(5, TimeUnit.SECONDS));
+        } finally {
+            worker.dispose();
+            scheduler.dispose();
+        }
+    }
+
+    /**
+     * 没有任务时线程一直park(WAITING),不会定时醒来轮询
+     */
+    @Test
+    public void testIdleThreadsParkUntilWork() throws InterruptedException {
+        WorkStealingScheduler scheduler = new WorkStealingScheduler("idle-stealing", 2);
+        try {
+            Thread.sleep(100);
+            List<Thread> threads = Thread.getAllStackTraces().keySet().stream()
+                    .filter(t -> t.getName().matches("idle-stealing-\\d+"))
+                    .collect(Collectors.toList());
+            assertEquals(2, threads.size());
+            for (Thread thread : threads) {
+                assertEquals(Thread.State.WAITING, thread.getState());
+            }
+            CountDownLatch done = new CountDownLatch(1);
+            scheduler.schedule(done::countDown);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            scheduler.dispose();
+        }
+    }
+
+    /**
+     * Worker 关闭时,还没到期的延时任务和周期任务一起取消
+     */
+    @Test
+    public void testWorkerDisposeCancelsTimedTasks() throws InterruptedException {
+        WorkStealingScheduler scheduler = new WorkStealingScheduler("stealing", 2);
+        try {
+            AtomicInteger runs = new AtomicInteger();
+            Scheduler.Worker worker = scheduler.createWorker();
+            Disposable delayed = worker.schedule(runs::incrementAndGet, 100, TimeUnit.MILLISECONDS);
+            Disposable periodic = worker.schedulePeriodically(runs::incrementAndGet, 100, 10, TimeUnit.MILLISECONDS);
+
+            worker.dispose();
+            assertTrue(delayed.isDisposed());
+            assertTrue(periodic.isDisposed());
+            Thread.sleep(200);
+            assertEquals(0, runs.get());
+        } finally {
+            scheduler.dispose();
+        }
+    }
+}